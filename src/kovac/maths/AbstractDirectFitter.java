@@ -0,0 +1,210 @@
+package kovac.maths;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * Base class of the non-iterative fitters : it computes the center of mass
+ * and the K matrix of the centered points, lets the subclass solve for the
+ * centered quadric, and translates the result back to the origin of the
+ * options.
+ * <p>
+ * The residual reported by these fitters is the root mean square of the
+ * algebraic distances of the points to the quadric, weighted like the points.
+ * 
+ * @author bastien.kovac
+ *
+ */
+abstract class AbstractDirectFitter implements EllipsoidFitter {
+
+	/**
+	 * Relative regularization of the normal equations
+	 */
+	protected static final double EPSILON = 1e-12;
+
+	/**
+	 * The parameters of the fits
+	 */
+	private final FitOptions options;
+	/**
+	 * Used to accumulate the points given as arrays
+	 */
+	private final ScatterAccumulator points = new ScatterAccumulator();
+	private final double[] c = new double[3];
+	private final double[][] K = new double[10][10];
+	private final double[] v = new double[10];
+
+	AbstractDirectFitter(FitOptions options) {
+		this.options = options;
+	}
+
+	@Override
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	@Override
+	public FitResult fit(double[][] points) {
+		if (points.length != 3)
+			throw new IllegalArgumentException("Points must be given as a 3 x nbPoints array");
+		this.points.clear();
+		for (int j = 0; j < points[0].length; j++)
+			this.points.add(points[0][j], points[1][j], points[2][j]);
+		return fit(this.points);
+	}
+
+	@Override
+	public FitResult fit(ScatterAccumulator scatter) {
+		long start = System.nanoTime();
+		if (scatter.size() < 2)
+			throw new IllegalArgumentException("Needs at least 2 points to fit an ellipsoid");
+		scatter.getCenterOfMass(c);
+		scatter.getK(c, K);
+
+		ExitReason reason = ExitReason.Converged;
+		double residual = Double.NaN;
+		double[] coeffs = new double[10];
+		double weight = scatter.getTotalWeight();
+		if (solve(K, scatter.size(), weight, v) && normalize(v)) {
+			double sum = 0;
+			for (int i = 0; i < 10; i++)
+				for (int j = 0; j < 10; j++)
+					sum += v[i] * K[i][j] * v[j];
+			residual = Math.sqrt(Math.max(sum, 0) / weight);
+			DouglasRachfordSolver.translate(v, options.getOrigin(0) - c[0], options.getOrigin(1) - c[1],
+					options.getOrigin(2) - c[2], coeffs);
+		} else {
+			reason = ExitReason.Degenerate;
+			for (int i = 0; i < 10; i++)
+				coeffs[i] = Double.NaN;
+		}
+		return new FitResult(new QuadricExpression(coeffs), 0, residual, System.nanoTime() - start, reason);
+	}
+
+	/**
+	 * Scales the quadric so that the trace of its quadratic part is 1
+	 * 
+	 * @return False if the trace is null or not finite
+	 */
+	private static boolean normalize(double[] v) {
+		double trace = v[0] + v[1] + v[2];
+		if (!(Math.abs(trace) > 0) || Double.isInfinite(trace))
+			return false;
+		for (int i = 0; i < 10; i++) {
+			v[i] /= trace;
+			if (Double.isNaN(v[i]) || Double.isInfinite(v[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the factor of each monomial for the points divided by their
+	 * root mean square radius, so that the K matrix of the scaled points is
+	 * well conditioned
+	 * 
+	 * @param K
+	 *            The K matrix of the centered points
+	 * @param weight
+	 *            The total weight of the points
+	 * @param w
+	 *            Receives the 10 factors
+	 * @return False if the points are all at the center of mass
+	 */
+	protected static boolean monomialScales(double[][] K, double weight, double[] w) {
+		double radius = 0;
+		for (int i = 0; i < 3; i++)
+			radius += K[6 + i][6 + i];
+		radius = Math.sqrt(radius / weight);
+		if (!(radius > 0) || Double.isInfinite(radius))
+			return false;
+		for (int i = 0; i < 10; i++)
+			w[i] = i < 6 ? 1 / (radius * radius) : i < 9 ? 1 / radius : 1;
+		return true;
+	}
+
+	/**
+	 * Minimizes the algebraic cost v'.K.v over the quadrics v = B'.u spanned
+	 * by the rows of B, under the linear constraint e'.u = 1 : with G =
+	 * B.K.B', u = inv(G).e / e'.inv(G).e. The points are scaled by w
+	 * beforehand, the rows of B being expressed for the scaled points. A tiny
+	 * multiple of the identity is added to G, which is singular when the
+	 * points lie exactly on such a quadric.
+	 * 
+	 * @param K
+	 *            The K matrix of the centered points
+	 * @param w
+	 *            The factors of the monomials, see monomialScales
+	 * @param B
+	 *            The m x 10 basis of the quadrics
+	 * @param e
+	 *            The m coefficients of the constraint
+	 * @param prox
+	 *            A solver of size m
+	 * @param G
+	 *            A m x m buffer
+	 * @param x
+	 *            A buffer of length m
+	 * @param result
+	 *            Receives the 10 coefficients of the quadric, for the
+	 *            unscaled points
+	 * @return The algebraic cost for the scaled points, NaN if G is singular
+	 */
+	protected static double solveInSubspace(double[][] K, double[] w, double[][] B, double[] e, CholeskyProx prox,
+			double[][] G, double[] x, double[] result) {
+		int m = B.length;
+		double trace = 0;
+		for (int a = 0; a < m; a++) {
+			for (int b = a; b < m; b++) {
+				double sum = 0;
+				for (int i = 0; i < 10; i++) {
+					if (B[a][i] == 0)
+						continue;
+					double row = 0;
+					for (int j = 0; j < 10; j++)
+						row += K[i][j] * w[j] * B[b][j];
+					sum += B[a][i] * w[i] * row;
+				}
+				G[a][b] = G[b][a] = sum;
+			}
+			trace += G[a][a];
+		}
+		for (int a = 0; a < m; a++)
+			G[a][a] += EPSILON * trace + Double.MIN_NORMAL;
+		try {
+			prox.factor(G);
+		} catch (IllegalArgumentException ex) {
+			return Double.NaN;
+		}
+		prox.solve(e, x);
+		double norm = 0;
+		for (int a = 0; a < m; a++)
+			norm += e[a] * x[a];
+		if (!(norm > 0) || Double.isInfinite(norm))
+			return Double.NaN;
+		for (int i = 0; i < 10; i++) {
+			double sum = 0;
+			for (int a = 0; a < m; a++)
+				sum += B[a][i] * x[a];
+			result[i] = w[i] * sum / norm;
+		}
+		return 1 / norm;
+	}
+
+	/**
+	 * Fits the quadric to the centered points
+	 * 
+	 * @param K
+	 *            The 10x10 K matrix of the points centered on their center of
+	 *            mass, must not be modified
+	 * @param n
+	 *            The number of points
+	 * @param weight
+	 *            The total weight of the points, n if they are not weighted
+	 * @param result
+	 *            Receives the 10 coefficients of the quadric, in any scale
+	 * @return False if the points do not determine an ellipsoid
+	 */
+	protected abstract boolean solve(double[][] K, int n, double weight, double[] result);
+
+}
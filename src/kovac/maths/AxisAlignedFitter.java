@@ -0,0 +1,55 @@
+package kovac.maths;
+
+/**
+ * Algebraic least squares fit of an ellipsoid whose axes are the axes of the
+ * stack : the cross terms xy, xz and yz are null, and the 7 remaining
+ * coefficients are solved directly under the constraint that the trace of
+ * the quadratic part is 1. Six points in general position determine the
+ * ellipsoid.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class AxisAlignedFitter extends AbstractDirectFitter {
+
+	/**
+	 * The quadrics of the scaled points the solution is looked for in
+	 */
+	private static final double[][] BASIS = new double[7][10];
+	/**
+	 * Unit trace of the quadratic part
+	 */
+	private static final double[] TRACE = { 1, 1, 1, 0, 0, 0, 0 };
+
+	static {
+		int[] monomials = { 0, 1, 2, 6, 7, 8, 9 };
+		for (int a = 0; a < monomials.length; a++)
+			BASIS[a][monomials[a]] = 1;
+	}
+
+	private final double[] w = new double[10];
+	private final CholeskyProx prox = new CholeskyProx(7);
+	private final double[][] G = new double[7][7];
+	private final double[] x = new double[7];
+
+	/**
+	 * Builds a fitter expressing the quadrics relatively to the origin of the
+	 * given options
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public AxisAlignedFitter(FitOptions options) {
+		super(options);
+	}
+
+	@Override
+	protected boolean solve(double[][] K, int n, double weight, double[] result) {
+		if (n < 6 || !monomialScales(K, weight, w))
+			return false;
+		if (Double.isNaN(solveInSubspace(K, w, BASIS, TRACE, prox, G, x, result)))
+			return false;
+		return EllipsoidParameters.fromQuadric(result) != null;
+	}
+
+}
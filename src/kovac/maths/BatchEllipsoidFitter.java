@@ -0,0 +1,232 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class fits ellipsoids to many point sets at once, spreading the fits
+ * over the threads of an executor. It only relies on the mathematical classes
+ * of the plugin, so it can run without any viewer, Swing or VTK.
+ * <p>
+ * Each worker thread owns an EllipsoidFitter and streams the points of a set
+ * into a ScatterAccumulator, so the memory used by a task does not depend on
+ * the number of points it fits.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class BatchEllipsoidFitter {
+
+	/**
+	 * Listener notified every time a point set has been fitted. It is called
+	 * from the worker threads
+	 *
+	 * @author bastien.kovac
+	 *
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param done
+		 *            The number of point sets fitted so far
+		 * @param total
+		 *            The total number of point sets
+		 */
+		void progress(int done, int total);
+
+	}
+
+	/**
+	 * Number of point sets fitted by a single task, to keep the scheduling
+	 * overhead low compared to the fits
+	 */
+	private static final int CHUNK_SIZE = 16;
+
+	/**
+	 * The executor running the fits
+	 */
+	private final ExecutorService executor;
+	/**
+	 * True if the executor was created by this object and must be shut down
+	 * with it
+	 */
+	private final boolean ownsExecutor;
+	/**
+	 * Maximum number of points accepted in a single point set
+	 */
+	private int maxPointsPerSet = Integer.MAX_VALUE;
+	/**
+	 * Set to true to stop the running batch
+	 */
+	private volatile boolean cancelled;
+	/**
+	 * One fitter per worker thread, replaced when the options change
+	 */
+	private final ThreadLocal<EllipsoidFitter> fitters = new ThreadLocal<EllipsoidFitter>();
+	private final ThreadLocal<ScatterAccumulator> accumulators = new ThreadLocal<ScatterAccumulator>() {
+		@Override
+		protected ScatterAccumulator initialValue() {
+			return new ScatterAccumulator();
+		}
+	};
+
+	/**
+	 * Builds a fitter using its own ForkJoinPool, with one thread per
+	 * available core
+	 */
+	public BatchEllipsoidFitter() {
+		this(new ForkJoinPool(), true);
+	}
+
+	/**
+	 * Builds a fitter running on the given executor, which is not shut down
+	 * by this object
+	 *
+	 * @param executor
+	 *            The executor running the fits
+	 */
+	public BatchEllipsoidFitter(ExecutorService executor) {
+		this(executor, false);
+	}
+
+	private BatchEllipsoidFitter(ExecutorService executor, boolean ownsExecutor) {
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/**
+	 * Limits the number of points of a single point set, larger sets are
+	 * rejected before the batch starts
+	 *
+	 * @param maxPoints
+	 *            The maximum number of points of a set
+	 */
+	public void setMaxPointsPerSet(int maxPoints) {
+		if (maxPoints < 2)
+			throw new IllegalArgumentException("A point set needs at least 2 points");
+		this.maxPointsPerSet = maxPoints;
+	}
+
+	/**
+	 * Fits an ellipsoid to every given point set, and waits for all of them
+	 *
+	 * @param pointSets
+	 *            The point sets, each as a 3 x nbPoints array
+	 * @param options
+	 *            The parameters of the fits
+	 * @param listener
+	 *            Notified after each fit, may be null
+	 * @return The results, in the same order as the point sets
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting
+	 * @throws CancellationException
+	 *             If cancel() was called before the batch completed
+	 */
+	public List<FitResult> fit(List<double[][]> pointSets, FitOptions options, ProgressListener listener)
+			throws InterruptedException {
+		for (double[][] set : pointSets) {
+			if (set.length != 3)
+				throw new IllegalArgumentException("Point sets must be given as 3 x nbPoints arrays");
+			if (set[0].length < 2 || set[0].length > maxPointsPerSet)
+				throw new IllegalArgumentException("Invalid number of points in a set : " + set[0].length);
+		}
+		cancelled = false;
+
+		final int total = pointSets.size();
+		final FitResult[] results = new FitResult[total];
+		final AtomicInteger done = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < total; start += CHUNK_SIZE) {
+			futures.add(executor.submit(new Chunk(pointSets, options, results, start,
+					Math.min(start + CHUNK_SIZE, total), done, listener)));
+		}
+
+		try {
+			for (Future<?> f : futures)
+				f.get();
+		} catch (ExecutionException e) {
+			cancel();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			cancel();
+			throw e;
+		}
+		if (cancelled)
+			throw new CancellationException("The batch has been cancelled");
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Stops the running batch, the fits already started are completed
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Releases the threads of the fitter if it created its own executor
+	 */
+	public void shutdown() {
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+
+	/**
+	 * A task fitting a contiguous range of point sets
+	 */
+	private class Chunk implements Callable<Void> {
+
+		private final List<double[][]> pointSets;
+		private final FitOptions options;
+		private final FitResult[] results;
+		private final int start, end;
+		private final AtomicInteger done;
+		private final ProgressListener listener;
+
+		Chunk(List<double[][]> pointSets, FitOptions options, FitResult[] results, int start, int end,
+				AtomicInteger done, ProgressListener listener) {
+			this.pointSets = pointSets;
+			this.options = options;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+			this.done = done;
+			this.listener = listener;
+		}
+
+		@Override
+		public Void call() {
+			EllipsoidFitter fitter = fitters.get();
+			if (fitter == null || fitter.getOptions() != options) {
+				fitter = EllipsoidFitting.newFitter(options);
+				fitters.set(fitter);
+			}
+			ScatterAccumulator scatter = accumulators.get();
+			for (int i = start; i < end; i++) {
+				if (cancelled || Thread.currentThread().isInterrupted())
+					return null;
+				double[][] set = pointSets.get(i);
+				scatter.clear();
+				for (int j = 0; j < set[0].length; j++)
+					scatter.add(set[0][j], set[1][j], set[2][j]);
+				results[i] = fitter.fit(scatter);
+				int count = done.incrementAndGet();
+				if (listener != null)
+					listener.progress(count, results.length);
+			}
+			return null;
+		}
+
+	}
+
+}
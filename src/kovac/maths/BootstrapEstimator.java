@@ -0,0 +1,298 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import kovac.res.enums.ExitReason;
+
+/**
+ * Estimates how reliable a fitted ellipsoid is with the bootstrap : the points
+ * are resampled with replacement, each replicate is fitted with the engine of
+ * the options, and the spread of the fitted parameters gives percentile
+ * confidence intervals for the center, the semi-axes, the volume and the
+ * orientation.
+ * <p>
+ * The outer products of the monomials of the points are computed once, the K
+ * matrix of a replicate being the sum of the products of its points weighted
+ * by the number of times they were drawn. Replicates are fitted in parallel,
+ * and the one of a given index only depends on the seed, so the intervals do
+ * not depend on the number of cores.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class BootstrapEstimator {
+
+	/**
+	 * Pool shared by the estimators built without an executor
+	 */
+	private static final ExecutorService POOL = new ForkJoinPool();
+
+	/**
+	 * Number of parameters measured on each replicate : center, semi-axes,
+	 * volume and angles of the axes
+	 */
+	private static final int NB_PARAMETERS = 10;
+
+	/**
+	 * The parameters of the fits
+	 */
+	private final FitOptions options;
+	private final ExecutorService executor;
+	private int replicates = 200;
+	private double confidence = 0.95;
+	private long seed;
+	/**
+	 * Size of a voxel, the parameters being expressed in its units
+	 */
+	private double[] scale = { 1, 1, 1 };
+
+	/**
+	 * Builds an estimator running on a pool shared with the other estimators
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public BootstrapEstimator(FitOptions options) {
+		this(options, POOL);
+	}
+
+	/**
+	 * Builds an estimator running on the given executor
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 * @param executor
+	 *            The executor fitting the replicates
+	 */
+	public BootstrapEstimator(FitOptions options, ExecutorService executor) {
+		this.options = options;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param replicates
+	 *            Number of resampled sets of points
+	 */
+	public void setReplicates(int replicates) {
+		if (replicates < 2)
+			throw new IllegalArgumentException("Needs at least two replicates");
+		this.replicates = replicates;
+	}
+
+	/**
+	 * @param confidence
+	 *            Probability for each parameter to be in its interval, in
+	 *            ]0,1[
+	 */
+	public void setConfidence(double confidence) {
+		if (!(confidence > 0 && confidence < 1))
+			throw new IllegalArgumentException("The confidence must be in ]0,1[");
+		this.confidence = confidence;
+	}
+
+	/**
+	 * @param seed
+	 *            Seed of the replicates, the replicate of a given index only
+	 *            depends on it
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param scale
+	 *            Size of a voxel in each direction [x, y, z], the intervals
+	 *            being expressed in its units
+	 */
+	public void setScale(double[] scale) {
+		if (scale.length != 3)
+			throw new IllegalArgumentException("Needs 3 coordinates to define a scale");
+		this.scale = scale.clone();
+	}
+
+	/**
+	 * @return The parameters of the fits
+	 */
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Fits the points and their replicates
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The confidence intervals of the parameters, or null if the fit
+	 *         on all the points is not an ellipsoid
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting for the
+	 *             replicates
+	 */
+	public BootstrapResult estimate(double[][] points) throws InterruptedException {
+		if (points.length != 3)
+			throw new IllegalArgumentException("Points must be given as a 3 x nbPoints array");
+		int n = points[0].length;
+		int minimum = options.getEngine().getMinimumPoints();
+		if (n < minimum)
+			throw new IllegalArgumentException("Needs at least " + minimum + " points to fit an ellipsoid");
+
+		EllipsoidParameters reference = EllipsoidParameters.fromQuadric(
+				EllipsoidFitting.newFitter(options).fit(points).getQuadric().getSimpleArray(), options.getOrigin(),
+				scale);
+		if (reference == null)
+			return null;
+
+		double[] anchor = { points[0][0], points[1][0], points[2][0] };
+		double[] products = new double[n * ScatterAccumulator.PACKED_SIZE];
+		double[] monomials = new double[10];
+		for (int j = 0; j < n; j++)
+			ScatterAccumulator.outerProduct(points[0][j] - anchor[0], points[1][j] - anchor[1],
+					points[2][j] - anchor[2], products, j * ScatterAccumulator.PACKED_SIZE, monomials);
+
+		double[][] samples = new double[replicates][];
+		int nbTasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), replicates));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int t = 0; t < nbTasks; t++)
+			futures.add(executor.submit(new Replicates(products, n, anchor, reference, samples, t, nbTasks)));
+		try {
+			for (Future<Void> f : futures)
+				f.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			for (Future<Void> f : futures)
+				f.cancel(true);
+			throw e;
+		}
+
+		// Percentile intervals over the replicates fitted to an ellipsoid
+		int failures = 0;
+		for (double[] sample : samples) {
+			if (sample == null)
+				failures++;
+		}
+		double[][] intervals = new double[NB_PARAMETERS][];
+		double[] values = new double[replicates - failures];
+		for (int p = 0; p < NB_PARAMETERS; p++) {
+			int k = 0;
+			for (double[] sample : samples) {
+				if (sample != null)
+					values[k++] = sample[p];
+			}
+			Arrays.sort(values);
+			if (p < 7)
+				intervals[p] = new double[] { quantile(values, (1 - confidence) / 2),
+						quantile(values, (1 + confidence) / 2) };
+			else
+				intervals[p] = new double[] { 0, quantile(values, confidence) };
+		}
+		return new BootstrapResult(reference, confidence, replicates, failures, intervals);
+	}
+
+	/**
+	 * @return The quantile of sorted values, interpolated linearly, NaN if
+	 *         there is no value
+	 */
+	private static double quantile(double[] sorted, double p) {
+		if (sorted.length == 0)
+			return Double.NaN;
+		double position = p * (sorted.length - 1);
+		int i = (int) Math.floor(position);
+		if (i >= sorted.length - 1)
+			return sorted[sorted.length - 1];
+		return sorted[i] + (position - i) * (sorted[i + 1] - sorted[i]);
+	}
+
+	/**
+	 * A task fitting every nbTasks-th replicate
+	 */
+	private class Replicates implements Callable<Void> {
+
+		private final double[] products;
+		private final int n;
+		private final double[] anchor;
+		private final double[][] referenceRotation;
+		private final double[][] samples;
+		private final int first, step;
+		private final int[] counts;
+		private final double[] sum = new double[ScatterAccumulator.PACKED_SIZE];
+		private final ScatterAccumulator scatter = new ScatterAccumulator();
+		private final EllipsoidFitter fitter = EllipsoidFitting.newFitter(options);
+
+		Replicates(double[] products, int n, double[] anchor, EllipsoidParameters reference, double[][] samples,
+				int first, int step) {
+			this.products = products;
+			this.n = n;
+			this.anchor = anchor;
+			this.referenceRotation = reference.getRotation();
+			this.samples = samples;
+			this.first = first;
+			this.step = step;
+			this.counts = new int[n];
+		}
+
+		@Override
+		public Void call() {
+			for (int b = first; b < replicates; b += step) {
+				if (Thread.currentThread().isInterrupted())
+					return null;
+				// The replicate only depends on the seed and on its index
+				Random random = new Random(seed * 31 + b);
+				Arrays.fill(counts, 0);
+				for (int i = 0; i < n; i++)
+					counts[random.nextInt(n)]++;
+				Arrays.fill(sum, 0);
+				for (int j = 0; j < n; j++) {
+					if (counts[j] == 0)
+						continue;
+					int offset = j * ScatterAccumulator.PACKED_SIZE;
+					for (int k = 0; k < ScatterAccumulator.PACKED_SIZE; k++)
+						sum[k] += counts[j] * products[offset + k];
+				}
+				scatter.load(anchor, sum, n);
+				FitResult result = fitter.fit(scatter);
+				if (result.getExitReason() == ExitReason.NotFinite || result.getExitReason() == ExitReason.Degenerate)
+					continue;
+				EllipsoidParameters parameters = EllipsoidParameters
+						.fromQuadric(result.getQuadric().getSimpleArray(), options.getOrigin(), scale);
+				if (parameters != null)
+					samples[b] = measure(parameters);
+			}
+			return null;
+		}
+
+		/**
+		 * @return The center, semi-axes, volume and angles of the axes with
+		 *         the reference, in degrees
+		 */
+		private double[] measure(EllipsoidParameters parameters) {
+			double[] sample = new double[NB_PARAMETERS];
+			double[] center = parameters.getCenter(), axes = parameters.getAxes();
+			double[][] rotation = parameters.getRotation();
+			for (int i = 0; i < 3; i++) {
+				sample[i] = center[i];
+				sample[3 + i] = axes[i];
+				double cos = 0;
+				for (int k = 0; k < 3; k++)
+					cos += rotation[k][i] * referenceRotation[k][i];
+				// An axis has no orientation
+				sample[7 + i] = Math.toDegrees(Math.acos(Math.min(1, Math.abs(cos))));
+			}
+			sample[6] = parameters.getVolume();
+			return sample;
+		}
+
+	}
+
+}
@@ -0,0 +1,126 @@
+package kovac.maths;
+
+/**
+ * Percentile confidence intervals of the parameters of an ellipsoid, given by
+ * the fits of bootstrap replicates of its points. The parameters are in the
+ * units of the voxel scale the estimation was run with.
+ * <p>
+ * The orientation is measured by the angle between each axis of a replicate
+ * and the same axis of the fit on all the points : its interval is the one
+ * sided [0, upper] interval holding the requested proportion of the
+ * replicates. An axis whose length is close to another one has an ill-defined
+ * direction, and a large angle.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author bastien.kovac
+ *
+ */
+public final class BootstrapResult {
+
+	/**
+	 * The fit on all the points
+	 */
+	private final EllipsoidParameters reference;
+	private final double confidence;
+	private final int replicates;
+	/**
+	 * Number of replicates whose fit was not an ellipsoid, left out of the
+	 * intervals
+	 */
+	private final int failures;
+	/**
+	 * Intervals as { lower, upper } : 3 for the center, 3 for the semi-axes,
+	 * then the volume and the 3 angles of the axes, in degrees
+	 */
+	private final double[][] intervals;
+
+	BootstrapResult(EllipsoidParameters reference, double confidence, int replicates, int failures,
+			double[][] intervals) {
+		this.reference = reference;
+		this.confidence = confidence;
+		this.replicates = replicates;
+		this.failures = failures;
+		this.intervals = new double[intervals.length][];
+		for (int i = 0; i < intervals.length; i++)
+			this.intervals[i] = intervals[i].clone();
+	}
+
+	/**
+	 * @return The parameters of the fit on all the points
+	 */
+	public EllipsoidParameters getReference() {
+		return reference;
+	}
+
+	/**
+	 * @return The probability for each parameter to be in its interval
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/**
+	 * @return The number of replicates drawn
+	 */
+	public int getReplicates() {
+		return replicates;
+	}
+
+	/**
+	 * @return The number of replicates whose fit was not an ellipsoid
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @param i
+	 *            The coordinate, 0 for x, 1 for y and 2 for z
+	 * @return The interval of the coordinate of the center, as { lower, upper
+	 *         }
+	 */
+	public double[] getCenterInterval(int i) {
+		return intervals[i].clone();
+	}
+
+	/**
+	 * @param i
+	 *            The index of the semi-axis, from the longest to the shortest
+	 * @return The interval of the semi-axis, as { lower, upper }
+	 */
+	public double[] getAxisInterval(int i) {
+		return intervals[3 + i].clone();
+	}
+
+	/**
+	 * @return The interval of the volume, as { lower, upper }
+	 */
+	public double[] getVolumeInterval() {
+		return intervals[6].clone();
+	}
+
+	/**
+	 * @param i
+	 *            The index of the semi-axis, from the longest to the shortest
+	 * @return The interval of the angle between the direction of the axis and
+	 *         the one of the reference, in degrees, as { 0, upper }
+	 */
+	public double[] getAngleInterval(int i) {
+		return intervals[7 + i].clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d replicates (%d failed), %.0f%% intervals : volume [%.1f, %.1f], semi-axes",
+				replicates, failures, 100 * confidence, intervals[6][0], intervals[6][1]));
+		for (int i = 0; i < 3; i++)
+			sb.append(String.format(" [%.2f, %.2f]", intervals[3 + i][0], intervals[3 + i][1]));
+		sb.append(", angles");
+		for (int i = 0; i < 3; i++)
+			sb.append(String.format(" %.1f", intervals[7 + i][1]));
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,127 @@
+package kovac.maths;
+
+/**
+ * Proximal operator proxf1 of the Douglas-Rachford algorithm, that is the
+ * solution x of M.x = b with M = gamma * K + I. As M is symmetric positive
+ * definite and does not change during a fit, it is factorized once as L.L'
+ * (Cholesky) and every application of the operator only costs a forward and
+ * a back substitution.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class CholeskyProx {
+
+	/**
+	 * Dimension of the system
+	 */
+	private final int n;
+	/**
+	 * The lower triangular factor L, the upper part is unused
+	 */
+	private final double[][] L;
+	/**
+	 * The inverses of the diagonal of L
+	 */
+	private final double[] invDiag;
+	/**
+	 * Intermediate result of the forward substitution
+	 */
+	private final double[] y;
+	/**
+	 * True once a matrix has been factorized
+	 */
+	private boolean factored;
+
+	/**
+	 * Builds an operator for n x n systems
+	 *
+	 * @param n
+	 *            The dimension of the system
+	 */
+	public CholeskyProx(int n) {
+		this.n = n;
+		this.L = new double[n][n];
+		this.invDiag = new double[n];
+		this.y = new double[n];
+	}
+
+	/**
+	 * Factorizes the given matrix, replacing any previous factorization
+	 *
+	 * @param M
+	 *            A symmetric positive definite n x n matrix, only its lower
+	 *            part is read
+	 * @throws IllegalArgumentException
+	 *             If M is not positive definite
+	 */
+	public void factor(double[][] M) {
+		factored = false;
+		for (int j = 0; j < n; j++) {
+			double[] Lj = L[j];
+			double d = M[j][j];
+			for (int k = 0; k < j; k++)
+				d -= Lj[k] * Lj[k];
+			if (!(d > 0))
+				throw new IllegalArgumentException("Matrix is not positive definite");
+			Lj[j] = Math.sqrt(d);
+			invDiag[j] = 1 / Lj[j];
+			for (int i = j + 1; i < n; i++) {
+				double[] Li = L[i];
+				double s = M[i][j];
+				for (int k = 0; k < j; k++)
+					s -= Li[k] * Lj[k];
+				Li[j] = s * invDiag[j];
+			}
+		}
+		factored = true;
+	}
+
+	/**
+	 * Solves M.x = b with the cached factorization
+	 *
+	 * @param b
+	 *            The right-hand side, left untouched unless it is x itself
+	 * @param x
+	 *            Receives the solution, may be the same array as b
+	 */
+	public void solve(double[] b, double[] x) {
+		if (!factored)
+			throw new IllegalStateException("No matrix has been factorized");
+		// L.y = b
+		for (int i = 0; i < n; i++) {
+			double[] Li = L[i];
+			double s = b[i];
+			for (int k = 0; k < i; k++)
+				s -= Li[k] * y[k];
+			y[i] = s * invDiag[i];
+		}
+		// L'.x = y
+		for (int i = n - 1; i >= 0; i--) {
+			double s = y[i];
+			for (int k = i + 1; k < n; k++)
+				s -= L[k][i] * x[k];
+			x[i] = s * invDiag[i];
+		}
+	}
+
+	/**
+	 * Applies the cached factorization to many right-hand sides at once
+	 *
+	 * @param rhs
+	 *            The right-hand sides, one per row, each of length n. They
+	 *            are overwritten by the corresponding solutions
+	 */
+	public void solveAll(double[][] rhs) {
+		for (double[] b : rhs)
+			solve(b, b);
+	}
+
+	/**
+	 * @return True if a matrix has been factorized
+	 */
+	public boolean isFactored() {
+		return factored;
+	}
+
+}
@@ -0,0 +1,805 @@
+package kovac.maths;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.enums.SolverVariant;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * Primitive implementation of the Douglas-Rachford ellipsoid fitting used by
+ * EllipsoidAlgorithm. Every buffer needed by the iterations is allocated once
+ * when the solver is built, so that running the algorithm does not create any
+ * object apart from the final QuadricExpression. The iterations stop once the
+ * relative change of p and the primal residual both fall under the tolerance,
+ * or when the iteration cap is reached. A solver is not thread-safe, but can be
+ * reused for as many fits as needed.
+ * <p>
+ * Besides the plain iteration, the solver implements the variants of
+ * SolverVariant : over-relaxation, Anderson acceleration (type II, restarted
+ * whenever the fixed-point residual grows) and residual balancing of gamma,
+ * which refactors M every time gamma changes.
+ * <p>
+ * Unless disabled in the options, K is computed for the centered points
+ * scaled to a root mean square radius of sqrt(3), and the quadric is scaled
+ * back exactly before being translated : the problem solved is the same, but
+ * M is as well conditioned for a 400 voxel nucleus as for a 5 voxel one.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class DouglasRachfordSolver implements EllipsoidFitter {
+
+	/**
+	 * The parameters of the fits
+	 */
+	private final FitOptions options;
+	/**
+	 * Parameter for Douglas-Rachford in ]0,+infty[
+	 */
+	private final double gamma;
+	/**
+	 * Maximum number of iterations of the algorithm
+	 */
+	private final int maxIterations;
+	/**
+	 * Relative tolerance on the change of p and on the primal residual, 0 to
+	 * always run maxIterations iterations
+	 */
+	private final double tolerance;
+	/**
+	 * The origin of the frame the quadrics are expressed in
+	 */
+	private final double[] origin;
+	/**
+	 * The variant of the iteration
+	 */
+	private final SolverVariant variant;
+	/**
+	 * Relaxation parameter of the Relaxed variant
+	 */
+	private final double relaxation;
+	/**
+	 * True to scale the centered points before the iterations
+	 */
+	private final boolean normalized;
+	/**
+	 * The gamma M is currently factored for, only differs from gamma with the
+	 * AdaptiveGamma variant
+	 */
+	private double currentGamma;
+
+	/**
+	 * The AdaptiveGamma variant compares the residuals every ADAPT_PERIOD
+	 * iterations, and changes gamma by ADAPT_FACTOR when one is more than
+	 * ADAPT_RATIO times the other. Gamma is left fixed after ADAPT_LIMIT
+	 * changes so that the iterations still converge
+	 */
+	private static final int ADAPT_PERIOD = 10;
+	private static final double ADAPT_RATIO = 10;
+	private static final double ADAPT_FACTOR = 2;
+	private static final int ADAPT_LIMIT = 20;
+
+	// Statistics of the last fit
+
+	private int iterations;
+	private double residual;
+	private ExitReason exitReason;
+
+	// Scratch buffers, named after the variables of the original Matlab code
+
+	private final double[] p = new double[10];
+	private final double[] q = new double[10];
+	private final double[] qPrev = new double[10];
+	private final double[] r = new double[10];
+	private final double[] d = new double[10];
+	private final double[][] K = new double[10][10];
+	private final double[][] M = new double[10][10];
+	private final CholeskyProx prox = new CholeskyProx(10);
+	private final ScatterAccumulator pointScatter = new ScatterAccumulator();
+	private final double[] c = new double[3];
+	private final double[][] Q = new double[3][3];
+	private final double[][] U = new double[3][3];
+	private final double[][] jacobi = new double[3][3];
+	private final double[] s = new double[3];
+	private final double[] sorted = new double[3];
+	/**
+	 * Factor of each monomial for the scaled points, and the scale itself
+	 */
+	private final double[] w = { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 };
+	private double scale = 1;
+
+	// History of the Anderson variant, as circular buffers of the differences
+	// of the residuals f = T(p) - p and of the images T(p)
+
+	private final int depth;
+	private final double[][] dF;
+	private final double[][] dG;
+	private final double[] fPrev;
+	private final double[] gPrev;
+	private final double[][] A;
+	private final double[] alpha;
+	private int history;
+	private int next;
+	private double normFPrev;
+	private double normFBest;
+	private int sinceBest;
+
+	/**
+	 * Number of iterations without any improvement of the residual after
+	 * which the Anderson variant falls back to the plain iteration for the
+	 * rest of the fit
+	 */
+	private static final int ANDERSON_STALL = 50;
+
+	// State kept between two fits to warm start the next one
+
+	private final double[] cPrev = new double[3];
+	private double scalePrev = 1;
+	private boolean hasIterate;
+	private ScatterAccumulator lastScatter;
+	private int lastVersion;
+
+	/**
+	 * Builds a solver with the default parameters (gamma = 0.01, at most 100
+	 * iterations, tolerance 1e-6)
+	 */
+	public DouglasRachfordSolver() {
+		this(FitOptions.DEFAULT);
+	}
+
+	/**
+	 * Builds a solver running a fixed number of iterations
+	 *
+	 * @param gamma
+	 *            Parameter for Douglas-Rachford, must be strictly positive
+	 * @param nbIterations
+	 *            Number of iterations of the algorithm
+	 */
+	public DouglasRachfordSolver(double gamma, int nbIterations) {
+		this(gamma, nbIterations, 0);
+	}
+
+	/**
+	 * Builds a solver with the given parameters
+	 *
+	 * @param gamma
+	 *            Parameter for Douglas-Rachford, must be strictly positive
+	 * @param maxIterations
+	 *            Maximum number of iterations of the algorithm
+	 * @param tolerance
+	 *            Relative tolerance on the change of p and on the primal
+	 *            residual, 0 to always run maxIterations iterations
+	 */
+	public DouglasRachfordSolver(double gamma, int maxIterations, double tolerance) {
+		this(FitOptions.DEFAULT.withGamma(gamma).withConvergence(maxIterations, tolerance));
+	}
+
+	/**
+	 * Builds a solver with the given options
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public DouglasRachfordSolver(FitOptions options) {
+		this.options = options;
+		this.gamma = options.getGamma();
+		this.maxIterations = options.getMaxIterations();
+		this.tolerance = options.getTolerance();
+		this.origin = options.getOrigin();
+		this.variant = options.getVariant();
+		this.relaxation = options.getRelaxation();
+		this.normalized = options.isNormalized();
+		this.currentGamma = gamma;
+		this.depth = variant == SolverVariant.Anderson ? options.getAndersonDepth() : 0;
+		this.dF = new double[depth][10];
+		this.dG = new double[depth][10];
+		this.fPrev = new double[10];
+		this.gPrev = new double[10];
+		this.A = new double[depth][depth];
+		this.alpha = new double[depth];
+	}
+
+	@Override
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Fits an ellipsoid to the given points, the quadric is expressed relatively
+	 * to the origin of the options
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The quadratic expression of the fitting ellipsoid, along with
+	 *         the statistics of the solver
+	 */
+	public FitResult fit(double[][] points) {
+		long start = System.nanoTime();
+		double[] coeffs = new double[10];
+		fit(points, coeffs);
+		return new FitResult(new QuadricExpression(coeffs), iterations, residual, System.nanoTime() - start,
+				exitReason);
+	}
+
+	/**
+	 * Fits an ellipsoid to the given points and writes its 10 coefficients,
+	 * relative to the origin of the options, in the given array
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @param result
+	 *            An array of length 10 receiving the coefficients
+	 * @return The number of iterations run, see also getExitReason() and
+	 *         getResidual()
+	 */
+	public int fit(double[][] points, double[] result) {
+		if (result.length != 10)
+			throw new IllegalArgumentException("Needs 10 factors to build a QuadricExpression");
+		int n = points[0].length;
+		if (n < 2)
+			throw new IllegalArgumentException("Needs at least 2 points to fit an ellipsoid");
+
+		// The moments of the points, summed in a single pass, give their
+		// center of mass, their variances and K for the centered points
+		buildK(points);
+		pointScatter.getCenterOfMass(c);
+		pointScatter.getK(c, K);
+		double avgRadius = pointScatter.getAverageRadius();
+		for (int i = 0; i < 3; i++)
+			c[i] -= origin[i];
+		return solve(avgRadius, result);
+	}
+
+	/**
+	 * Fits an ellipsoid to the points accumulated in a ScatterAccumulator, the
+	 * quadric is expressed relatively to the origin of the options. The cost
+	 * does not depend on the number of points
+	 *
+	 * @param scatter
+	 *            The accumulated points
+	 * @return The quadratic expression of the fitting ellipsoid, along with
+	 *         the statistics of the solver
+	 */
+	public FitResult fit(ScatterAccumulator scatter) {
+		long start = System.nanoTime();
+		double[] coeffs = new double[10];
+		fit(scatter, coeffs);
+		return new FitResult(new QuadricExpression(coeffs), iterations, residual, System.nanoTime() - start,
+				exitReason);
+	}
+
+	/**
+	 * Fits an ellipsoid to the points accumulated in a ScatterAccumulator and
+	 * writes its 10 coefficients in the given array
+	 *
+	 * @param scatter
+	 *            The accumulated points
+	 * @param result
+	 *            An array of length 10 receiving the coefficients
+	 * @return The number of iterations run
+	 */
+	public int fit(ScatterAccumulator scatter, double[] result) {
+		return fit(scatter, result, false);
+	}
+
+	/**
+	 * Fits an ellipsoid to the points of a ScatterAccumulator, starting from
+	 * the last iterate of the previous fit of this solver. When only a few
+	 * points were added or removed since, the previous solution is close and
+	 * the algorithm converges in a few iterations
+	 *
+	 * @param scatter
+	 *            The accumulated points
+	 * @return The quadratic expression of the fitting ellipsoid, along with
+	 *         the statistics of the solver
+	 */
+	public FitResult refit(ScatterAccumulator scatter) {
+		long start = System.nanoTime();
+		double[] coeffs = new double[10];
+		fit(scatter, coeffs, true);
+		return new FitResult(new QuadricExpression(coeffs), iterations, residual, System.nanoTime() - start,
+				exitReason);
+	}
+
+	/**
+	 * Fits an ellipsoid to the points accumulated in a ScatterAccumulator and
+	 * writes its 10 coefficients in the given array
+	 *
+	 * @param scatter
+	 *            The accumulated points
+	 * @param result
+	 *            An array of length 10 receiving the coefficients
+	 * @param warmStart
+	 *            True to start from the last iterate of the previous fit (if
+	 *            any), false to start from the sphere given by getQ0
+	 * @return The number of iterations run
+	 */
+	public int fit(ScatterAccumulator scatter, double[] result, boolean warmStart) {
+		if (result.length != 10)
+			throw new IllegalArgumentException("Needs 10 factors to build a QuadricExpression");
+		if (scatter.size() < 2)
+			throw new IllegalArgumentException("Needs at least 2 points to fit an ellipsoid");
+		if (scatter == lastScatter && scatter.getVersion() == lastVersion) {
+			// Same points as the previous fit : c, K and the factor of M are
+			// still valid
+			return solve(scatter.getAverageRadius(), result, warmStart, false);
+		}
+		// K is computed for the points centered on their center of mass
+		scatter.getCenterOfMass(c);
+		scatter.getK(c, K);
+		for (int i = 0; i < 3; i++)
+			c[i] -= origin[i];
+		int res = solve(scatter.getAverageRadius(), result, warmStart, true);
+		lastScatter = scatter;
+		lastVersion = scatter.getVersion();
+		return res;
+	}
+
+	/**
+	 * Runs the iterations once K and the center of mass c are known
+	 */
+	private int solve(double avgRadius, double[] result) {
+		lastScatter = null;
+		return solve(avgRadius, result, false, true);
+	}
+
+	/**
+	 * Runs the iterations once K and the center of mass c are known
+	 *
+	 * @param warmStart
+	 *            True to start from the last iterate, moved to the new
+	 *            center of mass
+	 * @param newM
+	 *            True if M must be rebuilt from K
+	 */
+	private int solve(double avgRadius, double[] result, boolean warmStart, boolean newM) {
+		if (newM)
+			normalize(avgRadius);
+		if (newM || currentGamma != gamma) {
+			currentGamma = gamma;
+			buildM();
+		}
+		history = 0;
+		next = 0;
+		normFPrev = Double.POSITIVE_INFINITY;
+		normFBest = Double.POSITIVE_INFINITY;
+		sinceBest = 0;
+		int adaptations = 0;
+		if (warmStart && hasIterate) {
+			// p was centered on cPrev and scaled by scalePrev, so the new
+			// p(y) is p(y + c - cPrev), then scaled again
+			translate(p, (c[0] - cPrev[0]) * scalePrev, (c[1] - cPrev[1]) * scalePrev,
+					(c[2] - cPrev[2]) * scalePrev, p);
+			rescale(p, scale / scalePrev);
+		} else {
+			buildQ0(avgRadius * scale * scale);
+		}
+
+		iterations = 0;
+		residual = Double.NaN;
+		exitReason = ExitReason.MaxIterations;
+		// Makes sure q is defined even if no iteration is run
+		System.arraycopy(p, 0, q, 0, 10);
+		while (iterations < maxIterations) {
+			// q = proxf2(p)
+			System.arraycopy(q, 0, qPrev, 0, 10);
+			System.arraycopy(p, 0, q, 0, 10);
+			proxf2(q);
+			// p = p + proxf1(M, 2q - p) - q, using the cached factor of M
+			for (int i = 0; i < 10; i++)
+				r[i] = 2 * q[i] - p[i];
+			prox.solve(r, d);
+			double normQ = 0, deltaQ = 0, primal = 0;
+			for (int i = 0; i < 10; i++) {
+				// The two proximal points coincide at the solution
+				double delta = d[i] - q[i];
+				double change = q[i] - qPrev[i];
+				normQ += q[i] * q[i];
+				deltaQ += change * change;
+				primal += delta * delta;
+			}
+			iterations++;
+			normQ = Math.max(normQ, Double.MIN_NORMAL);
+			double change = Math.sqrt(deltaQ / normQ);
+			residual = Math.sqrt(primal / normQ);
+			if (Double.isNaN(change) || Double.isInfinite(change) || Double.isNaN(residual)) {
+				exitReason = ExitReason.NotFinite;
+				break;
+			}
+			if (change <= tolerance && residual <= tolerance) {
+				exitReason = ExitReason.Converged;
+				break;
+			}
+
+			switch (variant) {
+			case Relaxed:
+				for (int i = 0; i < 10; i++)
+					p[i] += relaxation * (d[i] - q[i]);
+				break;
+			case Anderson:
+				andersonStep(Math.sqrt(primal));
+				break;
+			case AdaptiveGamma:
+				double ratio = 1;
+				if (adaptations < ADAPT_LIMIT && iterations % ADAPT_PERIOD == 0) {
+					// The change of q scaled by 1/gamma plays the part of the
+					// dual residual
+					double dual = change / currentGamma;
+					if (residual > ADAPT_RATIO * dual)
+						ratio = 1 / ADAPT_FACTOR;
+					else if (dual > ADAPT_RATIO * residual)
+						ratio = ADAPT_FACTOR;
+				}
+				// p - q is gamma times a subgradient of f2 at q, which is
+				// kept when gamma changes
+				for (int i = 0; i < 10; i++)
+					p[i] = d[i] + ratio * (p[i] - q[i]);
+				if (ratio != 1) {
+					adaptations++;
+					currentGamma *= ratio;
+					buildM();
+				}
+				break;
+			default:
+				for (int i = 0; i < 10; i++)
+					p[i] += d[i] - q[i];
+			}
+		}
+		proxf2(q);
+		System.arraycopy(c, 0, cPrev, 0, 3);
+		scalePrev = scale;
+		hasIterate = exitReason != ExitReason.NotFinite;
+
+		decenter(result);
+		return iterations;
+	}
+
+	/**
+	 * One step of Anderson acceleration on the fixed-point map T(p) = p + d -
+	 * q : the next p is the combination of the last images T(p) whose
+	 * residuals best cancel out, in the least squares sense. When the residual
+	 * grows, the history is dropped and the iteration restarts from the plain
+	 * step of the last accepted point
+	 *
+	 * @param normF
+	 *            The norm of the current residual d - q
+	 */
+	private void andersonStep(double normF) {
+		if (normF < normFBest) {
+			normFBest = normF;
+			sinceBest = 0;
+		} else if (sinceBest > ANDERSON_STALL) {
+			// The projection of proxf2 is not euclidean in the coefficients
+			// space, so the residual is not a reliable merit function and
+			// the extrapolation may cycle : the plain iteration always
+			// converges
+			for (int i = 0; i < 10; i++)
+				p[i] += d[i] - q[i];
+			return;
+		} else {
+			sinceBest++;
+		}
+		if (history > 0 && normF > normFPrev) {
+			// The extrapolated point is worse than the previous one : it is
+			// dropped for the plain image of the previous point, which is
+			// accepted whatever its residual
+			history = 0;
+			System.arraycopy(gPrev, 0, p, 0, 10);
+			return;
+		}
+		boolean restart = normFPrev == Double.POSITIVE_INFINITY;
+		for (int i = 0; i < 10; i++) {
+			double f = d[i] - q[i];
+			double g = p[i] + f;
+			if (!restart) {
+				dF[next][i] = f - fPrev[i];
+				dG[next][i] = g - gPrev[i];
+			}
+			fPrev[i] = f;
+			gPrev[i] = g;
+			p[i] = g;
+		}
+		if (!restart) {
+			next = (next + 1) % depth;
+			history = Math.min(history + 1, depth);
+		}
+		normFPrev = normF;
+		if (history == 0)
+			return;
+
+		// Normal equations dF'.dF.alpha = dF'.f, slightly regularized
+		int first = (next - history + depth) % depth;
+		double trace = 0;
+		for (int a = 0; a < history; a++) {
+			int ia = (first + a) % depth;
+			for (int b = 0; b <= a; b++) {
+				int ib = (first + b) % depth;
+				double sum = 0;
+				for (int i = 0; i < 10; i++)
+					sum += dF[ia][i] * dF[ib][i];
+				A[a][b] = A[b][a] = sum;
+			}
+			trace += A[a][a];
+			double sum = 0;
+			for (int i = 0; i < 10; i++)
+				sum += dF[ia][i] * fPrev[i];
+			alpha[a] = sum;
+		}
+		double reg = 1e-10 * trace + Double.MIN_NORMAL;
+		for (int a = 0; a < history; a++)
+			A[a][a] += reg;
+		if (!solveInPlace(A, alpha, history))
+			return;
+
+		for (int a = 0; a < history; a++) {
+			int ia = (first + a) % depth;
+			for (int i = 0; i < 10; i++)
+				r[i] = (a == 0 ? p[i] : r[i]) - alpha[a] * dG[ia][i];
+		}
+		for (int i = 0; i < 10; i++) {
+			if (Double.isNaN(r[i]) || Double.isInfinite(r[i]))
+				return;
+		}
+		System.arraycopy(r, 0, p, 0, 10);
+	}
+
+	/**
+	 * Solves the n x n symmetric positive definite system A.x = b with a
+	 * Cholesky decomposition, A is overwritten and b receives x
+	 *
+	 * @return False if A is not positive definite
+	 */
+	private static boolean solveInPlace(double[][] A, double[] b, int n) {
+		for (int j = 0; j < n; j++) {
+			double sum = A[j][j];
+			for (int k = 0; k < j; k++)
+				sum -= A[j][k] * A[j][k];
+			if (!(sum > 0))
+				return false;
+			A[j][j] = Math.sqrt(sum);
+			for (int i = j + 1; i < n; i++) {
+				double s = A[i][j];
+				for (int k = 0; k < j; k++)
+					s -= A[i][k] * A[j][k];
+				A[i][j] = s / A[j][j];
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			double sum = b[i];
+			for (int k = 0; k < i; k++)
+				sum -= A[i][k] * b[k];
+			b[i] = sum / A[i][i];
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			double sum = b[i];
+			for (int k = i + 1; k < n; k++)
+				sum -= A[k][i] * b[k];
+			b[i] = sum / A[i][i];
+		}
+		return true;
+	}
+
+	/**
+	 * @return The value of gamma at the end of the last fit, which differs
+	 *         from the one of the options only with the AdaptiveGamma variant
+	 */
+	public double getFinalGamma() {
+		return currentGamma;
+	}
+
+	/**
+	 * Forgets the last iterate, so that the next warm started fit starts from
+	 * the initial sphere
+	 */
+	public void resetIterate() {
+		hasIterate = false;
+	}
+
+	/**
+	 * @return The number of iterations run by the last fit
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return The relative primal residual at the last iteration of the last
+	 *         fit
+	 */
+	public double getResidual() {
+		return residual;
+	}
+
+	/**
+	 * @return Why the last fit stopped
+	 */
+	public ExitReason getExitReason() {
+		return exitReason;
+	}
+
+	/**
+	 * Accumulates the moments of the points without building the design
+	 * matrix D, K = D.D' following from them
+	 */
+	private void buildK(double[][] points) {
+		pointScatter.clear();
+		pointScatter.addAll(points);
+	}
+
+	/**
+	 * Scales K for the centered points multiplied by a factor chosen so that
+	 * their root mean square distance to the center of mass is sqrt(3), as in
+	 * the normalization of Hartley. K then holds terms of the same magnitude
+	 * whatever the size of the nucleus, instead of mixing x^4 with 1
+	 */
+	private void normalize(double avgRadius) {
+		scale = normalized && avgRadius > 0 && !Double.isInfinite(avgRadius) ? Math.sqrt(3 / avgRadius) : 1;
+		for (int i = 0; i < 10; i++)
+			w[i] = i < 6 ? scale * scale : i < 9 ? scale : 1;
+		if (scale == 1)
+			return;
+		for (int i = 0; i < 10; i++)
+			for (int j = 0; j < 10; j++)
+				K[i][j] *= w[i] * w[j];
+	}
+
+	/**
+	 * Expresses a quadric of the points scaled by some factor for the points
+	 * scaled by another one, keeping its quadratic part
+	 *
+	 * @param ratio
+	 *            The new factor divided by the previous one
+	 */
+	private static void rescale(double[] q, double ratio) {
+		for (int i = 6; i < 9; i++)
+			q[i] *= ratio;
+		q[9] *= ratio * ratio;
+	}
+
+	/**
+	 * M = gamma * K + I, factorized once for all the iterations
+	 */
+	private void buildM() {
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j < 10; j++)
+				M[i][j] = currentGamma * K[i][j];
+			M[i][i] += 1;
+		}
+		prox.factor(M);
+	}
+
+	/**
+	 * Initializes p with the sphere built from the center of mass and the
+	 * variance of the (centered) points
+	 */
+	private void buildQ0(double avgRadius) {
+		// The points are centered, so the center of mass is the origin
+		p[0] = p[1] = p[2] = 1.0 / 3.0;
+		p[3] = p[4] = p[5] = 0;
+		p[6] = p[7] = p[8] = 0;
+		p[9] = -avgRadius / 3.0;
+	}
+
+	/**
+	 * Projects the quadratic part of q on the set of positive semi-definite
+	 * matrices of unit trace, in place
+	 *
+	 * @param q
+	 *            The 10 coefficients, the last four are left untouched
+	 */
+	private void proxf2(double[] q) {
+		Q[0][0] = q[0];
+		Q[0][1] = Q[1][0] = q[3] / 2;
+		Q[0][2] = Q[2][0] = q[4] / 2;
+		Q[1][1] = q[1];
+		Q[1][2] = Q[2][1] = q[5] / 2;
+		Q[2][2] = q[2];
+
+		SymmetricEigen3.decompose(Q, s, U, jacobi);
+		projsplx(s, sorted);
+		SymmetricEigen3.reconstruct(U, s, q);
+	}
+
+	/**
+	 * Brings the quadric found for the centered and scaled points back to the
+	 * frame of the points : the monomials of the scaled points are those of
+	 * the points multiplied by w, the trace of the quadratic part is set back
+	 * to 1 and the quadric is translated
+	 */
+	private void decenter(double[] result) {
+		for (int i = 0; i < 10; i++)
+			result[i] = q[i] * w[i];
+		if (scale != 1) {
+			double trace = result[0] + result[1] + result[2];
+			for (int i = 0; i < 10; i++)
+				result[i] /= trace;
+		}
+		translate(result, -c[0], -c[1], -c[2], result);
+	}
+
+	/**
+	 * Computes the coefficients of the translated quadric x -> q(x + t)
+	 *
+	 * @param q
+	 *            The 10 coefficients of the quadric
+	 * @param tx
+	 *            X coordinate of the translation
+	 * @param ty
+	 *            Y coordinate of the translation
+	 * @param tz
+	 *            Z coordinate of the translation
+	 * @param result
+	 *            Receives the 10 translated coefficients, may be q itself
+	 */
+	public static void translate(double[] q, double tx, double ty, double tz, double[] result) {
+		double r6 = q[6] + 2 * q[0] * tx + q[3] * ty + q[4] * tz;
+		double r7 = q[7] + 2 * q[1] * ty + q[3] * tx + q[5] * tz;
+		double r8 = q[8] + 2 * q[2] * tz + q[4] * tx + q[5] * ty;
+		double r9 = q[9] + q[0] * (tx * tx) + q[1] * (ty * ty) + q[2] * (tz * tz) + q[3] * tx * ty + q[4] * tx * tz
+				+ q[5] * ty * tz + q[6] * tx + q[7] * ty + q[8] * tz;
+		for (int i = 0; i < 6; i++)
+			result[i] = q[i];
+		result[6] = r6;
+		result[7] = r7;
+		result[8] = r8;
+		result[9] = r9;
+	}
+
+	/**
+	 * Primitive version of EllipsoidAlgorithm.projsplx : projects y on the
+	 * simplex, in place
+	 *
+	 * @param y
+	 *            An input n-dimension vector, overwritten by the result
+	 * @param work
+	 *            A scratch array at least as long as y
+	 * @return y
+	 */
+	public static double[] projsplx(double[] y, double[] work) {
+		int m = y.length;
+		System.arraycopy(y, 0, work, 0, m);
+		// Insertion sort in decreasing order, the vectors are very small
+		for (int i = 1; i < m; i++) {
+			double v = work[i];
+			int j = i - 1;
+			while (j >= 0 && work[j] < v) {
+				work[j + 1] = work[j];
+				j--;
+			}
+			work[j + 1] = v;
+		}
+
+		boolean bget = false;
+		double tmpSum = 0;
+		double tMax = 0;
+		for (int i = 0; i < m - 1; i++) {
+			tmpSum += work[i];
+			tMax = (tmpSum - 1) / (i + 1);
+			if (tMax >= work[i + 1]) {
+				bget = true;
+				break;
+			}
+		}
+		if (!bget) {
+			tMax = (tmpSum + work[m - 1] - 1) / m;
+		}
+		for (int i = 0; i < m; i++) {
+			y[i] = Math.max(y[i] - tMax, 0);
+		}
+		return y;
+	}
+
+	/**
+	 * Primitive version of EllipsoidAlgorithm.projsplx : projects y on the
+	 * simplex, in place
+	 *
+	 * @param y
+	 *            An input n-dimension vector, overwritten by the result
+	 * @return y
+	 */
+	public static double[] projsplx(double[] y) {
+		return projsplx(y, new double[y.length]);
+	}
+
+}
@@ -7,15 +7,13 @@ import java.util.List;
 
 import org.apache.commons.lang.ArrayUtils;
 
-import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
-import Jama.SingularValueDecomposition;
 import icy.type.point.Point3D;
+import kovac.res.enums.RobustLoss;
 import kovac.res.quadric.QuadricExpression;
 import kovac.res.util.MathUtils;
 import kovac.res.util.ViewerUtil;
 import kovac.shapes.EllipsoidOverlay;
-import vtk.vtkPoints;
 
 /**
  * This class handles the generation of the ellipsoid fitting a set of given
@@ -33,61 +31,163 @@ public class EllipsoidAlgorithm {
 	// debug phase
 
 	/**
-	 * Parameter for Douglas-Rachford in ]0,+infty[
+	 * The parameters of the fit (gamma, iteration limits and origin shift)
 	 */
-	private static double gamma = 0.01;
+	private final FitOptions options;
 	/**
-	 * Number of iterations of the algorithm
+	 * The frame the quadric is expressed in, null if the algorithm was only
+	 * given options
 	 */
-	private static int nbIterations = 100;
+	private ReferenceFrame frame;
 	/**
-	 * The matrix representing the base points. It is a nbPoints x 3 matrix,
-	 * with each column representing a coordinate
+	 * The matrix representing the base points. It is a 3 x nbPoints matrix,
+	 * with each row representing a coordinate
 	 */
 	private Matrix basePoints;
+	/**
+	 * The accumulated scatter matrix of the points, used instead of
+	 * basePoints when the algorithm is built from a ScatterAccumulator
+	 */
+	private ScatterAccumulator scatter;
+	/**
+	 * Rejects the outliers before the fit, null for a plain least squares fit
+	 */
+	private RansacFitter ransac;
+	/**
+	 * Down-weights the outliers along the fit, null for a plain least squares
+	 * fit
+	 */
+	private IrlsFitter irls;
+	/**
+	 * Refines the fit on the euclidean distances, null to keep the algebraic
+	 * fit
+	 */
+	private GeometricRefiner refiner;
+	/**
+	 * Estimates the uncertainty of the fit, null to skip the estimation
+	 */
+	private BootstrapEstimator bootstrap;
+	/**
+	 * The confidence intervals of the last fit
+	 */
+	private BootstrapResult uncertainty;
 	/**
 	 * The quadratic equation of the ellipsoid
 	 */
 	private QuadricExpression quadricExpression;
 	/**
-	 * The characteristic matrix of the ellipsoid
+	 * The result of the last fit, with the statistics of the solver
 	 */
-	private Matrix matSR;
+	private FitResult fitResult;
 	/**
-	 * The vtk object representing the real center of the ellipsoid
+	 * The result of the fit before the geometric refinement, holding the
+	 * labels or weights of a robust fit
 	 */
-	private vtkPoints realCenter;
-	private static double[] c;
+	private FitResult algebraicResult;
+	/**
+	 * The result of the last fit of several ellipsoids
+	 */
+	private MultiFitResult multiFit;
 
 	/**
 	 * Builds a new EllipsoidAlgorithm from a given list of three dimensional
-	 * points
+	 * points, with the default options and the reference frame of the
+	 * viewers (origin shifted to the center of the image)
 	 * 
 	 * @param basePoints
 	 *            The base points
 	 */
 	public EllipsoidAlgorithm(List<Point3D> basePoints) {
+		this(basePoints, getViewerFrame(), FitOptions.DEFAULT);
+	}
+
+	/**
+	 * Builds a new EllipsoidAlgorithm from a given list of three dimensional
+	 * points, without relying on the viewers
+	 * 
+	 * @param basePoints
+	 *            The base points
+	 * @param frame
+	 *            The frame the quadric is expressed in
+	 * @param options
+	 *            The parameters of the fit, its origin is replaced by the one
+	 *            of the frame
+	 */
+	public EllipsoidAlgorithm(List<Point3D> basePoints, ReferenceFrame frame, FitOptions options) {
+		this(basePoints, frame.applyTo(options));
+		this.frame = frame;
+	}
+
+	/**
+	 * Builds a new EllipsoidAlgorithm from a given list of three dimensional
+	 * points
+	 * 
+	 * @param basePoints
+	 *            The base points
+	 * @param options
+	 *            The parameters of the fit
+	 */
+	public EllipsoidAlgorithm(List<Point3D> basePoints, FitOptions options) {
+		this.options = options;
 		this.basePoints = new Matrix(3, basePoints.size());
 		for (int i = 0; i < basePoints.size(); i++) {
 			this.basePoints.set(0, i, basePoints.get(i).getX());
 			this.basePoints.set(1, i, basePoints.get(i).getY());
 			this.basePoints.set(2, i, basePoints.get(i).getZ());
 		}
-		// We shift origin to the center of the image
-		double[] sizes;
+	}
+
+	/**
+	 * Builds a new EllipsoidAlgorithm from the scatter matrix of already
+	 * accumulated points, with the default options and the reference frame of
+	 * the viewers. The fit then does not depend on the number of points
+	 * 
+	 * @param scatter
+	 *            The accumulated points
+	 */
+	public EllipsoidAlgorithm(ScatterAccumulator scatter) {
+		this(scatter, getViewerFrame(), FitOptions.DEFAULT);
+	}
+
+	/**
+	 * Builds a new EllipsoidAlgorithm from the scatter matrix of already
+	 * accumulated points, without relying on the viewers
+	 * 
+	 * @param scatter
+	 *            The accumulated points
+	 * @param frame
+	 *            The frame the quadric is expressed in
+	 * @param options
+	 *            The parameters of the fit, its origin is replaced by the one
+	 *            of the frame
+	 */
+	public EllipsoidAlgorithm(ScatterAccumulator scatter, ReferenceFrame frame, FitOptions options) {
+		this(scatter, frame.applyTo(options));
+		this.frame = frame;
+	}
+
+	/**
+	 * Builds a new EllipsoidAlgorithm from the scatter matrix of already
+	 * accumulated points. The fit then does not depend on the number of points
+	 * 
+	 * @param scatter
+	 *            The accumulated points
+	 * @param options
+	 *            The parameters of the fit
+	 */
+	public EllipsoidAlgorithm(ScatterAccumulator scatter, FitOptions options) {
+		this.options = options;
+		this.scatter = scatter;
+	}
+
+	/**
+	 * @return The reference frame of the viewers if they are set, the identity
+	 *         frame if not
+	 */
+	public static ReferenceFrame getViewerFrame() {
 		if (ViewerUtil.areSet())
-			sizes = ViewerUtil.getSizes();
-		else
-			sizes = new double[] { 0, 0, 0 };
-		double[][] shifting = new double[3][basePoints.size()];
-		for (int i = 0; i < 3; i++) {
-			for (int j = 0; j < basePoints.size(); j++) {
-				shifting[i][j] = (sizes[i] / 2);
-			}
-		}
-		Matrix shiftMat = new Matrix(shifting);
-		this.basePoints = this.basePoints.minus(shiftMat);
-		this.basePoints.print(3, 4);
+			return ViewerUtil.getReferenceFrame();
+		return ReferenceFrame.IDENTITY;
 	}
 
 	public static Matrix getQ0(Matrix baseMatrix) {
@@ -104,10 +204,68 @@ public class EllipsoidAlgorithm {
 	}
 
 	/**
-	 * Implements the Douglas-Rachford algorithm
+	 * Fits the ellipsoid with the engine of the options, by default the
+	 * allocation-free DouglasRachfordSolver
 	 */
 	private void douglasRachford() {
-		c = MathUtils.getCenterOfMass(basePoints);
+		if (ransac != null) {
+			try {
+				fitResult = ransac.fit(basePoints.getArray());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted during the robust fit", e);
+			}
+		} else if (irls != null) {
+			fitResult = irls.fit(basePoints.getArray());
+		} else {
+			EllipsoidFitter fitter = EllipsoidFitting.newFitter(options);
+			if (scatter != null)
+				fitResult = fitter.fit(scatter);
+			else
+				fitResult = fitter.fit(basePoints.getArray());
+		}
+		algebraicResult = fitResult;
+		uncertainty = null;
+		if (refiner != null)
+			refine();
+		quadricExpression = fitResult.getQuadric();
+	}
+
+	/**
+	 * Refines the algebraic fit on the euclidean distances, the points
+	 * rejected or down-weighted by a robust fit keeping their weight
+	 */
+	private void refine() {
+		double[] weights = null;
+		if (fitResult instanceof RobustFitResult) {
+			boolean[] inliers = ((RobustFitResult) fitResult).getInliers();
+			weights = new double[inliers.length];
+			for (int j = 0; j < inliers.length; j++)
+				weights[j] = inliers[j] ? 1 : 0;
+		} else if (fitResult instanceof IrlsFitResult) {
+			weights = ((IrlsFitResult) fitResult).getWeights();
+		}
+		try {
+			RefinedFitResult refined = refiner.refine(fitResult.getQuadric(), basePoints.getArray(), weights);
+			if (refined.getParameters() != null)
+				fitResult = refined;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during the geometric refinement", e);
+		}
+	}
+
+	/**
+	 * Implements the Douglas-Rachford algorithm with Jama matrices. This is the
+	 * reference implementation, kept to validate DouglasRachfordSolver. It
+	 * always runs the maximum number of iterations of the options
+	 * 
+	 * @return The quadratic expression of the fitting ellipsoid
+	 */
+	public QuadricExpression getReferenceQuadric() {
+		if (basePoints == null)
+			throw new IllegalStateException("The reference implementation needs the base points");
+		double[] c = MathUtils.getCenterOfMass(basePoints);
 		// We recenter to center of mass
 		double[][] shifting = new double[3][basePoints.getColumnDimension()];
 		for (int i = 0; i < 3; i++) {
@@ -115,19 +273,19 @@ public class EllipsoidAlgorithm {
 				shifting[i][j] = c[i];
 			}
 		}
-		basePoints = basePoints.minus(new Matrix(shifting));
-		Matrix K = getK(basePoints);
-		Matrix M = getM(K);
-		Matrix p = getQ0(basePoints);
+		Matrix centeredPoints = basePoints.minus(new Matrix(shifting));
+		Matrix K = getK(centeredPoints);
+		Matrix M = getM(K, options.getGamma());
+		Matrix p = getQ0(centeredPoints);
 		Matrix q = null;
-		for (int i = 0; i < nbIterations; i++) {
+		for (int i = 0; i < options.getMaxIterations(); i++) {
 			q = proxf2(p);
 			p = p.plus(proxf1(M, q.times(2).minus(p))).minus(q);
 		}
 		q = proxf2(q);
-		// We decenter
+		// We decenter, to the origin of the options
 		for (int i = 0 ; i < c.length ; i++) {
-			c[i] = -c[i];
+			c[i] = options.getOrigin(i) - c[i];
 		}
 		
 		double[][] decenter = new double[][] { { 0 }, { 0 }, { 0 }, { 0 }, { 0 }, { 0 },
@@ -138,7 +296,7 @@ public class EllipsoidAlgorithm {
 						+ q.get(3, 0) * c[0] * c[1] + q.get(4, 0) * c[0] * c[2] + q.get(5, 0) * c[1] * c[2]
 						+ q.get(6, 0) * c[0] + q.get(7, 0) * c[1] + q.get(8, 0) * c[2] } };
 		q = q.plus(new Matrix(decenter));
-		quadricExpression = new QuadricExpression(q);
+		return new QuadricExpression(q);
 	}
 
 	/**
@@ -162,55 +320,21 @@ public class EllipsoidAlgorithm {
 	 * @return a vector column
 	 */
 	public static Matrix proxf2(Matrix q0) {
-		Matrix Q0 = new Matrix(3, 3);
-		double[] arrayCopy = q0.getColumnPackedCopy();
-
-		// Initialize q0
-		Q0.set(0, 0, arrayCopy[0]);
-		Q0.set(0, 1, arrayCopy[3] / 2);
-		Q0.set(0, 2, arrayCopy[4] / 2);
-
-		Q0.set(1, 0, arrayCopy[3] / 2);
-		Q0.set(1, 1, arrayCopy[1]);
-		Q0.set(1, 2, arrayCopy[5] / 2);
-
-		Q0.set(2, 0, arrayCopy[4] / 2);
-		Q0.set(2, 1, arrayCopy[5] / 2);
-		Q0.set(2, 2, arrayCopy[2]);
-
-		EigenvalueDecomposition eig = new EigenvalueDecomposition(Q0);
-
-		Matrix U = eig.getV();
-		Matrix S0 = eig.getD();
-
-		// Diagonalize s0
-		Matrix s0 = diag(S0);
-		// Use projsplx on diagS0
-		List<Double> asList = new ArrayList<Double>(Arrays.asList(ArrayUtils.toObject(s0.getColumnPackedCopy())));
+		double[] q = q0.getColumnPackedCopy();
+		double[][] Q0 = { { q[0], q[3] / 2, q[4] / 2 }, { q[3] / 2, q[1], q[5] / 2 }, { q[4] / 2, q[5] / 2, q[2] } };
+		double[][] U = new double[3][3];
+		double[] s0 = new double[3];
+		SymmetricEigen3.decompose(Q0, s0, U);
+
+		// Use projsplx on the eigenvalues
+		List<Double> asList = new ArrayList<Double>(Arrays.asList(ArrayUtils.toObject(s0)));
 		List<Double> result = projsplx(asList);
-		Matrix s = new Matrix(result.size(), 1);
-		for (int i = 0; i < result.size(); i++)
-			s.set(i, 0, result.get(i));
-
-		// Diag s
-		Matrix S = diag(s);
-		Matrix Q = U.times(S.times(U.transpose()));
-
-		// Initialize final result
-		Matrix q = new Matrix(q0.getRowDimension(), 1);
-
-		q.set(0, 0, Q.get(0, 0));
-		q.set(1, 0, Q.get(1, 1));
-		q.set(2, 0, Q.get(2, 2));
-		q.set(3, 0, 2 * Q.get(1, 0));
-		q.set(4, 0, 2 * Q.get(2, 0));
-		q.set(5, 0, 2 * Q.get(2, 1));
-
-		for (int i = 6; i < q0.getRowDimension(); i++) {
-			q.set(i, 0, q0.get(i, 0));
-		}
+		for (int i = 0; i < 3; i++)
+			s0[i] = result.get(i);
 
-		return q;
+		// Q = U.S.U', written directly in the quadratic coefficients
+		SymmetricEigen3.reconstruct(U, s0, q);
+		return new Matrix(q, q.length);
 
 	}
 
@@ -247,6 +371,19 @@ public class EllipsoidAlgorithm {
 	 *         as parameters
 	 */
 	public static Matrix getK(Matrix basePoints) {
+		return getK(basePoints, null);
+	}
+
+	/**
+	 * @param basePoints
+	 *            The points, as a 3 x nbPoints matrix
+	 * @param weights
+	 *            The weight of each point, null for unit weights
+	 * @return The weighted K matrix D.W.D' of the points
+	 */
+	public static Matrix getK(Matrix basePoints, double[] weights) {
+		if (weights != null && weights.length != basePoints.getColumnDimension())
+			throw new IllegalArgumentException("Needs one weight per point");
 		// Initialize Matrix
 		Matrix D = new Matrix(10, basePoints.getColumnDimension());
 		for (int i = 0; i < basePoints.getColumnDimension(); i++) {
@@ -268,8 +405,14 @@ public class EllipsoidAlgorithm {
 			// Gamma coefficient
 			D.set(9, i, 1);
 		}
+		if (weights == null)
+			return D.times(D.transpose());
 		// Return K
-		return D.times(D.transpose());
+		Matrix WD = D.copy();
+		for (int i = 0; i < basePoints.getColumnDimension(); i++)
+			for (int j = 0; j < 10; j++)
+				WD.set(j, i, WD.get(j, i) * weights[i]);
+		return WD.times(D.transpose());
 	}
 
 	/**
@@ -310,7 +453,21 @@ public class EllipsoidAlgorithm {
 		return y;
 	}
 
+	/**
+	 * @return M = gamma * K + I, with the default gamma
+	 */
 	public static Matrix getM(Matrix K) {
+		return getM(K, FitOptions.DEFAULT.getGamma());
+	}
+
+	/**
+	 * @param K
+	 *            The K matrix of the points
+	 * @param gamma
+	 *            Parameter for Douglas-Rachford
+	 * @return M = gamma * K + I
+	 */
+	public static Matrix getM(Matrix K, double gamma) {
 		Matrix identity = new Matrix(K.getRowDimension(), K.getColumnDimension());
 		for (int i = 0; i < identity.getRowDimension(); i++) {
 			identity.set(i, i, 1);
@@ -320,65 +477,184 @@ public class EllipsoidAlgorithm {
 	}
 
 	/**
-	 * Quadratic coefficients to parameters
+	 * @return The factorized M = gamma * K + I, with the default gamma
 	 */
-	@SuppressWarnings("unused")
-	private void getRealParameters() {
-		this.realCenter = new vtkPoints();
-		this.matSR = new Matrix(3, 3);
-		double[] arrayQ = quadricExpression.getSimpleArray();
+	public static CholeskyProx getFactoredM(Matrix K) {
+		return getFactoredM(K, FitOptions.DEFAULT.getGamma());
+	}
 
-		// Initialize matrix
-		matSR.set(0, 0, arrayQ[0]);
-		matSR.set(0, 1, arrayQ[3] / 2);
-		matSR.set(0, 2, arrayQ[4] / 2);
+	/**
+	 * Builds M from K like getM, and factorizes it once so that proxf1 can be
+	 * applied on every iteration with a forward and back substitution only
+	 * 
+	 * @param K
+	 *            The K matrix of the points
+	 * @param gamma
+	 *            Parameter for Douglas-Rachford
+	 * @return The factorized operator
+	 */
+	public static CholeskyProx getFactoredM(Matrix K, double gamma) {
+		CholeskyProx prox = new CholeskyProx(K.getRowDimension());
+		prox.factor(getM(K, gamma).getArray());
+		return prox;
+	}
 
-		matSR.set(1, 0, arrayQ[3] / 2);
-		matSR.set(1, 1, arrayQ[1]);
-		matSR.set(1, 2, arrayQ[5] / 2);
+	public QuadricExpression getFinalQuadric() {
+		if (quadricExpression == null)
+			douglasRachford();
+		return quadricExpression;
+	}
 
-		matSR.set(2, 0, arrayQ[4] / 2);
-		matSR.set(2, 1, arrayQ[5] / 2);
-		matSR.set(2, 2, arrayQ[2]);
+	/**
+	 * @return The result of the fit, holding the quadric along with the
+	 *         number of iterations, the final residual, the time spent and the
+	 *         reason why the algorithm stopped
+	 */
+	public FitResult getFitResult() {
+		if (fitResult == null)
+			douglasRachford();
+		return fitResult;
+	}
 
-		// create S and R then SR (SU here)
-		Matrix tmp = new Matrix(matSR.getArray());
-		SingularValueDecomposition svd = tmp.svd();
-		Matrix S = svd.getS();
-		Matrix U = svd.getU();
+	/**
+	 * @return The parameters of the fit
+	 */
+	public FitOptions getOptions() {
+		return options;
+	}
 
-		double[][] test = U.getArray(), test2 = new double[3][3];
-		for (int iT = 0; iT < test.length; iT++) {
-			for (int jT = 0; jT < test[0].length; jT++) {
-				test2[(2 * iT + 2) % 3][jT] = test[iT][jT];
-			}
-		}
-		U = new Matrix(test2);
+	/**
+	 * Rejects the outliers with RANSAC before fitting the ellipsoid, which
+	 * needs the algorithm to be built from the list of points
+	 * 
+	 * @param threshold
+	 *            Maximum distance of an inlier to the ellipsoid, in voxels
+	 */
+	public void setRobust(double threshold) {
+		if (basePoints == null)
+			throw new IllegalStateException("A robust fit needs the base points");
+		ransac = new RansacFitter(options);
+		ransac.setThreshold(threshold);
+		irls = null;
+		quadricExpression = null;
+		fitResult = null;
+	}
 
-		double[][] st = new double[3][3];
+	/**
+	 * Down-weights the outliers by iteratively reweighted least squares, which
+	 * is cheaper than RANSAC but needs a majority of good points. Needs the
+	 * algorithm to be built from the list of points
+	 * 
+	 * @param loss
+	 *            The loss function giving the weights of the points
+	 */
+	public void setReweighting(RobustLoss loss) {
+		if (basePoints == null)
+			throw new IllegalStateException("A robust fit needs the base points");
+		irls = new IrlsFitter(options);
+		irls.setLoss(loss);
+		ransac = null;
+		quadricExpression = null;
+		fitResult = null;
+	}
 
-		// normalize S
-		st[0][0] = Math.sqrt(S.get(2, 2) / S.get(0, 0)) * 20;
-		st[1][1] = Math.sqrt(S.get(2, 2) / S.get(1, 1)) * 20;
-		st[2][2] = Math.sqrt(S.get(2, 2) / S.get(2, 2)) * 20;
-		S = new Matrix(st);
+	/**
+	 * Refines the algebraic fit by minimizing the euclidean distances of the
+	 * base points to the ellipsoid, which needs the algorithm to be built from
+	 * the list of points. The refined ellipsoid is a general one, even when
+	 * the engine of the options constrains its shape
+	 * 
+	 * @param refine
+	 *            True to refine the fit, false to keep the algebraic fit
+	 */
+	public void setGeometricRefinement(boolean refine) {
+		if (refine && basePoints == null)
+			throw new IllegalStateException("A geometric refinement needs the base points");
+		refiner = refine ? new GeometricRefiner(options) : null;
+		quadricExpression = null;
+		fitResult = null;
+	}
 
-		matSR = S.times(U.transpose());
+	/**
+	 * Estimates confidence intervals of the parameters of the ellipsoid by
+	 * fitting bootstrap replicates of the base points, which needs the
+	 * algorithm to be built from the list of points. After a robust fit, only
+	 * the points it kept are resampled
+	 * 
+	 * @param replicates
+	 *            The number of replicates, 0 to skip the estimation
+	 */
+	public void setBootstrap(int replicates) {
+		if (replicates > 0 && basePoints == null)
+			throw new IllegalStateException("An uncertainty estimation needs the base points");
+		bootstrap = null;
+		if (replicates > 0) {
+			bootstrap = new BootstrapEstimator(options);
+			bootstrap.setReplicates(replicates);
+		}
+		uncertainty = null;
+	}
 
-		Matrix lastCoeffs = new Matrix(3, 1);
-		lastCoeffs.set(0, 0, arrayQ[6] / 2);
-		lastCoeffs.set(1, 0, arrayQ[7] / 2);
-		lastCoeffs.set(2, 0, arrayQ[8] / 2);
+	/**
+	 * @return The confidence intervals of the center, semi-axes, volume and
+	 *         orientation of the ellipsoid, in the units of the voxel scale of
+	 *         the frame, or null if no estimation was requested or if the fit
+	 *         is not an ellipsoid
+	 */
+	public BootstrapResult getUncertainty() {
+		getFitResult();
+		if (bootstrap == null || uncertainty != null)
+			return uncertainty;
+		double[][] points = basePoints.getArray();
+		boolean[] inliers = getInliers();
+		double[] weights = getWeights();
+		if (inliers != null || weights != null) {
+			int n = 0;
+			for (int j = 0; j < points[0].length; j++) {
+				if (inliers != null ? inliers[j] : weights[j] > 0)
+					n++;
+			}
+			double[][] kept = new double[3][n];
+			int k = 0;
+			for (int j = 0; j < points[0].length; j++) {
+				if (inliers != null ? inliers[j] : weights[j] > 0) {
+					for (int i = 0; i < 3; i++)
+						kept[i][k] = points[i][j];
+					k++;
+				}
+			}
+			points = kept;
+		}
+		bootstrap.setScale((frame != null ? frame : getViewerFrame()).getScale());
+		try {
+			uncertainty = bootstrap.estimate(points);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during the uncertainty estimation", e);
+		}
+		return uncertainty;
+	}
 
-		Matrix centerMat = proxf1(matSR, lastCoeffs);
-		realCenter = new vtkPoints();
-		realCenter.InsertNextPoint(centerMat.getColumnPackedCopy());
+	/**
+	 * @return The robust weight of each base point after a reweighted fit, or
+	 *         null if the fit was not reweighted
+	 */
+	public double[] getWeights() {
+		getFitResult();
+		if (!(algebraicResult instanceof IrlsFitResult))
+			return null;
+		return ((IrlsFitResult) algebraicResult).getWeights();
 	}
 
-	public QuadricExpression getFinalQuadric() {
-		if (quadricExpression == null)
-			douglasRachford();
-		return quadricExpression;
+	/**
+	 * @return The labels of the base points after a robust fit, true for the
+	 *         points kept in the fit, or null if the fit was not robust
+	 */
+	public boolean[] getInliers() {
+		getFitResult();
+		if (!(algebraicResult instanceof RobustFitResult))
+			return null;
+		return ((RobustFitResult) algebraicResult).getInliers();
 	}
 
 	/**
@@ -388,8 +664,66 @@ public class EllipsoidAlgorithm {
 	 */
 	public EllipsoidOverlay generateEllipsoid() {
 		douglasRachford();
-		// getRealParameters();
-		return new EllipsoidOverlay(quadricExpression);
+		EllipsoidOverlay overlay = frame != null ? new EllipsoidOverlay(quadricExpression, frame)
+				: new EllipsoidOverlay(quadricExpression);
+		if (bootstrap != null)
+			overlay.setUncertainty(getUncertainty());
+		return overlay;
+	}
+
+	/**
+	 * Fits up to a given number of ellipsoids to the base points, for the
+	 * touching nuclei of a same group, the number being chosen by
+	 * MultiEllipsoidFitter. Each ellipsoid is refined on its own points when
+	 * the geometric refinement is enabled
+	 * 
+	 * @param maxEllipsoids
+	 *            The maximum number of ellipsoids
+	 * @return An overlay displaying each ellipsoid, in the order of the labels
+	 *         of getMultiFit, empty if not even a single ellipsoid fits the
+	 *         points
+	 */
+	public List<EllipsoidOverlay> generateEllipsoids(int maxEllipsoids) {
+		if (basePoints == null)
+			throw new IllegalStateException("Fitting several ellipsoids needs the base points");
+		MultiEllipsoidFitter fitter = new MultiEllipsoidFitter(options);
+		fitter.setMaxEllipsoids(maxEllipsoids);
+		try {
+			multiFit = fitter.fit(basePoints.getArray());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during the fit of several ellipsoids", e);
+		}
+		List<EllipsoidOverlay> overlays = new ArrayList<EllipsoidOverlay>();
+		if (multiFit == null)
+			return overlays;
+		for (int k = 0; k < multiFit.getCount(); k++) {
+			QuadricExpression quadric = multiFit.getResults().get(k).getQuadric();
+			if (refiner != null) {
+				boolean[] members = multiFit.getMembers(k);
+				double[] weights = new double[members.length];
+				for (int j = 0; j < members.length; j++)
+					weights[j] = members[j] ? 1 : 0;
+				try {
+					RefinedFitResult refined = refiner.refine(quadric, basePoints.getArray(), weights);
+					if (refined.getParameters() != null)
+						quadric = refined.getQuadric();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted during the geometric refinement", e);
+				}
+			}
+			overlays.add(frame != null ? new EllipsoidOverlay(quadric, frame) : new EllipsoidOverlay(quadric));
+		}
+		return overlays;
+	}
+
+	/**
+	 * @return The result of the last call to generateEllipsoids, holding the
+	 *         ellipsoid each base point was assigned to, or null
+	 */
+	public MultiFitResult getMultiFit() {
+		return multiFit;
 	}
 
-}
\ No newline at end of file
+}
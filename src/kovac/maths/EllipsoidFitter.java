@@ -0,0 +1,41 @@
+package kovac.maths;
+
+/**
+ * Common interface of the algorithms fitting an ellipsoid to a set of points.
+ * Every implementation expresses the quadric relatively to the origin of its
+ * options and normalizes it so that the trace of its quadratic part is 1, so
+ * the results of different engines can be compared directly. A fitter is not
+ * thread-safe, but can be reused for as many fits as needed.
+ * 
+ * @author bastien.kovac
+ *
+ */
+public interface EllipsoidFitter {
+
+	/**
+	 * @return The parameters of the fits
+	 */
+	FitOptions getOptions();
+
+	/**
+	 * Fits an ellipsoid to the given points
+	 * 
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The quadratic expression of the fitting ellipsoid, along with
+	 *         the statistics of the fit
+	 */
+	FitResult fit(double[][] points);
+
+	/**
+	 * Fits an ellipsoid to the points accumulated in a ScatterAccumulator
+	 * 
+	 * @param scatter
+	 *            The accumulated points
+	 * @return The quadratic expression of the fitting ellipsoid, along with
+	 *         the statistics of the fit
+	 */
+	FitResult fit(ScatterAccumulator scatter);
+
+}
@@ -0,0 +1,99 @@
+package kovac.maths;
+
+import java.util.List;
+
+import icy.type.point.Point3D;
+
+/**
+ * Entry points to fit an ellipsoid without any viewer : the frame the quadric
+ * is expressed in is given explicitly instead of being read from ViewerUtil,
+ * so these methods can run in batch jobs or benchmarks on a headless node.
+ * 
+ * @author bastien.kovac
+ *
+ */
+public final class EllipsoidFitting {
+
+	private EllipsoidFitting() {
+	}
+
+	/**
+	 * Builds the fitter implementing the engine of the given options
+	 * 
+	 * @param options
+	 *            The parameters of the fits
+	 * @return A new fitter, which can be reused for other fits with the same
+	 *         options
+	 */
+	public static EllipsoidFitter newFitter(FitOptions options) {
+		switch (options.getEngine()) {
+		case LiGriffiths:
+			return new LiGriffithsFitter(options);
+		case Moments:
+			return new MomentFitter(options);
+		case Sphere:
+			return new SphereFitter(options);
+		case Spheroid:
+			return new SpheroidFitter(options);
+		case AxisAligned:
+			return new AxisAlignedFitter(options);
+		default:
+			return new DouglasRachfordSolver(options);
+		}
+	}
+
+	/**
+	 * Fits an ellipsoid to the given points
+	 * 
+	 * @param points
+	 *            The points, in voxels
+	 * @param frame
+	 *            The frame the quadric is expressed in
+	 * @param options
+	 *            The parameters of the fit, its origin is replaced by the one
+	 *            of the frame
+	 * @return The fitted quadric along with the statistics of the solver
+	 */
+	public static FitResult fit(List<Point3D> points, ReferenceFrame frame, FitOptions options) {
+		double[][] array = new double[3][points.size()];
+		for (int i = 0; i < points.size(); i++) {
+			array[0][i] = points.get(i).getX();
+			array[1][i] = points.get(i).getY();
+			array[2][i] = points.get(i).getZ();
+		}
+		return fit(array, frame, options);
+	}
+
+	/**
+	 * Fits an ellipsoid to the given points
+	 * 
+	 * @param points
+	 *            The points as a 3 x nbPoints array, in voxels
+	 * @param frame
+	 *            The frame the quadric is expressed in
+	 * @param options
+	 *            The parameters of the fit, its origin is replaced by the one
+	 *            of the frame
+	 * @return The fitted quadric along with the statistics of the solver
+	 */
+	public static FitResult fit(double[][] points, ReferenceFrame frame, FitOptions options) {
+		return newFitter(frame.applyTo(options)).fit(points);
+	}
+
+	/**
+	 * Fits an ellipsoid to already accumulated points
+	 * 
+	 * @param scatter
+	 *            The accumulated points, in voxels
+	 * @param frame
+	 *            The frame the quadric is expressed in
+	 * @param options
+	 *            The parameters of the fit, its origin is replaced by the one
+	 *            of the frame
+	 * @return The fitted quadric along with the statistics of the solver
+	 */
+	public static FitResult fit(ScatterAccumulator scatter, ReferenceFrame frame, FitOptions options) {
+		return newFitter(frame.applyTo(options)).fit(scatter);
+	}
+
+}
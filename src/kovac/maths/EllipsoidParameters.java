@@ -0,0 +1,274 @@
+package kovac.maths;
+
+/**
+ * The geometric parameters of an ellipsoid : its center, its semi-axes and the
+ * rotation of its axes. A point x is on the ellipsoid when y = R'.(x - c)
+ * satisfies sum((y_i / a_i)^2) = 1, the columns of R being the directions of
+ * the axes.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author bastien.kovac
+ *
+ */
+public final class EllipsoidParameters {
+
+	/**
+	 * Maximum number of Newton iterations of the closest point
+	 */
+	private static final int MAX_NEWTON = 100;
+
+	private final double[] center;
+	private final double[] axes;
+	private final double[][] rotation;
+
+	/**
+	 * Builds an ellipsoid from its parameters
+	 *
+	 * @param center
+	 *            The center, as [x, y, z]
+	 * @param axes
+	 *            The three semi-axes, strictly positive
+	 * @param rotation
+	 *            The rotation matrix, whose columns are the directions of the
+	 *            axes
+	 */
+	public EllipsoidParameters(double[] center, double[] axes, double[][] rotation) {
+		if (center.length != 3 || axes.length != 3 || rotation.length != 3)
+			throw new IllegalArgumentException("An ellipsoid needs 3 coordinates, 3 axes and a 3x3 rotation");
+		for (int i = 0; i < 3; i++) {
+			if (!(axes[i] > 0) || Double.isInfinite(axes[i]))
+				throw new IllegalArgumentException("The semi-axes must be strictly positive");
+		}
+		this.center = center.clone();
+		this.axes = axes.clone();
+		this.rotation = new double[3][];
+		for (int i = 0; i < 3; i++)
+			this.rotation[i] = rotation[i].clone();
+	}
+
+	/**
+	 * Decomposes a quadric into the parameters of the ellipsoid it represents
+	 *
+	 * @param q
+	 *            The coefficients of the quadric, as [x^2, y^2, z^2, xy, xz,
+	 *            yz, x, y, z, 1]
+	 * @return The parameters of the ellipsoid, or null if the quadric is not
+	 *         a real ellipsoid. The axes are sorted from the longest to the
+	 *         shortest
+	 */
+	public static EllipsoidParameters fromQuadric(double[] q) {
+		double[][] A = { { q[0], q[3] / 2, q[4] / 2 }, { q[3] / 2, q[1], q[5] / 2 }, { q[4] / 2, q[5] / 2, q[2] } };
+		double[] lambda = new double[3];
+		double[][] V = new double[3][3];
+		SymmetricEigen3.decompose(A, lambda, V);
+		if (!(lambda[0] * lambda[2] > 0) || Double.isInfinite(lambda[0]) || Double.isInfinite(lambda[2]))
+			return null;
+
+		// c = -inv(A).b / 2 = -V.diag(1 / lambda).V'.b / 2, then
+		// (x - c)'.A.(x - c) = c'.A.c - d = -c'.b / 2 - d
+		double[] center = new double[3];
+		for (int k = 0; k < 3; k++) {
+			double projection = (V[0][k] * q[6] + V[1][k] * q[7] + V[2][k] * q[8]) / (2 * lambda[k]);
+			for (int i = 0; i < 3; i++)
+				center[i] -= V[i][k] * projection;
+		}
+		double k = -q[9] - (center[0] * q[6] + center[1] * q[7] + center[2] * q[8]) / 2;
+
+		double[] axes = new double[3];
+		for (int i = 0; i < 3; i++) {
+			double a2 = k / lambda[i];
+			if (!(a2 > 0) || Double.isInfinite(a2))
+				return null;
+			axes[i] = Math.sqrt(a2);
+		}
+		// The eigenvalues come in ascending order, so the axes in descending
+		// order unless the quadric is negative definite
+		if (axes[0] >= axes[2])
+			return new EllipsoidParameters(center, axes, V);
+		double[] sortedAxes = { axes[2], axes[1], axes[0] };
+		double[][] rotation = new double[3][3];
+		for (int i = 0; i < 3; i++) {
+			rotation[i][0] = V[i][2];
+			rotation[i][1] = V[i][1];
+			// Keeps a direct frame
+			rotation[i][2] = -V[i][0];
+		}
+		return new EllipsoidParameters(center, sortedAxes, rotation);
+	}
+
+	/**
+	 * Decomposes a quadric expressed in voxels, relatively to an origin, into
+	 * the parameters of the ellipsoid in the units of the voxel scale
+	 *
+	 * @param q
+	 *            The coefficients of the quadric, as [x^2, y^2, z^2, xy, xz,
+	 *            yz, x, y, z, 1]
+	 * @param origin
+	 *            The origin the quadric is expressed relatively to, in voxels
+	 * @param scale
+	 *            The size of a voxel in each direction [x, y, z]
+	 * @return The parameters of the ellipsoid, its center being absolute, or
+	 *         null if the quadric is not a real ellipsoid
+	 */
+	public static EllipsoidParameters fromQuadric(double[] q, double[] origin, double[] scale) {
+		double sx = scale[0], sy = scale[1], sz = scale[2];
+		// Same quadric on the physical coordinates x' = scale.x
+		double[] physical = { q[0] / (sx * sx), q[1] / (sy * sy), q[2] / (sz * sz), q[3] / (sx * sy),
+				q[4] / (sx * sz), q[5] / (sy * sz), q[6] / sx, q[7] / sy, q[8] / sz, q[9] };
+		EllipsoidParameters parameters = fromQuadric(physical);
+		if (parameters == null)
+			return null;
+		for (int i = 0; i < 3; i++)
+			parameters.center[i] += origin[i] * scale[i];
+		return parameters;
+	}
+
+	/**
+	 * @return The volume of the ellipsoid
+	 */
+	public double getVolume() {
+		return 4 * Math.PI / 3 * axes[0] * axes[1] * axes[2];
+	}
+
+	/**
+	 * @return The coefficients of the quadric of this ellipsoid, as [x^2, y^2,
+	 *         z^2, xy, xz, yz, x, y, z, 1], normalized so that the trace of
+	 *         the quadratic part is 1
+	 */
+	public double[] toQuadric() {
+		double[][] A = new double[3][3];
+		double trace = 0;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				for (int k = 0; k < 3; k++)
+					A[i][j] += rotation[i][k] * rotation[j][k] / (axes[k] * axes[k]);
+			}
+			trace += A[i][i];
+		}
+		double[] Ac = new double[3];
+		double cAc = 0;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++)
+				Ac[i] += A[i][j] * center[j];
+			cAc += center[i] * Ac[i];
+		}
+		double[] q = { A[0][0], A[1][1], A[2][2], 2 * A[0][1], 2 * A[0][2], 2 * A[1][2], -2 * Ac[0], -2 * Ac[1],
+				-2 * Ac[2], cAc - 1 };
+		for (int i = 0; i < 10; i++)
+			q[i] /= trace;
+		return q;
+	}
+
+	/**
+	 * @return A copy of the center, as [x, y, z]
+	 */
+	public double[] getCenter() {
+		return center.clone();
+	}
+
+	/**
+	 * @return A copy of the three semi-axes
+	 */
+	public double[] getAxes() {
+		return axes.clone();
+	}
+
+	/**
+	 * @return A copy of the rotation matrix, whose columns are the directions
+	 *         of the axes
+	 */
+	public double[][] getRotation() {
+		double[][] copy = new double[3][];
+		for (int i = 0; i < 3; i++)
+			copy[i] = rotation[i].clone();
+		return copy;
+	}
+
+	/**
+	 * @return The signed euclidean distance from the given point to the
+	 *         surface of the ellipsoid, negative inside
+	 */
+	public double signedDistance(double x, double y, double z) {
+		double[] local = new double[3];
+		toLocal(center, rotation, x, y, z, local);
+		return closestPoint(axes, local, new double[3], new double[3], new double[3]);
+	}
+
+	/**
+	 * Writes y = R'.(x - c) in local
+	 */
+	static void toLocal(double[] center, double[][] rotation, double x, double y, double z, double[] local) {
+		double dx = x - center[0], dy = y - center[1], dz = z - center[2];
+		for (int i = 0; i < 3; i++)
+			local[i] = rotation[0][i] * dx + rotation[1][i] * dy + rotation[2][i] * dz;
+	}
+
+	/**
+	 * Computes the point of an axis-aligned ellipsoid centered on the origin
+	 * closest to a given point. With p_i = a_i^2.y_i / (t + a_i^2), t is the
+	 * root of sum((a_i.y_i / (t + a_i^2))^2) = 1 above -min(a_i^2); the
+	 * function being convex and decreasing there, Newton's method started on
+	 * the left of the root converges monotonically. The unknown is u = t +
+	 * min(a_i^2), which avoids cancellations when the root is close to
+	 * -min(a_i^2).
+	 *
+	 * @param axes
+	 *            The semi-axes
+	 * @param y
+	 *            The point, in the frame of the ellipsoid
+	 * @param p
+	 *            Receives the closest point
+	 * @param z
+	 *            A buffer of 3 values, overwritten, so that the callers
+	 *            looping over many points allocate nothing
+	 * @param shift
+	 *            Another buffer of 3 values, overwritten
+	 * @return The signed distance between the two points, negative inside
+	 */
+	static double closestPoint(double[] axes, double[] y, double[] p, double[] z, double[] shift) {
+		int m = 0;
+		for (int i = 1; i < 3; i++) {
+			if (axes[i] < axes[m])
+				m = i;
+		}
+		double am2 = axes[m] * axes[m];
+		for (int i = 0; i < 3; i++)
+			z[i] = Math.abs(y[i]);
+		// A point on a plane of symmetry is moved off it by a negligible
+		// amount, which keeps the root above -min(a_i^2)
+		z[m] = Math.max(z[m], 1e-12 * axes[m]);
+		for (int i = 0; i < 3; i++)
+			shift[i] = axes[i] * axes[i] - am2;
+		double u = axes[m] * z[m];
+		for (int k = 0; k < MAX_NEWTON; k++) {
+			double f = -1, df = 0;
+			for (int i = 0; i < 3; i++) {
+				double r = axes[i] * z[i] / (u + shift[i]);
+				f += r * r;
+				df -= 2 * r * r / (u + shift[i]);
+			}
+			if (!(f > 0) || !(df < 0))
+				break;
+			double du = -f / df;
+			u += du;
+			if (du <= 1e-15 * Math.max(Math.abs(u - am2), am2))
+				break;
+		}
+		double inside = -1, d2 = 0;
+		for (int i = 0; i < 3; i++) {
+			double a2 = axes[i] * axes[i];
+			p[i] = Math.copySign(a2 * z[i] / (u + shift[i]), y[i]);
+			d2 += (y[i] - p[i]) * (y[i] - p[i]);
+			inside += y[i] * y[i] / a2;
+		}
+		return inside < 0 ? -Math.sqrt(d2) : Math.sqrt(d2);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("center (%.3f, %.3f, %.3f), semi-axes (%.3f, %.3f, %.3f)", center[0], center[1],
+				center[2], axes[0], axes[1], axes[2]);
+	}
+
+}
@@ -0,0 +1,96 @@
+package kovac.maths;
+
+/**
+ * This class refits an ellipsoid every time a point is added to or removed
+ * from a set, typically while the user is clicking points in the viewers.
+ * <p>
+ * Each refit starts from the last iterate of the previous one, moved to the
+ * new center of mass, instead of the initial sphere. As one point barely
+ * changes the solution, a refit converges in far fewer iterations than a fit
+ * from scratch.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class EllipsoidRefitter {
+
+	/**
+	 * The solver, which keeps the last iterate between two refits
+	 */
+	private final DouglasRachfordSolver solver;
+	/**
+	 * The accumulated points
+	 */
+	private final ScatterAccumulator scatter;
+
+	/**
+	 * Builds a refitter over a new, empty set of points
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public EllipsoidRefitter(FitOptions options) {
+		this(new ScatterAccumulator(), options);
+	}
+
+	/**
+	 * Builds a refitter over an existing set of points, which may be modified
+	 * from outside between two refits
+	 *
+	 * @param scatter
+	 *            The accumulated points
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public EllipsoidRefitter(ScatterAccumulator scatter, FitOptions options) {
+		this.scatter = scatter;
+		this.solver = new DouglasRachfordSolver(options);
+	}
+
+	/**
+	 * Adds a point to the set
+	 */
+	public void addPoint(double x, double y, double z) {
+		scatter.add(x, y, z);
+	}
+
+	/**
+	 * Removes a point previously added to the set
+	 */
+	public void removePoint(double x, double y, double z) {
+		scatter.remove(x, y, z);
+	}
+
+	/**
+	 * Removes every point, the next refit starts from scratch
+	 */
+	public void clear() {
+		scatter.clear();
+		reset();
+	}
+
+	/**
+	 * Forgets the last iterate, the next refit starts from scratch
+	 */
+	public void reset() {
+		solver.resetIterate();
+	}
+
+	/**
+	 * @return The accumulated points
+	 */
+	public ScatterAccumulator getScatter() {
+		return scatter;
+	}
+
+	/**
+	 * Fits an ellipsoid to the current set of points
+	 *
+	 * @return The quadratic expression of the fitting ellipsoid, along with
+	 *         the statistics of the solver
+	 */
+	public FitResult refit() {
+		return solver.refit(scatter);
+	}
+
+}
@@ -0,0 +1,271 @@
+package kovac.maths;
+
+import kovac.res.enums.FittingEngine;
+import kovac.res.enums.SolverVariant;
+
+/**
+ * This class holds the parameters of an ellipsoid fit. It is immutable, so a
+ * single instance can be shared by fits running on different threads; the
+ * with* methods return modified copies.
+ *
+ * @author bastien.kovac
+ *
+ */
+public final class FitOptions {
+
+	/**
+	 * Default parameters : gamma = 0.01, at most 100 iterations, tolerance
+	 * 1e-6, no origin shift, plain Douglas-Rachford on normalized points
+	 */
+	public static final FitOptions DEFAULT = new FitOptions(0.01, 100, 1e-6, new double[] { 0, 0, 0 });
+
+	/**
+	 * Parameter for Douglas-Rachford in ]0,+infty[
+	 */
+	private final double gamma;
+	/**
+	 * Maximum number of iterations of the algorithm
+	 */
+	private final int maxIterations;
+	/**
+	 * Relative tolerance on the change of the iterates and on the primal
+	 * residual, 0 to always run maxIterations iterations
+	 */
+	private final double tolerance;
+	/**
+	 * The origin of the frame the quadric is expressed in
+	 */
+	private final double[] origin;
+	/**
+	 * The variant of the iteration
+	 */
+	private final SolverVariant variant;
+	/**
+	 * Relaxation parameter of the Relaxed variant, in ]0,2[
+	 */
+	private final double relaxation;
+	/**
+	 * Number of previous iterates used by the Anderson variant
+	 */
+	private final int andersonDepth;
+	/**
+	 * The algorithm of the fit
+	 */
+	private final FittingEngine engine;
+	/**
+	 * True to scale the centered points so that their root mean square
+	 * distance to the center is sqrt(3) before running Douglas-Rachford
+	 */
+	private final boolean normalized;
+
+	/**
+	 * Builds a new set of options
+	 *
+	 * @param gamma
+	 *            Parameter for Douglas-Rachford, must be strictly positive
+	 * @param maxIterations
+	 *            Maximum number of iterations of the algorithm
+	 * @param tolerance
+	 *            Relative tolerance on the change of the iterates and on the
+	 *            primal residual, 0 to always run maxIterations iterations
+	 * @param origin
+	 *            The origin of the frame the quadric is expressed in, as [x,
+	 *            y, z]
+	 */
+	public FitOptions(double gamma, int maxIterations, double tolerance, double[] origin) {
+		this(gamma, maxIterations, tolerance, origin, SolverVariant.Plain, 1.5, 5);
+	}
+
+	/**
+	 * Builds a new set of options
+	 *
+	 * @param gamma
+	 *            Parameter for Douglas-Rachford, must be strictly positive
+	 * @param maxIterations
+	 *            Maximum number of iterations of the algorithm
+	 * @param tolerance
+	 *            Relative tolerance on the change of the iterates and on the
+	 *            primal residual, 0 to always run maxIterations iterations
+	 * @param origin
+	 *            The origin of the frame the quadric is expressed in, as [x,
+	 *            y, z]
+	 * @param variant
+	 *            The variant of the iteration
+	 * @param relaxation
+	 *            Relaxation parameter of the Relaxed variant, in ]0,2[
+	 * @param andersonDepth
+	 *            Number of previous iterates used by the Anderson variant
+	 */
+	public FitOptions(double gamma, int maxIterations, double tolerance, double[] origin, SolverVariant variant,
+			double relaxation, int andersonDepth) {
+		this(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth,
+				FittingEngine.DouglasRachford, true);
+	}
+
+	private FitOptions(double gamma, int maxIterations, double tolerance, double[] origin, SolverVariant variant,
+			double relaxation, int andersonDepth, FittingEngine engine, boolean normalized) {
+		if (!(gamma > 0))
+			throw new IllegalArgumentException("Gamma must be strictly positive");
+		if (maxIterations < 0)
+			throw new IllegalArgumentException("The number of iterations can't be negative");
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("The tolerance can't be negative");
+		if (origin.length != 3)
+			throw new IllegalArgumentException("Needs 3 coordinates to define the origin");
+		if (engine == null)
+			throw new IllegalArgumentException("The fitting engine can't be null");
+		if (variant == null)
+			throw new IllegalArgumentException("The solver variant can't be null");
+		if (!(relaxation > 0 && relaxation < 2))
+			throw new IllegalArgumentException("The relaxation parameter must be in ]0,2[");
+		if (andersonDepth < 1 || andersonDepth > 10)
+			throw new IllegalArgumentException("The Anderson depth must be between 1 and 10");
+		this.gamma = gamma;
+		this.maxIterations = maxIterations;
+		this.tolerance = tolerance;
+		this.origin = origin.clone();
+		this.variant = variant;
+		this.relaxation = relaxation;
+		this.andersonDepth = andersonDepth;
+		this.engine = engine;
+		this.normalized = normalized;
+	}
+
+	/**
+	 * @return Parameter for Douglas-Rachford
+	 */
+	public double getGamma() {
+		return gamma;
+	}
+
+	/**
+	 * @return Maximum number of iterations of the algorithm
+	 */
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * @return Relative tolerance of the algorithm
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return A copy of the origin of the frame the quadric is expressed in
+	 */
+	public double[] getOrigin() {
+		return origin.clone();
+	}
+
+	/**
+	 * @param i
+	 *            The index of the coordinate (0 for x, 1 for y, 2 for z)
+	 * @return The corresponding coordinate of the origin
+	 */
+	public double getOrigin(int i) {
+		return origin[i];
+	}
+
+	/**
+	 * @return The variant of the iteration
+	 */
+	public SolverVariant getVariant() {
+		return variant;
+	}
+
+	/**
+	 * @return Relaxation parameter of the Relaxed variant
+	 */
+	public double getRelaxation() {
+		return relaxation;
+	}
+
+	/**
+	 * @return Number of previous iterates used by the Anderson variant
+	 */
+	public int getAndersonDepth() {
+		return andersonDepth;
+	}
+
+	/**
+	 * @return The algorithm of the fit
+	 */
+	public FittingEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return True if the points are scaled before running Douglas-Rachford
+	 */
+	public boolean isNormalized() {
+		return normalized;
+	}
+
+	/**
+	 * @return A copy of these options with another gamma
+	 */
+	public FitOptions withGamma(double gamma) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options with other iteration limits
+	 */
+	public FitOptions withConvergence(int maxIterations, double tolerance) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options with another origin
+	 */
+	public FitOptions withOrigin(double... origin) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options with another variant of the iteration
+	 */
+	public FitOptions withVariant(SolverVariant variant) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options with another relaxation parameter
+	 */
+	public FitOptions withRelaxation(double relaxation) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options with another Anderson depth
+	 */
+	public FitOptions withAndersonDepth(int andersonDepth) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options with another fitting algorithm
+	 */
+	public FitOptions withEngine(FittingEngine engine) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+	/**
+	 * @return A copy of these options scaling the points or not before
+	 *         running Douglas-Rachford
+	 */
+	public FitOptions withNormalization(boolean normalized) {
+		return new FitOptions(gamma, maxIterations, tolerance, origin, variant, relaxation, andersonDepth, engine,
+				normalized);
+	}
+
+}
@@ -0,0 +1,97 @@
+package kovac.maths;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * This class stores the result of an ellipsoid fit : the quadratic expression
+ * along with statistics on how the solver reached it
+ * 
+ * @author bastien.kovac
+ *
+ */
+public class FitResult {
+
+	/**
+	 * The fitted quadric
+	 */
+	private final QuadricExpression quadric;
+	/**
+	 * Number of iterations actually run
+	 */
+	private final int iterations;
+	/**
+	 * Primal residual at the last iteration, root mean square of the
+	 * algebraic distances for the direct fitters, or of the euclidean
+	 * distances after a geometric refinement
+	 */
+	private final double residual;
+	/**
+	 * Time spent in the solver, in nanoseconds
+	 */
+	private final long wallTime;
+	/**
+	 * Why the solver stopped
+	 */
+	private final ExitReason exitReason;
+
+	public FitResult(QuadricExpression quadric, int iterations, double residual, long wallTime,
+			ExitReason exitReason) {
+		this.quadric = quadric;
+		this.iterations = iterations;
+		this.residual = residual;
+		this.wallTime = wallTime;
+		this.exitReason = exitReason;
+	}
+
+	/**
+	 * @return The fitted quadric
+	 */
+	public QuadricExpression getQuadric() {
+		return quadric;
+	}
+
+	/**
+	 * @return The number of iterations actually run
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return The relative primal residual at the last iteration, the root
+	 *         mean square of the algebraic distances for the direct fitters,
+	 *         or of the euclidean distances after a geometric refinement
+	 */
+	public double getResidual() {
+		return residual;
+	}
+
+	/**
+	 * @return The time spent in the solver, in nanoseconds
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	/**
+	 * @return Why the solver stopped
+	 */
+	public ExitReason getExitReason() {
+		return exitReason;
+	}
+
+	/**
+	 * @return True if the solver reached the requested tolerance
+	 */
+	public boolean hasConverged() {
+		return exitReason == ExitReason.Converged;
+	}
+
+	@Override
+	public String toString() {
+		return exitReason + " after " + iterations + " iterations (residual " + residual + ", "
+				+ (wallTime / 1000) + " us)";
+	}
+
+}
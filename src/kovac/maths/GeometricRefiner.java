@@ -0,0 +1,427 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * Refines an algebraic fit by minimizing the euclidean distances of the points
+ * to the ellipsoid with Levenberg-Marquardt. The algebraic distance weighs the
+ * points of the flat sides of an ellipsoid less than the ones of its tips,
+ * which biases the fits of noisy or partial surfaces; the geometric distance
+ * does not.
+ * <p>
+ * The 9 parameters are the center, the semi-axes and a rotation vector
+ * composed with the current rotation. The derivatives of the distance of a
+ * point are those of the implicit equation at its closest point on the
+ * ellipsoid, divided by the norm of the gradient there. The normal equations
+ * are accumulated over chunks of points, in parallel for large clouds.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class GeometricRefiner {
+
+	/**
+	 * Number of points from which the normal equations are accumulated in
+	 * parallel
+	 */
+	public static final int PARALLEL_THRESHOLD = 2048;
+
+	/**
+	 * Minimum number of points of a chunk
+	 */
+	private static final int CHUNK_SIZE = 1024;
+
+	/**
+	 * Pool shared by the refiners built without an executor
+	 */
+	private static final ExecutorService POOL = new ForkJoinPool();
+
+	/**
+	 * The options of the fit, giving the origin of the frame the quadrics are
+	 * expressed in
+	 */
+	private final FitOptions options;
+	private final ExecutorService executor;
+	private int maxIterations = 50;
+	/**
+	 * Relative decrease of the cost under which the refinement stops
+	 */
+	private double tolerance = 1e-10;
+
+	/**
+	 * Builds a refiner running on a pool shared with the other refiners
+	 *
+	 * @param options
+	 *            The options of the algebraic fit, giving the origin of the
+	 *            frame the quadrics are expressed in
+	 */
+	public GeometricRefiner(FitOptions options) {
+		this(options, POOL);
+	}
+
+	/**
+	 * Builds a refiner running on the given executor
+	 *
+	 * @param options
+	 *            The options of the algebraic fit, giving the origin of the
+	 *            frame the quadrics are expressed in
+	 * @param executor
+	 *            The executor accumulating the chunks of points
+	 */
+	public GeometricRefiner(FitOptions options, ExecutorService executor) {
+		this.options = options;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            Maximum number of Levenberg-Marquardt iterations
+	 * @param tolerance
+	 *            Relative decrease of the cost under which the refinement
+	 *            stops
+	 */
+	public void setConvergence(int maxIterations, double tolerance) {
+		if (maxIterations < 0)
+			throw new IllegalArgumentException("The number of iterations can't be negative");
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("The tolerance can't be negative");
+		this.maxIterations = maxIterations;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return The options giving the origin of the frame the quadrics are
+	 *         expressed in
+	 */
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Refines an ellipsoid on the given points
+	 *
+	 * @param initial
+	 *            The algebraic fit to start from
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The refined ellipsoid, along with the distances before and after
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting for the
+	 *             chunks
+	 */
+	public RefinedFitResult refine(QuadricExpression initial, double[][] points) throws InterruptedException {
+		return refine(initial, points, null);
+	}
+
+	/**
+	 * Refines an ellipsoid on the given weighted points
+	 *
+	 * @param initial
+	 *            The algebraic fit to start from
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @param weights
+	 *            The weight of the squared distance of each point, for
+	 *            instance 0 for the outliers of a robust fit. Null for unit
+	 *            weights
+	 * @return The refined ellipsoid, along with the distances before and after
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting for the
+	 *             chunks
+	 */
+	public RefinedFitResult refine(QuadricExpression initial, double[][] points, double[] weights)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		if (points.length != 3)
+			throw new IllegalArgumentException("Points must be given as a 3 x nbPoints array");
+		int n = points[0].length;
+		if (weights != null && weights.length != n)
+			throw new IllegalArgumentException("Needs one weight per point");
+		EllipsoidParameters current = EllipsoidParameters.fromQuadric(initial.getSimpleArray());
+		if (current == null)
+			return new RefinedFitResult(initial, 0, Double.NaN, System.nanoTime() - start, ExitReason.Degenerate,
+					Double.NaN, null);
+
+		double totalWeight = 0;
+		for (int j = 0; j < n; j++)
+			totalWeight += weights == null ? 1 : weights[j];
+		if (!(totalWeight > 0))
+			throw new IllegalArgumentException("Needs at least one point of positive weight");
+
+		// One chunk per core for large clouds, the caller thread otherwise
+		int nbChunks = n < PARALLEL_THRESHOLD ? 1
+				: Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n / CHUNK_SIZE));
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int k = 0; k < nbChunks; k++)
+			chunks.add(new Chunk(points, weights, options.getOrigin(), (int) ((long) n * k / nbChunks),
+					(int) ((long) n * (k + 1) / nbChunks)));
+
+		Normal normal = new Normal();
+		Normal trial = new Normal();
+		accumulate(chunks, current, normal);
+		double initialResidual = Math.sqrt(normal.cost / totalWeight);
+
+		CholeskyProx solver = new CholeskyProx(9);
+		double[][] A = new double[9][9];
+		double[] step = new double[9];
+		double lambda = 0;
+		for (int i = 0; i < 9; i++)
+			lambda = Math.max(lambda, normal.jtj[i][i]);
+		lambda *= 1e-3;
+		ExitReason reason = ExitReason.MaxIterations;
+		int iterations = 0;
+		while (iterations < maxIterations) {
+			if (normal.cost == 0) {
+				reason = ExitReason.Converged;
+				break;
+			}
+			iterations++;
+			// (J'.J + lambda.diag(J'.J)).step = -J'.r
+			for (int i = 0; i < 9; i++) {
+				System.arraycopy(normal.jtj[i], 0, A[i], 0, 9);
+				A[i][i] += lambda * Math.max(normal.jtj[i][i], 1e-12);
+				step[i] = -normal.jtr[i];
+			}
+			EllipsoidParameters next = null;
+			try {
+				solver.factor(A);
+				solver.solve(step, step);
+				next = update(current, step);
+			} catch (IllegalArgumentException e) {
+				// Not positive definite, or an axis became negative : the
+				// damping increases
+			}
+			if (next != null)
+				accumulate(chunks, next, trial);
+			if (next != null && trial.cost < normal.cost) {
+				double decrease = normal.cost - trial.cost;
+				Normal swap = normal;
+				normal = trial;
+				trial = swap;
+				current = next;
+				lambda /= 10;
+				if (decrease <= tolerance * normal.cost || isNegligible(step, current)) {
+					reason = ExitReason.Converged;
+					break;
+				}
+			} else {
+				lambda *= 10;
+				if (!(lambda < 1e20)) {
+					// No step decreases the cost any more
+					reason = ExitReason.Converged;
+					break;
+				}
+			}
+		}
+		if (Double.isNaN(normal.cost))
+			reason = ExitReason.NotFinite;
+		// Decomposed again, so that the axes are sorted as for any quadric
+		double[] q = current.toQuadric();
+		EllipsoidParameters sorted = EllipsoidParameters.fromQuadric(q);
+		return new RefinedFitResult(new QuadricExpression(q), iterations, Math.sqrt(normal.cost / totalWeight),
+				System.nanoTime() - start, reason, initialResidual, sorted != null ? sorted : current);
+	}
+
+	/**
+	 * @return True if the step is negligible compared to the size of the
+	 *         ellipsoid
+	 */
+	private static boolean isNegligible(double[] step, EllipsoidParameters parameters) {
+		double size = parameters.getAxes()[0];
+		for (int i = 0; i < 9; i++) {
+			double scale = i < 6 ? size : 1;
+			if (!(Math.abs(step[i]) <= 1e-12 * scale))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The parameters moved by the given step, the rotation vector
+	 *         being composed with the current rotation
+	 * @throws IllegalArgumentException
+	 *             If an axis is not positive any more
+	 */
+	private static EllipsoidParameters update(EllipsoidParameters current, double[] step) {
+		double[] center = current.getCenter();
+		double[] axes = current.getAxes();
+		double[][] R = current.getRotation();
+		for (int i = 0; i < 3; i++) {
+			center[i] += step[i];
+			axes[i] += step[3 + i];
+		}
+		// R.exp([w]), with Rodrigues' formula
+		double wx = step[6], wy = step[7], wz = step[8];
+		double theta = Math.sqrt(wx * wx + wy * wy + wz * wz);
+		double[][] E = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		if (theta > 0) {
+			double s = Math.sin(theta) / theta, c = (1 - Math.cos(theta)) / (theta * theta);
+			double[][] W = { { 0, -wz, wy }, { wz, 0, -wx }, { -wy, wx, 0 } };
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					double w2 = 0;
+					for (int k = 0; k < 3; k++)
+						w2 += W[i][k] * W[k][j];
+					E[i][j] += s * W[i][j] + c * w2;
+				}
+			}
+		}
+		double[][] rotation = new double[3][3];
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 3; k++)
+					rotation[i][j] += R[i][k] * E[k][j];
+		return new EllipsoidParameters(center, axes, rotation);
+	}
+
+	/**
+	 * Accumulates the normal equations of all the chunks at the given
+	 * parameters into out
+	 */
+	private void accumulate(List<Chunk> chunks, EllipsoidParameters parameters, Normal out)
+			throws InterruptedException {
+		for (Chunk chunk : chunks)
+			chunk.parameters = parameters;
+		if (chunks.size() == 1) {
+			chunks.get(0).call();
+		} else {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (Chunk chunk : chunks)
+				futures.add(executor.submit(chunk));
+			try {
+				for (Future<Void> f : futures)
+					f.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			} catch (InterruptedException e) {
+				for (Future<Void> f : futures)
+					f.cancel(true);
+				throw e;
+			}
+		}
+		out.clear();
+		for (Chunk chunk : chunks)
+			out.add(chunk.normal);
+	}
+
+	/**
+	 * The normal equations J'.J and J'.r, along with the cost r'.r
+	 */
+	private static class Normal {
+
+		final double[][] jtj = new double[9][9];
+		final double[] jtr = new double[9];
+		double cost;
+
+		void clear() {
+			for (int i = 0; i < 9; i++) {
+				for (int j = 0; j < 9; j++)
+					jtj[i][j] = 0;
+				jtr[i] = 0;
+			}
+			cost = 0;
+		}
+
+		void add(Normal other) {
+			for (int i = 0; i < 9; i++) {
+				for (int j = 0; j < 9; j++)
+					jtj[i][j] += other.jtj[i][j];
+				jtr[i] += other.jtr[i];
+			}
+			cost += other.cost;
+		}
+
+	}
+
+	/**
+	 * A task accumulating the normal equations of a range of points
+	 */
+	private static class Chunk implements Callable<Void> {
+
+		private final double[][] points;
+		private final double[] weights;
+		private final double[] origin;
+		private final int from, to;
+		private final Normal normal = new Normal();
+		private final double[] y = new double[3];
+		private final double[] p = new double[3];
+		private final double[] g = new double[3];
+		private final double[] z = new double[3];
+		private final double[] shift = new double[3];
+		private final double[] row = new double[9];
+		/**
+		 * The parameters to evaluate, set before each call
+		 */
+		EllipsoidParameters parameters;
+
+		Chunk(double[][] points, double[] weights, double[] origin, int from, int to) {
+			this.points = points;
+			this.weights = weights;
+			this.origin = origin;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Void call() {
+			normal.clear();
+			double[] center = parameters.getCenter();
+			double[] axes = parameters.getAxes();
+			double[][] R = parameters.getRotation();
+			double[][] jtj = normal.jtj;
+			for (int j = from; j < to; j++) {
+				double w = weights == null ? 1 : weights[j];
+				if (w == 0)
+					continue;
+				EllipsoidParameters.toLocal(center, R, points[0][j] - origin[0], points[1][j] - origin[1],
+						points[2][j] - origin[2], y);
+				double d = EllipsoidParameters.closestPoint(axes, y, p, z, shift);
+
+				// Gradient of sum((y_i / a_i)^2) - 1 at the closest point
+				double norm = 0;
+				for (int i = 0; i < 3; i++) {
+					g[i] = 2 * p[i] / (axes[i] * axes[i]);
+					norm += g[i] * g[i];
+				}
+				norm = Math.sqrt(norm);
+				for (int i = 0; i < 3; i++) {
+					// Center : y = R'.(x - c)
+					row[i] = -(R[i][0] * g[0] + R[i][1] * g[1] + R[i][2] * g[2]) / norm;
+					// Semi-axes
+					row[3 + i] = -2 * p[i] * p[i] / (axes[i] * axes[i] * axes[i] * norm);
+				}
+				// Rotation vector : y = exp(-[w]).y0, so dy = y x w
+				row[6] = (g[1] * p[2] - g[2] * p[1]) / norm;
+				row[7] = (g[2] * p[0] - g[0] * p[2]) / norm;
+				row[8] = (g[0] * p[1] - g[1] * p[0]) / norm;
+
+				for (int a = 0; a < 9; a++) {
+					double wa = w * row[a];
+					for (int b = a; b < 9; b++)
+						jtj[a][b] += wa * row[b];
+					normal.jtr[a] += wa * d;
+				}
+				normal.cost += w * d * d;
+			}
+			for (int a = 0; a < 9; a++)
+				for (int b = 0; b < a; b++)
+					jtj[a][b] = jtj[b][a];
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * The result of an iteratively reweighted fit : along with the fitted quadric,
+ * holds the final weight of every point and statistics on the weights at each
+ * reweighting step
+ * 
+ * @author bastien.kovac
+ *
+ */
+public class IrlsFitResult extends FitResult {
+
+	/**
+	 * Statistics of the weights after one reweighting step
+	 * 
+	 * @author bastien.kovac
+	 *
+	 */
+	public static class Step {
+
+		private final double scale;
+		private final double meanWeight;
+		private final double minWeight;
+		private final int downWeighted;
+		private final int rejected;
+		private final double maxChange;
+		private final int solverIterations;
+
+		public Step(double scale, double meanWeight, double minWeight, int downWeighted, int rejected,
+				double maxChange, int solverIterations) {
+			this.scale = scale;
+			this.meanWeight = meanWeight;
+			this.minWeight = minWeight;
+			this.downWeighted = downWeighted;
+			this.rejected = rejected;
+			this.maxChange = maxChange;
+			this.solverIterations = solverIterations;
+		}
+
+		/**
+		 * @return The scale of the distances the weights were computed with
+		 */
+		public double getScale() {
+			return scale;
+		}
+
+		/**
+		 * @return The mean of the robust weights
+		 */
+		public double getMeanWeight() {
+			return meanWeight;
+		}
+
+		/**
+		 * @return The smallest robust weight
+		 */
+		public double getMinWeight() {
+			return minWeight;
+		}
+
+		/**
+		 * @return The number of points with a robust weight under 1/2
+		 */
+		public int getDownWeighted() {
+			return downWeighted;
+		}
+
+		/**
+		 * @return The number of points with a null robust weight
+		 */
+		public int getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * @return The largest change of a robust weight during the step
+		 */
+		public double getMaxChange() {
+			return maxChange;
+		}
+
+		/**
+		 * @return The number of iterations of the solver for the fit preceding
+		 *         the step
+		 */
+		public int getSolverIterations() {
+			return solverIterations;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("scale %.3g, mean weight %.3f, min %.3f, %d down-weighted, %d rejected, "
+					+ "max change %.2g, %d solver iterations", scale, meanWeight, minWeight, downWeighted, rejected,
+					maxChange, solverIterations);
+		}
+
+	}
+
+	/**
+	 * The robust weight of every point, without the prior weights
+	 */
+	private final double[] weights;
+	/**
+	 * The statistics of each reweighting step
+	 */
+	private final List<Step> steps;
+
+	public IrlsFitResult(QuadricExpression quadric, int iterations, double residual, long wallTime,
+			ExitReason exitReason, double[] weights, List<Step> steps) {
+		super(quadric, iterations, residual, wallTime, exitReason);
+		this.weights = weights.clone();
+		this.steps = Collections.unmodifiableList(new ArrayList<Step>(steps));
+	}
+
+	/**
+	 * @return A copy of the robust weight of every point, in the order of the
+	 *         input
+	 */
+	public double[] getWeights() {
+		return weights.clone();
+	}
+
+	/**
+	 * @return The statistics of each reweighting step
+	 */
+	public List<Step> getSteps() {
+		return steps;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ", " + steps.size() + " reweighting steps";
+	}
+
+}
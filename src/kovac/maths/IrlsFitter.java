@@ -0,0 +1,236 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kovac.res.enums.DistanceType;
+import kovac.res.enums.RobustLoss;
+import kovac.res.util.MathUtils;
+
+/**
+ * Iteratively reweighted least squares : after each fit, every point gets a
+ * weight decreasing with its (Sampson) distance to the ellipsoid, following a
+ * Huber or Tukey loss, and the ellipsoid is fitted again with these weights.
+ * Outliers thus lose their influence for the cost of a few fits, without the
+ * many candidates of RANSAC.
+ * <p>
+ * The first fit weighs every point the same, so the outliers must not drag it
+ * too far : a few points some voxels off the surface are rejected, while a
+ * point clicked in another nucleus should rather be handled by RANSAC.
+ * <p>
+ * The points are accumulated once in a ScatterAccumulator, a reweighting step
+ * only updates K with the change of each weight. With the Douglas-Rachford
+ * engine, each refit starts from the solution of the previous one.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class IrlsFitter {
+
+	/**
+	 * Tuning constants giving 95% efficiency on gaussian noise
+	 */
+	public static final double HUBER_K = 1.345;
+	public static final double TUKEY_C = 4.685;
+
+	/**
+	 * Ratio between the median absolute deviation and the standard deviation
+	 * of gaussian noise
+	 */
+	private static final double MAD_TO_SIGMA = 1.4826;
+
+	/**
+	 * The parameters of the fits
+	 */
+	private final FitOptions options;
+	private final EllipsoidFitter fitter;
+	private final ScatterAccumulator scatter = new ScatterAccumulator();
+	private RobustLoss loss = RobustLoss.Huber;
+	/**
+	 * Scale of the distances, 0 to estimate it from the median distance at
+	 * every step
+	 */
+	private double scale;
+	private int maxSteps = 20;
+	private double tolerance = 1e-3;
+
+	/**
+	 * Builds a fitter running the engine of the given options at every step
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public IrlsFitter(FitOptions options) {
+		this.options = options;
+		this.fitter = EllipsoidFitting.newFitter(options);
+	}
+
+	/**
+	 * @param loss
+	 *            The loss function giving the weights
+	 */
+	public void setLoss(RobustLoss loss) {
+		this.loss = loss;
+	}
+
+	/**
+	 * @param scale
+	 *            Scale of the distances in voxels, 0 to estimate it from the
+	 *            median distance at every step
+	 */
+	public void setScale(double scale) {
+		if (!(scale >= 0))
+			throw new IllegalArgumentException("The scale can't be negative");
+		this.scale = scale;
+	}
+
+	/**
+	 * @param maxSteps
+	 *            Maximum number of reweighting steps
+	 * @param tolerance
+	 *            The reweighting stops once no weight changes by more than
+	 *            this
+	 */
+	public void setConvergence(int maxSteps, double tolerance) {
+		if (maxSteps < 0)
+			throw new IllegalArgumentException("The number of steps can't be negative");
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("The tolerance can't be negative");
+		this.maxSteps = maxSteps;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return The parameters of the fits
+	 */
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Fits an ellipsoid to the given points, all with the same prior weight
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The ellipsoid, along with the weights and their statistics
+	 */
+	public IrlsFitResult fit(double[][] points) {
+		return fit(points, null);
+	}
+
+	/**
+	 * Fits an ellipsoid to the given weighted points
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @param priors
+	 *            The prior weight of each point (for instance the confidence
+	 *            of the user or the local gradient magnitude), multiplied by
+	 *            the robust weights. Null for unit weights
+	 * @return The ellipsoid, along with the robust weights and their
+	 *         statistics
+	 */
+	public IrlsFitResult fit(double[][] points, double[] priors) {
+		long start = System.nanoTime();
+		if (points.length != 3)
+			throw new IllegalArgumentException("Points must be given as a 3 x nbPoints array");
+		int n = points[0].length;
+		if (priors != null && priors.length != n)
+			throw new IllegalArgumentException("Needs one prior weight per point");
+
+		double[] weights = new double[n];
+		double[] distances = new double[n];
+		double[] sorted = new double[n];
+		double[] q = new double[10];
+		double[] origin = options.getOrigin();
+		List<IrlsFitResult.Step> steps = new ArrayList<IrlsFitResult.Step>();
+
+		scatter.clear();
+		if (fitter instanceof DouglasRachfordSolver)
+			((DouglasRachfordSolver) fitter).resetIterate();
+		for (int j = 0; j < n; j++) {
+			weights[j] = 1;
+			scatter.add(points[0][j], points[1][j], points[2][j], prior(priors, j));
+		}
+		FitResult result = refit();
+		int iterations = result.getIterations();
+
+		for (int step = 0; step < maxSteps; step++) {
+			System.arraycopy(result.getQuadric().getSimpleArray(), 0, q, 0, 10);
+			int count = 0;
+			for (int j = 0; j < n; j++) {
+				distances[j] = MathUtils.distanceToQuadric(q, points[0][j] - origin[0], points[1][j] - origin[1],
+						points[2][j] - origin[2], DistanceType.Sampson);
+				if (prior(priors, j) > 0)
+					sorted[count++] = distances[j];
+			}
+			if (count == 0 || Double.isNaN(q[0]))
+				break;
+			double sigma = scale > 0 ? scale : MAD_TO_SIGMA * MathUtils.median(Arrays.copyOf(sorted, count));
+			if (!(sigma > 0))
+				break;
+
+			// New robust weights, K being updated with their changes
+			double sum = 0, min = Double.POSITIVE_INFINITY, maxChange = 0;
+			int downWeighted = 0, rejected = 0, kept = 0;
+			for (int j = 0; j < n; j++) {
+				double w = weight(distances[j] / sigma);
+				double prior = prior(priors, j);
+				scatter.reweight(points[0][j], points[1][j], points[2][j], prior * weights[j], prior * w);
+				maxChange = Math.max(maxChange, Math.abs(w - weights[j]));
+				weights[j] = w;
+				sum += w;
+				min = Math.min(min, w);
+				if (w < 0.5)
+					downWeighted++;
+				if (w == 0)
+					rejected++;
+				else if (prior > 0)
+					kept++;
+			}
+			steps.add(new IrlsFitResult.Step(sigma, sum / n, min, downWeighted, rejected, maxChange,
+					result.getIterations()));
+			if (maxChange <= tolerance || kept < options.getEngine().getMinimumPoints())
+				break;
+			result = refit();
+			iterations += result.getIterations();
+		}
+		return new IrlsFitResult(result.getQuadric(), iterations, result.getResidual(), System.nanoTime() - start,
+				result.getExitReason(), weights, steps);
+	}
+
+	/**
+	 * Fits the current weighted points, from the previous solution when the
+	 * engine is iterative
+	 */
+	private FitResult refit() {
+		if (fitter instanceof DouglasRachfordSolver)
+			return ((DouglasRachfordSolver) fitter).refit(scatter);
+		return fitter.fit(scatter);
+	}
+
+	private static double prior(double[] priors, int j) {
+		return priors == null ? 1 : priors[j];
+	}
+
+	/**
+	 * @param r
+	 *            The distance of a point divided by the scale
+	 * @return The weight of the point
+	 */
+	private double weight(double r) {
+		switch (loss) {
+		case Tukey:
+			if (r >= TUKEY_C)
+				return 0;
+			double u = r / TUKEY_C;
+			return (1 - u * u) * (1 - u * u);
+		default:
+			return r <= HUBER_K ? 1 : HUBER_K / r;
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package kovac.maths;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ * Direct least squares ellipsoid fit of Li and Griffiths (2004). The
+ * algebraic distance v'.K.v is minimized under the constraint 4J - I^2 = 1,
+ * where I and J are invariants of the quadratic part, which forces the
+ * solution to be an ellipsoid. The constraint only holds for ellipsoids whose
+ * shortest axis is at least half the longest one : more elongated nuclei are
+ * fitted by a rounder ellipsoid, and should rather be fitted with
+ * Douglas-Rachford.
+ * <p>
+ * Splitting v in its quadratic part v1 (6 coefficients) and the remaining v2
+ * (4 coefficients), v2 is given by v1 and the problem reduces to the 6x6
+ * generalized eigenproblem R.v1 = mu.C.v1, R being the Schur complement of
+ * the K block of v2. With R = L.L', it becomes the symmetric eigenproblem of
+ * inv(L).C.inv(L'), whose only positive eigenvalue 1/mu gives the solution.
+ * R is singular when the points lie exactly on a quadric, so a tiny multiple
+ * of the identity is added to it. The points are scaled by their average
+ * radius beforehand so that K is well conditioned.
+ * 
+ * @author bastien.kovac
+ *
+ */
+public class LiGriffithsFitter extends AbstractDirectFitter {
+
+	/**
+	 * The constraint 4J - I^2 on the quadratic part [x^2, y^2, z^2, xy, xz,
+	 * yz]
+	 */
+	private static final Matrix C = new Matrix(new double[][] { { -1, 1, 1, 0, 0, 0 }, { 1, -1, 1, 0, 0, 0 },
+			{ 1, 1, -1, 0, 0, 0 }, { 0, 0, 0, -1, 0, 0 }, { 0, 0, 0, 0, -1, 0 }, { 0, 0, 0, 0, 0, -1 } });
+	private final double[] w = new double[10];
+	private final double[][] S22 = new double[4][4];
+	private final double[][] X = new double[6][4];
+	private final CholeskyProx prox = new CholeskyProx(4);
+	private final double[][] L = new double[6][6];
+	private final double[][] invL = new double[6][6];
+	private final double[][] A = new double[6][6];
+
+	/**
+	 * Builds a fitter expressing the quadrics relatively to the origin of the
+	 * given options
+	 * 
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public LiGriffithsFitter(FitOptions options) {
+		super(options);
+	}
+
+	@Override
+	protected boolean solve(double[][] K, int n, double weight, double[] result) {
+		if (n < 9)
+			return false;
+		// Scale factor of each monomial, for points divided by their radius
+		if (!monomialScales(K, weight, w))
+			return false;
+
+		// X = inv(S22).S21, one row per quadratic coefficient
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				S22[i][j] = K[6 + i][6 + j] * w[6 + i] * w[6 + j];
+		try {
+			prox.factor(S22);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		for (int i = 0; i < 6; i++) {
+			for (int j = 0; j < 4; j++)
+				X[i][j] = K[i][6 + j] * w[i] * w[6 + j];
+			prox.solve(X[i], X[i]);
+		}
+
+		// R = S11 - S12.inv(S22).S21, in L
+		double trace = 0;
+		for (int i = 0; i < 6; i++) {
+			for (int j = 0; j < 6; j++) {
+				double sum = K[i][j] * w[i] * w[j];
+				for (int k = 0; k < 4; k++)
+					sum -= K[i][6 + k] * w[i] * w[6 + k] * X[j][k];
+				L[i][j] = sum;
+			}
+			trace += L[i][i];
+		}
+		for (int i = 0; i < 6; i++)
+			L[i][i] += EPSILON * trace + Double.MIN_NORMAL;
+		if (!cholesky())
+			return false;
+
+		// A = inv(L).C.inv(L'), symmetric by construction
+		for (int i = 0; i < 6; i++) {
+			for (int j = i; j < 6; j++) {
+				double sum = 0;
+				for (int k = 0; k < 6; k++)
+					for (int l = 0; l < 6; l++)
+						sum += invL[i][k] * C.get(k, l) * invL[j][l];
+				A[i][j] = A[j][i] = sum;
+			}
+		}
+		EigenvalueDecomposition eig = new Matrix(A).eig();
+
+		// v1'.R.v1 = mu.v1'.C.v1 with R positive definite : the only
+		// eigenvector satisfying the constraint has a positive eigenvalue
+		double[] eigenvalues = eig.getRealEigenvalues();
+		int best = 0;
+		for (int i = 1; i < 6; i++) {
+			if (eigenvalues[i] > eigenvalues[best])
+				best = i;
+		}
+		if (!(eigenvalues[best] > 0) || Double.isInfinite(eigenvalues[best]))
+			return false;
+		Matrix V = eig.getV();
+
+		// v1 = inv(L').w, v2 = -inv(S22).S21.v1, then back to the unscaled
+		// points
+		for (int i = 0; i < 6; i++) {
+			double sum = 0;
+			for (int k = i; k < 6; k++)
+				sum += invL[k][i] * V.get(k, best);
+			result[i] = sum;
+		}
+		for (int k = 0; k < 4; k++) {
+			double sum = 0;
+			for (int i = 0; i < 6; i++)
+				sum -= X[i][k] * result[i];
+			result[6 + k] = sum;
+		}
+		for (int i = 0; i < 10; i++)
+			result[i] *= w[i];
+		return true;
+	}
+
+	/**
+	 * Factors the matrix stored in L as L.L' in place, and computes inv(L)
+	 * 
+	 * @return False if the matrix is not positive definite
+	 */
+	private boolean cholesky() {
+		for (int j = 0; j < 6; j++) {
+			double sum = L[j][j];
+			for (int k = 0; k < j; k++)
+				sum -= L[j][k] * L[j][k];
+			if (!(sum > 0))
+				return false;
+			L[j][j] = Math.sqrt(sum);
+			for (int i = j + 1; i < 6; i++) {
+				double s = L[i][j];
+				for (int k = 0; k < j; k++)
+					s -= L[i][k] * L[j][k];
+				L[i][j] = s / L[j][j];
+			}
+			for (int i = 0; i < j; i++)
+				L[i][j] = 0;
+		}
+		// Forward substitution on the columns of the identity
+		for (int j = 0; j < 6; j++) {
+			for (int i = 0; i < 6; i++) {
+				double sum = i == j ? 1 : 0;
+				for (int k = j; k < i; k++)
+					sum -= L[i][k] * invL[k][j];
+				invL[i][j] = i < j ? 0 : sum / L[i][i];
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,53 @@
+package kovac.maths;
+
+/**
+ * Ellipsoid given by the second order moments of the points : for points
+ * spread on the surface of an ellipsoid (x-c)'.inv(A).(x-c) = 1, the
+ * covariance S of the points is close to A/3. This holds on average for
+ * points spread uniformly on a sphere, and is a cheap approximation otherwise,
+ * useful as an initial guess or to cross-check the other engines.
+ * 
+ * @author bastien.kovac
+ *
+ */
+public class MomentFitter extends AbstractDirectFitter {
+
+	/**
+	 * Builds a fitter expressing the quadrics relatively to the origin of the
+	 * given options
+	 * 
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public MomentFitter(FitOptions options) {
+		super(options);
+	}
+
+	@Override
+	protected boolean solve(double[][] K, int n, double weight, double[] result) {
+		// Weighted covariance of the centered points
+		double sxx = K[6][6] / weight, syy = K[7][7] / weight, szz = K[8][8] / weight;
+		double sxy = K[6][7] / weight, sxz = K[6][8] / weight, syz = K[7][8] / weight;
+		// Inverse of the covariance with the cofactors
+		double cxx = syy * szz - syz * syz;
+		double cyy = sxx * szz - sxz * sxz;
+		double czz = sxx * syy - sxy * sxy;
+		double cxy = sxz * syz - sxy * szz;
+		double cxz = sxy * syz - syy * sxz;
+		double cyz = sxy * sxz - sxx * syz;
+		double det = sxx * cxx + sxy * cxy + sxz * cxz;
+		if (!(det > 0) || Double.isInfinite(det))
+			return false;
+		// (x-c)'.inv(S).(x-c) = 3
+		result[0] = cxx / det;
+		result[1] = cyy / det;
+		result[2] = czz / det;
+		result[3] = 2 * cxy / det;
+		result[4] = 2 * cxz / det;
+		result[5] = 2 * cyz / det;
+		result[6] = result[7] = result[8] = 0;
+		result[9] = -3;
+		return true;
+	}
+
+}
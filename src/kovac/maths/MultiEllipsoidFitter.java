@@ -0,0 +1,402 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import kovac.res.enums.FittingEngine;
+
+/**
+ * Fits several ellipsoids to a single set of points, for instance when two
+ * touching nuclei were clicked in a same group. For a given number k of
+ * ellipsoids, the points are first split by k-means on their coordinates,
+ * then the fit alternates between refitting each ellipsoid to its points and
+ * assigning each point to the closest ellipsoid, in euclidean distance, until
+ * the assignment is stable. The ellipsoids of a step are refitted in
+ * parallel.
+ * <p>
+ * The number of ellipsoids is the one minimizing the Bayesian information
+ * criterion n.ln(RSS / n) + k.p.ln(n), p being the degrees of freedom of an
+ * ellipsoid of the engine. The RSS is the sum of the squared distances of the
+ * points to the surface of the union of the ellipsoids, the surface seen when
+ * nuclei touch : overlapping ellipsoids sharing the points of a single nucleus
+ * do not lower it.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class MultiEllipsoidFitter {
+
+	/**
+	 * Pool shared by the fitters built without an executor
+	 */
+	private static final ExecutorService POOL = new ForkJoinPool();
+
+	/**
+	 * Number of k-means initializations tried for each number of ellipsoids,
+	 * the one ending with the lowest RSS being kept
+	 */
+	private static final int RESTARTS = 3;
+	/**
+	 * Maximum number of k-means steps of an initialization
+	 */
+	private static final int KMEANS_STEPS = 10;
+	/**
+	 * Mean squared distance, in voxels, under which the points are considered
+	 * exactly on their ellipsoids : it keeps the criterion from rewarding
+	 * splits that only lower rounding errors
+	 */
+	private static final double MIN_VARIANCE = 1e-4;
+
+	/**
+	 * The parameters of the fit of each ellipsoid
+	 */
+	private final FitOptions options;
+	private final ExecutorService executor;
+	private int maxEllipsoids = 3;
+	private int maxIterations = 20;
+	private long seed;
+
+	/**
+	 * Builds a fitter running on a pool shared with the other fitters
+	 *
+	 * @param options
+	 *            The parameters of the fit of each ellipsoid
+	 */
+	public MultiEllipsoidFitter(FitOptions options) {
+		this(options, POOL);
+	}
+
+	/**
+	 * Builds a fitter running on the given executor
+	 *
+	 * @param options
+	 *            The parameters of the fit of each ellipsoid
+	 * @param executor
+	 *            The executor refitting the ellipsoids
+	 */
+	public MultiEllipsoidFitter(FitOptions options, ExecutorService executor) {
+		this.options = options;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param maxEllipsoids
+	 *            Maximum number of ellipsoids tried
+	 */
+	public void setMaxEllipsoids(int maxEllipsoids) {
+		if (maxEllipsoids < 1)
+			throw new IllegalArgumentException("Needs at least one ellipsoid");
+		this.maxEllipsoids = maxEllipsoids;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            Maximum number of assignment and refit steps
+	 */
+	public void setMaxIterations(int maxIterations) {
+		if (maxIterations < 1)
+			throw new IllegalArgumentException("Needs at least one iteration");
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @param seed
+	 *            Seed of the k-means initializations
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return The parameters of the fit of each ellipsoid
+	 */
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Fits the ellipsoids to the given points
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The fitted ellipsoids, or null if not even a single ellipsoid
+	 *         fits the points
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting for the
+	 *             refits
+	 */
+	public MultiFitResult fit(double[][] points) throws InterruptedException {
+		long start = System.nanoTime();
+		if (points.length != 3)
+			throw new IllegalArgumentException("Points must be given as a 3 x nbPoints array");
+		int n = points[0].length;
+		int minimum = options.getEngine().getMinimumPoints();
+		if (n < minimum)
+			throw new IllegalArgumentException("Needs at least " + minimum + " points to fit an ellipsoid");
+
+		int dof = degreesOfFreedom(options.getEngine());
+		double[] criteria = new double[maxEllipsoids];
+		Arrays.fill(criteria, Double.NaN);
+		Clustering best = null;
+		double bestCriterion = Double.POSITIVE_INFINITY;
+		for (int k = 1; k <= maxEllipsoids && k * minimum <= n; k++) {
+			Clustering clustering = null;
+			for (int r = 0; r < (k == 1 ? 1 : RESTARTS); r++) {
+				Clustering candidate = cluster(points, k, new Random(seed * 31 + RESTARTS * k + r));
+				if (candidate != null && (clustering == null || candidate.cost < clustering.cost))
+					clustering = candidate;
+			}
+			if (clustering == null)
+				continue;
+			double rss = Math.max(clustering.cost, n * MIN_VARIANCE);
+			criteria[k - 1] = n * Math.log(rss / n) + k * dof * Math.log(n);
+			if (criteria[k - 1] < bestCriterion) {
+				bestCriterion = criteria[k - 1];
+				best = clustering;
+			}
+		}
+		if (best == null)
+			return null;
+		return new MultiFitResult(Arrays.asList(best.results), Arrays.asList(best.parameters), best.labels,
+				criteria, best.iterations, System.nanoTime() - start);
+	}
+
+	/**
+	 * @return The number of parameters of an ellipsoid fitted by the engine
+	 */
+	private static int degreesOfFreedom(FittingEngine engine) {
+		switch (engine) {
+		case Sphere:
+		case Spheroid:
+		case AxisAligned:
+			return engine.getMinimumPoints();
+		default:
+			return 9;
+		}
+	}
+
+	/**
+	 * Fits k ellipsoids from a k-means initialization
+	 *
+	 * @return The clustering, or null if a cluster became too small or was
+	 *         not fitted to an ellipsoid
+	 */
+	private Clustering cluster(double[][] points, int k, Random random) throws InterruptedException {
+		int n = points[0].length;
+		int[] labels = kMeans(points, k, random);
+		int[] next = new int[n];
+		Clustering clustering = new Clustering(k);
+		for (int it = 1; it <= maxIterations; it++) {
+			if (!refit(points, labels, clustering))
+				return null;
+			clustering.iterations = it;
+			// Assigns each point to the closest ellipsoid, the cost being the
+			// distance to the surface of their union
+			double cost = 0;
+			for (int j = 0; j < n; j++) {
+				double closest = Double.POSITIVE_INFINITY, union = Double.POSITIVE_INFINITY;
+				for (int c = 0; c < k; c++) {
+					double d = clustering.parameters[c].signedDistance(points[0][j], points[1][j], points[2][j]);
+					union = Math.min(union, d);
+					if (Math.abs(d) < closest) {
+						closest = Math.abs(d);
+						next[j] = c;
+					}
+				}
+				cost += union * union;
+			}
+			clustering.cost = cost;
+			// Without convergence, the labels kept are the ones the
+			// ellipsoids were fitted to
+			if (it == maxIterations || Arrays.equals(labels, next))
+				break;
+			System.arraycopy(next, 0, labels, 0, n);
+		}
+		clustering.labels = labels;
+		return clustering;
+	}
+
+	/**
+	 * Fits an ellipsoid to the points of each cluster, in parallel
+	 *
+	 * @return False if a cluster is too small or was not fitted to an
+	 *         ellipsoid
+	 */
+	private boolean refit(double[][] points, int[] labels, Clustering clustering) throws InterruptedException {
+		int k = clustering.results.length;
+		int minimum = options.getEngine().getMinimumPoints();
+		int[] sizes = new int[k];
+		for (int label : labels)
+			sizes[label]++;
+		List<Refit> refits = new ArrayList<Refit>();
+		for (int c = 0; c < k; c++) {
+			if (sizes[c] < minimum)
+				return false;
+			double[][] members = new double[3][sizes[c]];
+			int m = 0;
+			for (int j = 0; j < labels.length; j++) {
+				if (labels[j] == c) {
+					for (int i = 0; i < 3; i++)
+						members[i][m] = points[i][j];
+					m++;
+				}
+			}
+			refits.add(new Refit(members));
+		}
+
+		if (k == 1) {
+			refits.get(0).call();
+		} else {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (Refit refit : refits)
+				futures.add(executor.submit(refit));
+			try {
+				for (Future<Void> f : futures)
+					f.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			} catch (InterruptedException e) {
+				for (Future<Void> f : futures)
+					f.cancel(true);
+				throw e;
+			}
+		}
+		for (int c = 0; c < k; c++) {
+			Refit refit = refits.get(c);
+			if (refit.parameters == null)
+				return false;
+			clustering.results[c] = refit.result;
+			clustering.parameters[c] = refit.parameters;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the points in k clusters with the k-means algorithm, initialized
+	 * with k-means++
+	 *
+	 * @return The index of the cluster of each point
+	 */
+	private static int[] kMeans(double[][] points, int k, Random random) {
+		int n = points[0].length;
+		int[] labels = new int[n];
+		if (k == 1)
+			return labels;
+		double[][] centers = new double[k][3];
+		double[] d2 = new double[n];
+		int first = random.nextInt(n);
+		for (int i = 0; i < 3; i++)
+			centers[0][i] = points[i][first];
+		Arrays.fill(d2, Double.POSITIVE_INFINITY);
+		for (int c = 1; c < k; c++) {
+			// Draws the next center with a probability proportional to the
+			// squared distance to the closest center
+			double total = 0;
+			for (int j = 0; j < n; j++) {
+				d2[j] = Math.min(d2[j], squaredDistance(points, j, centers[c - 1]));
+				total += d2[j];
+			}
+			double target = random.nextDouble() * total;
+			int chosen = n - 1;
+			for (int j = 0; j < n; j++) {
+				target -= d2[j];
+				if (target < 0) {
+					chosen = j;
+					break;
+				}
+			}
+			for (int i = 0; i < 3; i++)
+				centers[c][i] = points[i][chosen];
+		}
+
+		int[] sizes = new int[k];
+		for (int step = 0; step < KMEANS_STEPS; step++) {
+			boolean changed = false;
+			for (int j = 0; j < n; j++) {
+				int closest = 0;
+				double best = Double.POSITIVE_INFINITY;
+				for (int c = 0; c < k; c++) {
+					double d = squaredDistance(points, j, centers[c]);
+					if (d < best) {
+						best = d;
+						closest = c;
+					}
+				}
+				changed |= labels[j] != closest;
+				labels[j] = closest;
+			}
+			if (!changed && step > 0)
+				break;
+			Arrays.fill(sizes, 0);
+			for (int c = 0; c < k; c++)
+				Arrays.fill(centers[c], 0);
+			for (int j = 0; j < n; j++) {
+				sizes[labels[j]]++;
+				for (int i = 0; i < 3; i++)
+					centers[labels[j]][i] += points[i][j];
+			}
+			for (int c = 0; c < k; c++) {
+				for (int i = 0; i < 3; i++)
+					centers[c][i] /= Math.max(1, sizes[c]);
+			}
+		}
+		return labels;
+	}
+
+	private static double squaredDistance(double[][] points, int j, double[] center) {
+		double dx = points[0][j] - center[0], dy = points[1][j] - center[1], dz = points[2][j] - center[2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * The ellipsoids fitted for a number of clusters
+	 */
+	private static class Clustering {
+
+		final FitResult[] results;
+		final EllipsoidParameters[] parameters;
+		int[] labels;
+		double cost;
+		int iterations;
+
+		Clustering(int k) {
+			results = new FitResult[k];
+			parameters = new EllipsoidParameters[k];
+		}
+
+	}
+
+	/**
+	 * A task fitting an ellipsoid to the points of a cluster
+	 */
+	private class Refit implements Callable<Void> {
+
+		private final double[][] members;
+		FitResult result;
+		EllipsoidParameters parameters;
+
+		Refit(double[][] members) {
+			this.members = members;
+		}
+
+		@Override
+		public Void call() {
+			result = EllipsoidFitting.newFitter(options).fit(members);
+			parameters = EllipsoidParameters.fromQuadric(result.getQuadric().getSimpleArray(), options.getOrigin(),
+					new double[] { 1, 1, 1 });
+			return null;
+		}
+
+	}
+
+}
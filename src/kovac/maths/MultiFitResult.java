@@ -0,0 +1,118 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of the fit of several ellipsoids to a single set of points : the
+ * fit of each ellipsoid, the ellipsoid each point was assigned to, and the
+ * model selection criterion of each number of ellipsoids tried
+ *
+ * @author bastien.kovac
+ *
+ */
+public class MultiFitResult {
+
+	private final List<FitResult> results;
+	private final List<EllipsoidParameters> parameters;
+	/**
+	 * Index of the ellipsoid each point is assigned to, in the order of the
+	 * input
+	 */
+	private final int[] labels;
+	/**
+	 * Criterion of each number of ellipsoids, NaN if it could not be fitted
+	 */
+	private final double[] criteria;
+	/**
+	 * Number of assignment and refit steps of the chosen clustering
+	 */
+	private final int iterations;
+	private final long wallTime;
+
+	MultiFitResult(List<FitResult> results, List<EllipsoidParameters> parameters, int[] labels, double[] criteria,
+			int iterations, long wallTime) {
+		this.results = Collections.unmodifiableList(new ArrayList<FitResult>(results));
+		this.parameters = Collections.unmodifiableList(new ArrayList<EllipsoidParameters>(parameters));
+		this.labels = labels.clone();
+		this.criteria = criteria.clone();
+		this.iterations = iterations;
+		this.wallTime = wallTime;
+	}
+
+	/**
+	 * @return The number of ellipsoids chosen
+	 */
+	public int getCount() {
+		return results.size();
+	}
+
+	/**
+	 * @return The fit of each ellipsoid, in the order of the labels
+	 */
+	public List<FitResult> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return The parameters of each ellipsoid, in voxels, in the order of
+	 *         the labels
+	 */
+	public List<EllipsoidParameters> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return A copy of the index of the ellipsoid each point is assigned to
+	 */
+	public int[] getLabels() {
+		return labels.clone();
+	}
+
+	/**
+	 * @param k
+	 *            The index of an ellipsoid
+	 * @return True for the points assigned to the ellipsoid, in the order of
+	 *         the input
+	 */
+	public boolean[] getMembers(int k) {
+		boolean[] members = new boolean[labels.length];
+		for (int j = 0; j < labels.length; j++)
+			members[j] = labels[j] == k;
+		return members;
+	}
+
+	/**
+	 * @param k
+	 *            A number of ellipsoids
+	 * @return The Bayesian information criterion of the best fit of k
+	 *         ellipsoids, lower being better, NaN if k ellipsoids could not be
+	 *         fitted
+	 */
+	public double getCriterion(int k) {
+		return k >= 1 && k <= criteria.length ? criteria[k - 1] : Double.NaN;
+	}
+
+	/**
+	 * @return The number of assignment and refit steps of the chosen fit
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return The time spent, in nanoseconds
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d ellipsoid(s) in %d iterations, %.3f ms, criteria %s", getCount(), iterations,
+				wallTime / 1e6, Arrays.toString(criteria));
+	}
+
+}
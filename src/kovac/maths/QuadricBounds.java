@@ -0,0 +1,266 @@
+package kovac.maths;
+
+/**
+ * The tight axis-aligned bounding box of the part of a quadric surface lying
+ * in a box, such as the image, computed from its coefficients rather than by
+ * sampling it. It is meant for the quadrics which are not ellipsoids, flat or
+ * near-cylindrical fits, whose surface may leave the image.
+ * <p>
+ * The surface in the box being closed and bounded, the extremes of each
+ * coordinate are reached either inside the box, on a face or on an edge. Inside
+ * the box or on a face, they are the points where the gradient of the quadric,
+ * restricted to the free coordinates, is along the coordinate : y = y0 + t.A^-1.e_k
+ * with y0 the center of the restricted quadric, t^2 = -f(y0) / (A^-1)_kk. On
+ * an edge, they are the roots of a second degree polynomial. The box is the
+ * one of all these points which lie in the box.
+ * <p>
+ * The coefficients are in the order [x^2, y^2, z^2, xy, xz, yz, x, y, z, 1].
+ *
+ * @author bastien.kovac
+ *
+ */
+public final class QuadricBounds {
+
+	/**
+	 * Determinant, relative to the largest coefficient, under which the
+	 * quadratic part restricted to some coordinates is taken as singular : its
+	 * critical points are then at infinity, or form a line the faces or the
+	 * edges account for
+	 */
+	private static final double SINGULAR = 1e-12;
+	/**
+	 * Smallest number of samples along an axis
+	 */
+	private static final int MIN_SAMPLES = 2;
+
+	private QuadricBounds() {
+	}
+
+	/**
+	 * Computes the bounding box of the part of a quadric surface inside a box
+	 *
+	 * @param q
+	 *            The 10 coefficients of the quadric
+	 * @param min
+	 *            The lowest corner of the box, as [x, y, z]
+	 * @param max
+	 *            The highest corner of the box, as [x, y, z]
+	 * @return The bounding box, as [xMin, xMax, yMin, yMax, zMin, zMax] like
+	 *         the model bounds of VTK, or null if the surface does not cross
+	 *         the box
+	 */
+	public static double[] boundingBox(double[] q, double[] min, double[] max) {
+		if (q.length != 10 || min.length != 3 || max.length != 3)
+			throw new IllegalArgumentException("A quadric needs 10 coefficients and a box 3 coordinates");
+		double[][] a = { { q[0], q[3] / 2, q[4] / 2 }, { q[3] / 2, q[1], q[5] / 2 }, { q[4] / 2, q[5] / 2, q[2] } };
+		double[] b = { q[6], q[7], q[8] };
+		double[] bounds = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		double[] point = new double[3];
+
+		// Inside the box
+		critical(a, b, q[9], new int[] { 0, 1, 2 }, point, min, max, bounds);
+		// On the faces, the coordinate j being fixed
+		for (int j = 0; j < 3; j++) {
+			int[] free = { (j + 1) % 3, (j + 2) % 3 };
+			for (int side = 0; side < 2; side++) {
+				point[j] = side == 0 ? min[j] : max[j];
+				critical(a, b, q[9], free, point, min, max, bounds);
+			}
+		}
+		// On the edges, along the coordinate j
+		for (int j = 0; j < 3; j++) {
+			int u = (j + 1) % 3, v = (j + 2) % 3;
+			for (int corner = 0; corner < 4; corner++) {
+				point[u] = (corner & 1) == 0 ? min[u] : max[u];
+				point[v] = (corner & 2) == 0 ? min[v] : max[v];
+				critical(a, b, q[9], new int[] { j }, point, min, max, bounds);
+			}
+		}
+		return bounds[0] <= bounds[1] ? bounds : null;
+	}
+
+	/**
+	 * Chooses the number of samples along each axis of a box, the same
+	 * spacing along the three axes, so that their product stays about the
+	 * given budget whatever the size of the box
+	 *
+	 * @param bounds
+	 *            The box, as [xMin, xMax, yMin, yMax, zMin, zMax]
+	 * @param budget
+	 *            The total number of samples
+	 * @param minSpacing
+	 *            The smallest spacing between two samples, so that a small
+	 *            box is not sampled finer than needed
+	 * @return The number of samples along each axis, at least 2
+	 */
+	public static int[] sampleDimensions(double[] bounds, int budget, double minSpacing) {
+		double[] extents = new double[3];
+		for (int i = 0; i < 3; i++)
+			extents[i] = Math.max(bounds[2 * i + 1] - bounds[2 * i], minSpacing);
+		int[] dimensions = new int[3];
+		// The axes too short for the spacing get the fewest samples, and the
+		// budget left is shared by the others
+		boolean[] fixed = new boolean[3];
+		double spacing = minSpacing;
+		for (int pass = 0; pass < 3; pass++) {
+			double volume = 1, left = budget;
+			int nbFree = 0;
+			for (int i = 0; i < 3; i++) {
+				if (fixed[i]) {
+					left /= MIN_SAMPLES;
+				} else {
+					volume *= extents[i];
+					nbFree++;
+				}
+			}
+			if (nbFree == 0)
+				break;
+			spacing = Math.max(minSpacing, Math.pow(volume / Math.max(left, 1), 1.0 / nbFree));
+			boolean changed = false;
+			for (int i = 0; i < 3; i++) {
+				if (!fixed[i] && extents[i] / spacing < MIN_SAMPLES - 1) {
+					fixed[i] = true;
+					changed = true;
+				}
+			}
+			if (!changed)
+				break;
+		}
+		for (int i = 0; i < 3; i++)
+			dimensions[i] = fixed[i] ? MIN_SAMPLES
+					: Math.max(MIN_SAMPLES, (int) Math.round(extents[i] / spacing) + 1);
+		return dimensions;
+	}
+
+	/**
+	 * Adds to the bounds the extremes of the free coordinates of the quadric
+	 * restricted to them, the other coordinates being those of the point
+	 */
+	private static void critical(double[][] a, double[] b, double c, int[] free, double[] point, double[] min,
+			double[] max, double[] bounds) {
+		int d = free.length;
+		boolean[] isFree = new boolean[3];
+		for (int f : free)
+			isFree[f] = true;
+		// f(y) = y'.A_F.y + b_F'.y + c_F on the free coordinates
+		double[][] af = new double[d][d];
+		double[] bf = new double[d];
+		double cf = c;
+		for (int i = 0; i < 3; i++) {
+			if (isFree[i])
+				continue;
+			cf += b[i] * point[i];
+			for (int j = 0; j < 3; j++) {
+				if (!isFree[j])
+					cf += a[i][j] * point[i] * point[j];
+			}
+		}
+		for (int i = 0; i < d; i++) {
+			bf[i] = b[free[i]];
+			for (int j = 0; j < 3; j++) {
+				if (!isFree[j])
+					bf[i] += 2 * a[free[i]][j] * point[j];
+			}
+			for (int j = 0; j < d; j++)
+				af[i][j] = a[free[i]][free[j]];
+		}
+
+		if (d == 1) {
+			double qa = af[0][0], qb = bf[0];
+			double scale = Math.max(Math.abs(qa) * Math.max(Math.abs(min[free[0]]), Math.abs(max[free[0]])),
+					Math.abs(qb));
+			if (Math.abs(qa) <= SINGULAR * scale) {
+				if (qb != 0)
+					add(point, free[0], -cf / qb, min, max, bounds);
+				return;
+			}
+			double discriminant = qb * qb - 4 * qa * cf;
+			if (discriminant < 0)
+				return;
+			double root = Math.sqrt(discriminant);
+			add(point, free[0], (-qb - root) / (2 * qa), min, max, bounds);
+			add(point, free[0], (-qb + root) / (2 * qa), min, max, bounds);
+			return;
+		}
+
+		double[][] inverse = invert(af);
+		if (inverse == null)
+			return;
+		double[] center = new double[d];
+		double value = cf;
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++)
+				center[i] -= inverse[i][j] * bf[j] / 2;
+			value += bf[i] * center[i] / 2;
+		}
+		double[] candidate = point.clone();
+		for (int k = 0; k < d; k++) {
+			double t2 = -value / inverse[k][k];
+			if (!(t2 >= 0))
+				continue;
+			double t = Math.sqrt(t2);
+			for (int sign = -1; sign <= 1; sign += 2) {
+				for (int i = 0; i < d; i++)
+					candidate[free[i]] = center[i] + sign * t * inverse[i][k];
+				add(candidate, -1, 0, min, max, bounds);
+			}
+		}
+	}
+
+	/**
+	 * Widens the bounds to the point, with its coordinate i replaced by the
+	 * value if i is not -1, when it lies in the box
+	 */
+	private static void add(double[] point, int i, double value, double[] min, double[] max, double[] bounds) {
+		double[] p = point.clone();
+		if (i >= 0)
+			p[i] = value;
+		for (int j = 0; j < 3; j++) {
+			double tolerance = 1e-9 * (max[j] - min[j]);
+			if (!(p[j] >= min[j] - tolerance && p[j] <= max[j] + tolerance))
+				return;
+		}
+		for (int j = 0; j < 3; j++) {
+			double x = Math.min(max[j], Math.max(min[j], p[j]));
+			bounds[2 * j] = Math.min(bounds[2 * j], x);
+			bounds[2 * j + 1] = Math.max(bounds[2 * j + 1], x);
+		}
+	}
+
+	/**
+	 * @return The inverse of a symmetric 2 x 2 or 3 x 3 matrix, by its
+	 *         cofactors, or null if it is singular
+	 */
+	private static double[][] invert(double[][] m) {
+		int d = m.length;
+		double largest = 0;
+		for (double[] row : m) {
+			for (double x : row)
+				largest = Math.max(largest, Math.abs(x));
+		}
+		if (d == 2) {
+			double det = m[0][0] * m[1][1] - m[0][1] * m[1][0];
+			if (!(Math.abs(det) > SINGULAR * largest * largest))
+				return null;
+			return new double[][] { { m[1][1] / det, -m[0][1] / det }, { -m[1][0] / det, m[0][0] / det } };
+		}
+		double[][] cofactors = new double[3][3];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				int i1 = (i + 1) % 3, i2 = (i + 2) % 3, j1 = (j + 1) % 3, j2 = (j + 2) % 3;
+				cofactors[i][j] = m[i1][j1] * m[i2][j2] - m[i1][j2] * m[i2][j1];
+			}
+		}
+		double det = m[0][0] * cofactors[0][0] + m[0][1] * cofactors[0][1] + m[0][2] * cofactors[0][2];
+		if (!(Math.abs(det) > SINGULAR * largest * largest * largest))
+			return null;
+		double[][] inverse = new double[3][3];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++)
+				inverse[i][j] = cofactors[j][i] / det;
+		}
+		return inverse;
+	}
+
+}
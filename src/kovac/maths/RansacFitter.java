@@ -0,0 +1,403 @@
+package kovac.maths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kovac.res.enums.DistanceType;
+import kovac.res.enums.FittingEngine;
+import kovac.res.quadric.QuadricExpression;
+import kovac.res.util.MathUtils;
+
+/**
+ * Robust ellipsoid fitting with RANSAC : candidate quadrics are fitted to
+ * random minimal subsets of the points, each candidate is scored on all the
+ * points (MSAC cost, the squared distances truncated at the threshold), and
+ * the final ellipsoid is fitted with the engine of the options on the
+ * consensus set of the best candidate. A single mis-clicked point then no
+ * longer drags the whole ellipsoid.
+ * <p>
+ * Candidates are drawn and scored in parallel, one task per core. The number
+ * of candidates adapts to the inlier ratio found so far, so that a subset
+ * free of outliers is drawn with the requested confidence. The candidates
+ * kept are then cut in the order of their index, the best one being chosen
+ * among them, so that the result only depends on the seed.
+ * <p>
+ * The candidates are fitted with the engine of the options, so that they have
+ * the shape of the final fit and an elongated nucleus is not judged on the
+ * bias of another engine. The Moments engine needs the whole surface, so its
+ * candidates are fitted with LiGriffiths, which is biased towards rounder
+ * shapes when the axis ratio goes beyond about 2.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class RansacFitter {
+
+	/**
+	 * Number of consensus refits at most, stopping earlier once the labels of
+	 * the points are stable
+	 */
+	private static final int MAX_REFITS = 3;
+
+	/**
+	 * Pool shared by the fitters built without an executor
+	 */
+	private static final ExecutorService POOL = new ForkJoinPool();
+
+	/**
+	 * The parameters of the final fit
+	 */
+	private final FitOptions options;
+	/**
+	 * The executor running the candidates
+	 */
+	private final ExecutorService executor;
+	/**
+	 * The engine fitting the candidates, and the size of their subsets
+	 */
+	private final FittingEngine hypothesisEngine;
+	private final int sampleSize;
+	/**
+	 * Maximum distance of an inlier to the quadric
+	 */
+	private double threshold = 2;
+	private DistanceType distance = DistanceType.Sampson;
+	private int maxHypotheses = 500;
+	private double confidence = 0.99;
+	private long seed;
+
+	/**
+	 * Builds a fitter running on a pool shared with the other fitters
+	 *
+	 * @param options
+	 *            The parameters of the final fit, on the inliers
+	 */
+	public RansacFitter(FitOptions options) {
+		this(options, POOL);
+	}
+
+	/**
+	 * Builds a fitter running on the given executor
+	 *
+	 * @param options
+	 *            The parameters of the final fit, on the inliers
+	 * @param executor
+	 *            The executor running the candidates
+	 */
+	public RansacFitter(FitOptions options, ExecutorService executor) {
+		this.options = options;
+		this.executor = executor;
+		hypothesisEngine = options.getEngine() == FittingEngine.Moments ? FittingEngine.LiGriffiths
+				: options.getEngine();
+		sampleSize = hypothesisEngine.getMinimumPoints();
+	}
+
+	/**
+	 * @param threshold
+	 *            Maximum distance of an inlier to the quadric, in voxels for
+	 *            the Sampson distance
+	 */
+	public void setThreshold(double threshold) {
+		if (!(threshold > 0))
+			throw new IllegalArgumentException("The threshold must be strictly positive");
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param distance
+	 *            The distance used to score the points
+	 */
+	public void setDistance(DistanceType distance) {
+		this.distance = distance;
+	}
+
+	/**
+	 * @param maxHypotheses
+	 *            Maximum number of candidate quadrics
+	 * @param confidence
+	 *            Probability to draw at least one subset without outlier, in
+	 *            ]0,1[
+	 */
+	public void setHypotheses(int maxHypotheses, double confidence) {
+		if (maxHypotheses < 1)
+			throw new IllegalArgumentException("Needs at least one hypothesis");
+		if (!(confidence > 0 && confidence < 1))
+			throw new IllegalArgumentException("The confidence must be in ]0,1[");
+		this.maxHypotheses = maxHypotheses;
+		this.confidence = confidence;
+	}
+
+	/**
+	 * @param seed
+	 *            Seed of the random subsets, the subset of a given hypothesis
+	 *            only depends on it
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return The parameters of the final fit
+	 */
+	public FitOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * @return The number of points of the subsets the candidates are fitted
+	 *         to
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * Fits an ellipsoid to the given points, ignoring the outliers
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate. The array is not modified
+	 * @return The ellipsoid fitted on the inliers, along with the labels of
+	 *         the points
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting for the
+	 *             candidates
+	 */
+	public RobustFitResult fit(double[][] points) throws InterruptedException {
+		long start = System.nanoTime();
+		if (points.length != 3)
+			throw new IllegalArgumentException("Points must be given as a 3 x nbPoints array");
+		int n = points[0].length;
+		if (n < sampleSize)
+			throw new IllegalArgumentException("Needs at least " + sampleSize + " points for a robust fit");
+
+		Consensus consensus = new Consensus();
+		AtomicInteger drawn = new AtomicInteger();
+		int nbTasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), maxHypotheses));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < nbTasks; i++)
+			futures.add(executor.submit(new Hypotheses(points, consensus, drawn)));
+		try {
+			for (Future<?> f : futures)
+				f.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			for (Future<?> f : futures)
+				f.cancel(true);
+			throw e;
+		}
+
+		// The candidates in the order of their index, up to the number
+		// required by the ones before : the tasks may have drawn more, or
+		// stopped before some of them when a later one lowered the number
+		Hypotheses missing = null;
+		Candidate best = null;
+		int hypotheses = maxHypotheses;
+		for (int index = 0; index < hypotheses; index++) {
+			Candidate candidate = consensus.candidates[index];
+			if (candidate == null) {
+				if (missing == null)
+					missing = new Hypotheses(points, consensus, drawn);
+				candidate = missing.draw(index);
+			}
+			hypotheses = Math.min(hypotheses, required(candidate.inliers, n));
+			if (candidate.quadric != null && (best == null || candidate.cost < best.cost))
+				best = candidate;
+		}
+
+		// Consensus set of the best candidate, all the points if no candidate
+		// was an ellipsoid
+		boolean[] inliers = new boolean[n];
+		if (best != null)
+			label(best.quadric, points, new double[3], inliers);
+		else
+			Arrays.fill(inliers, true);
+
+		// Refits on the inliers until the labels are stable
+		EllipsoidFitter fitter = EllipsoidFitting.newFitter(options);
+		ScatterAccumulator scatter = new ScatterAccumulator();
+		boolean[] labels = new boolean[n];
+		double[] origin = options.getOrigin();
+		FitResult result = null;
+		for (int k = 0; k < MAX_REFITS; k++) {
+			scatter.clear();
+			for (int j = 0; j < n; j++) {
+				if (inliers[j])
+					scatter.add(points[0][j], points[1][j], points[2][j]);
+			}
+			result = fitter.fit(scatter);
+			int count = label(result.getQuadric().getSimpleArray(), points, origin, labels);
+			// The labels returned are the ones of the points actually fitted
+			if (count < sampleSize || k == MAX_REFITS - 1 || Arrays.equals(labels, inliers))
+				break;
+			System.arraycopy(labels, 0, inliers, 0, n);
+		}
+		return new RobustFitResult(result.getQuadric(), result.getIterations(), result.getResidual(),
+				System.nanoTime() - start, result.getExitReason(), inliers, hypotheses);
+	}
+
+	/**
+	 * Labels the points closer to the quadric than the threshold
+	 *
+	 * @return The number of inliers
+	 */
+	private int label(double[] q, double[][] points, double[] origin, boolean[] inliers) {
+		int count = 0;
+		for (int j = 0; j < inliers.length; j++) {
+			double d = MathUtils.distanceToQuadric(q, points[0][j] - origin[0], points[1][j] - origin[1],
+					points[2][j] - origin[2], distance);
+			inliers[j] = d <= threshold;
+			if (inliers[j])
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return True if the quadratic part of the quadric is positive definite
+	 */
+	private static boolean isEllipsoid(double[] q) {
+		double a = q[0], b = q[1], c = q[2], d = q[3] / 2, e = q[4] / 2, f = q[5] / 2;
+		double minor = a * b - d * d;
+		double det = a * (b * c - f * f) - d * (d * c - f * e) + e * (d * f - b * e);
+		return a > 0 && minor > 0 && det > 0;
+	}
+
+	/**
+	 * @return The number of candidates to draw so that one of them is free of
+	 *         outliers with the requested confidence, for the given number of
+	 *         inliers
+	 */
+	private int required(int inliers, int n) {
+		double clean = Math.pow((double) inliers / n, sampleSize);
+		if (clean >= 1)
+			return 1;
+		if (!(clean > 0))
+			return maxHypotheses;
+		return (int) Math.min(maxHypotheses, Math.ceil(Math.log(1 - confidence) / Math.log(1 - clean)));
+	}
+
+	/**
+	 * A scored candidate
+	 */
+	private static class Candidate {
+
+		/**
+		 * The quadric, null if it is not an ellipsoid
+		 */
+		final double[] quadric;
+		final double cost;
+		final int inliers;
+
+		Candidate(double[] quadric, double cost, int inliers) {
+			this.quadric = quadric;
+			this.cost = cost;
+			this.inliers = inliers;
+		}
+
+	}
+
+	/**
+	 * The candidates scored so far and the number of candidates to draw,
+	 * shared by the tasks
+	 */
+	private class Consensus {
+
+		final Candidate[] candidates = new Candidate[maxHypotheses];
+		volatile int required = maxHypotheses;
+
+		/**
+		 * Keeps the candidate, and updates the number of candidates to draw
+		 */
+		synchronized void offer(int index, Candidate candidate, int n) {
+			candidates[index] = candidate;
+			required = Math.min(required, required(candidate.inliers, n));
+		}
+
+	}
+
+	/**
+	 * A task drawing and scoring candidates until enough were drawn
+	 */
+	private class Hypotheses implements Callable<Void> {
+
+		private final double[][] points;
+		private final Consensus consensus;
+		private final AtomicInteger drawn;
+		private final int[] sample = new int[sampleSize];
+		private final ScatterAccumulator scatter = new ScatterAccumulator();
+		private final EllipsoidFitter fitter = EllipsoidFitting
+				.newFitter(options.withOrigin(0, 0, 0).withEngine(hypothesisEngine));
+
+		Hypotheses(double[][] points, Consensus consensus, AtomicInteger drawn) {
+			this.points = points;
+			this.consensus = consensus;
+			this.drawn = drawn;
+		}
+
+		@Override
+		public Void call() {
+			int index;
+			while ((index = drawn.getAndIncrement()) < consensus.required) {
+				if (Thread.currentThread().isInterrupted())
+					return null;
+				consensus.offer(index, draw(index), points[0].length);
+			}
+			return null;
+		}
+
+		/**
+		 * Fits and scores the candidate of the given index, on the whole
+		 * points so that its cost does not depend on the other candidates
+		 */
+		Candidate draw(int index) {
+			int n = points[0].length;
+			double t2 = threshold * threshold;
+			// The subset only depends on the seed and on the index
+			Random random = new Random(seed * 31 + index);
+			scatter.clear();
+			for (int i = 0; i < sampleSize; i++) {
+				int j;
+				boolean taken;
+				do {
+					j = random.nextInt(n);
+					taken = false;
+					for (int k = 0; k < i; k++)
+						taken |= sample[k] == j;
+				} while (taken);
+				sample[i] = j;
+				scatter.add(points[0][j], points[1][j], points[2][j]);
+			}
+			QuadricExpression candidate = fitter.fit(scatter).getQuadric();
+			double[] q = candidate.getSimpleArray();
+			if (!isEllipsoid(q))
+				return new Candidate(null, Double.POSITIVE_INFINITY, 0);
+
+			double cost = 0;
+			int inliers = 0;
+			for (int j = 0; j < n; j++) {
+				double d = MathUtils.distanceToQuadric(q, points[0][j], points[1][j], points[2][j], distance);
+				if (d <= threshold) {
+					cost += d * d;
+					inliers++;
+				} else {
+					cost += t2;
+				}
+			}
+			return new Candidate(q, cost, inliers);
+		}
+
+	}
+
+}
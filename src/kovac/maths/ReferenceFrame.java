@@ -0,0 +1,94 @@
+package kovac.maths;
+
+/**
+ * This class describes the frame the fitted quadrics are expressed in : the
+ * size of the image, its voxel scale and the origin the coordinates are
+ * shifted to. It lets the fitting code run without any viewer, the plugin
+ * builds its frame from the base sequence with ViewerUtil.getReferenceFrame().
+ * 
+ * @author bastien.kovac
+ *
+ */
+public final class ReferenceFrame {
+
+	/**
+	 * Frame with no origin shift, a null size and a unit scale
+	 */
+	public static final ReferenceFrame IDENTITY = new ReferenceFrame(new double[] { 0, 0, 0 },
+			new double[] { 1, 1, 1 }, new double[] { 0, 0, 0 });
+
+	/**
+	 * Size of the image in each direction [x, y, z], in voxels
+	 */
+	private final double[] size;
+	/**
+	 * Size of a voxel in each direction [x, y, z]
+	 */
+	private final double[] scale;
+	/**
+	 * The origin of the frame, in voxels
+	 */
+	private final double[] origin;
+
+	/**
+	 * Builds a new reference frame
+	 * 
+	 * @param size
+	 *            Size of the image in each direction [x, y, z], in voxels
+	 * @param scale
+	 *            Size of a voxel in each direction [x, y, z]
+	 * @param origin
+	 *            The origin of the frame, in voxels
+	 */
+	public ReferenceFrame(double[] size, double[] scale, double[] origin) {
+		if (size.length != 3 || scale.length != 3 || origin.length != 3)
+			throw new IllegalArgumentException("Needs 3 coordinates to define a reference frame");
+		this.size = size.clone();
+		this.scale = scale.clone();
+		this.origin = origin.clone();
+	}
+
+	/**
+	 * Builds the frame used by the plugin, whose origin is the center of the
+	 * image
+	 * 
+	 * @param size
+	 *            Size of the image in each direction [x, y, z], in voxels
+	 * @param scale
+	 *            Size of a voxel in each direction [x, y, z]
+	 * @return The corresponding reference frame
+	 */
+	public static ReferenceFrame centered(double[] size, double[] scale) {
+		return new ReferenceFrame(size, scale, new double[] { size[0] / 2, size[1] / 2, size[2] / 2 });
+	}
+
+	/**
+	 * @return A copy of the size of the image [x, y, z]
+	 */
+	public double[] getSize() {
+		return size.clone();
+	}
+
+	/**
+	 * @return A copy of the size of a voxel [x, y, z]
+	 */
+	public double[] getScale() {
+		return scale.clone();
+	}
+
+	/**
+	 * @return A copy of the origin of the frame [x, y, z]
+	 */
+	public double[] getOrigin() {
+		return origin.clone();
+	}
+
+	/**
+	 * @return The options given with their origin replaced by the one of this
+	 *         frame
+	 */
+	public FitOptions applyTo(FitOptions options) {
+		return options.withOrigin(origin);
+	}
+
+}
@@ -0,0 +1,53 @@
+package kovac.maths;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * The result of a geometric refinement : the refined ellipsoid, along with
+ * the root mean square of the distances of the points to the ellipsoid before
+ * and after the refinement
+ *
+ * @author bastien.kovac
+ *
+ */
+public class RefinedFitResult extends FitResult {
+
+	/**
+	 * Root mean square distance of the points to the algebraic fit
+	 */
+	private final double initialResidual;
+	/**
+	 * The refined ellipsoid, null if the algebraic fit was not an ellipsoid
+	 */
+	private final EllipsoidParameters parameters;
+
+	public RefinedFitResult(QuadricExpression quadric, int iterations, double residual, long wallTime,
+			ExitReason exitReason, double initialResidual, EllipsoidParameters parameters) {
+		super(quadric, iterations, residual, wallTime, exitReason);
+		this.initialResidual = initialResidual;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * @return The root mean square distance of the points to the ellipsoid
+	 *         before the refinement
+	 */
+	public double getInitialResidual() {
+		return initialResidual;
+	}
+
+	/**
+	 * @return The center, semi-axes and rotation of the refined ellipsoid, or
+	 *         null if the algebraic fit was not an ellipsoid
+	 */
+	public EllipsoidParameters getParameters() {
+		return parameters;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ", distance " + initialResidual + " -> " + getResidual();
+	}
+
+}
@@ -0,0 +1,71 @@
+package kovac.maths;
+
+import kovac.res.enums.ExitReason;
+import kovac.res.quadric.QuadricExpression;
+
+/**
+ * The result of a robust fit : along with the fitted quadric, tells which
+ * points were kept as inliers and which were rejected
+ * 
+ * @author bastien.kovac
+ *
+ */
+public class RobustFitResult extends FitResult {
+
+	/**
+	 * True for the points kept in the final fit, in the order of the input
+	 */
+	private final boolean[] inliers;
+	/**
+	 * Number of candidate quadrics tested
+	 */
+	private final int hypotheses;
+
+	public RobustFitResult(QuadricExpression quadric, int iterations, double residual, long wallTime,
+			ExitReason exitReason, boolean[] inliers, int hypotheses) {
+		super(quadric, iterations, residual, wallTime, exitReason);
+		this.inliers = inliers.clone();
+		this.hypotheses = hypotheses;
+	}
+
+	/**
+	 * @return A copy of the labels of the points, true for the inliers
+	 */
+	public boolean[] getInliers() {
+		return inliers.clone();
+	}
+
+	/**
+	 * @param i
+	 *            The index of a point
+	 * @return True if the point was kept in the final fit
+	 */
+	public boolean isInlier(int i) {
+		return inliers[i];
+	}
+
+	/**
+	 * @return The number of points kept in the final fit
+	 */
+	public int getInlierCount() {
+		int count = 0;
+		for (boolean inlier : inliers) {
+			if (inlier)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of candidate quadrics tested
+	 */
+	public int getHypotheses() {
+		return hypotheses;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ", " + getInlierCount() + "/" + inliers.length + " inliers";
+	}
+
+}
@@ -0,0 +1,464 @@
+package kovac.maths;
+
+/**
+ * This class accumulates the scatter matrix K = D.D' of a set of points one
+ * point at a time, so that adding or removing a clicked point costs O(1) and
+ * fitting an ellipsoid no longer depends on the number of points.
+ * <p>
+ * K is stored for the raw monomials [x^2, y^2, z^2, xy, xz, yz, x, y, z, 1]
+ * of the points expressed relative to an anchor (the first point added), which
+ * keeps the sums small. It holds every moment up to the fourth order, so the
+ * center of mass, the variances and the K matrix of the centered points can
+ * all be derived from it.
+ * <p>
+ * Points can be given a weight, K then being D.W.D' : the center of mass and
+ * the variances become weighted ones. Changing the weight of a point only
+ * costs an update of K, which is how iteratively reweighted fits avoid
+ * rebuilding it from scratch.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class ScatterAccumulator {
+
+	/**
+	 * Upper triangle of the raw scatter matrix
+	 */
+	private final double[][] K = new double[10][10];
+	/**
+	 * Monomials of the point being added or removed
+	 */
+	private final double[] d = new double[10];
+	/**
+	 * Translation matrix used to center K
+	 */
+	private final double[][] T = new double[10][10];
+	/**
+	 * Intermediate product T.K
+	 */
+	private final double[][] TK = new double[10][10];
+	/**
+	 * The reference point of the accumulated coordinates
+	 */
+	private final double[] anchor = new double[3];
+	/**
+	 * The number of accumulated points
+	 */
+	private int count;
+	/**
+	 * Incremented on every modification of the set
+	 */
+	private int version;
+
+	/**
+	 * Adds a point to the set
+	 *
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param z
+	 *            Z coordinate
+	 */
+	public void add(double x, double y, double z) {
+		add(x, y, z, 1);
+	}
+
+	/**
+	 * Adds a weighted point to the set
+	 *
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param z
+	 *            Z coordinate
+	 * @param weight
+	 *            The weight of the point, positive
+	 */
+	public void add(double x, double y, double z, double weight) {
+		if (!(weight >= 0))
+			throw new IllegalArgumentException("A weight can't be negative");
+		if (count == 0) {
+			anchor[0] = x;
+			anchor[1] = y;
+			anchor[2] = z;
+		}
+		accumulate(x, y, z, weight);
+		count++;
+		version++;
+	}
+
+	/**
+	 * Adds every point of an array to the set. The entries of K are products
+	 * of two monomials, so they only hold the 35 moments x^a.y^b.z^c of order
+	 * a + b + c <= 4 : these are summed over the points, which takes 31
+	 * multiplications per point instead of the 55 of the outer product, and
+	 * spread over K at the end
+	 *
+	 * @param points
+	 *            The points as a 3 x nbPoints array, each row representing a
+	 *            coordinate
+	 */
+	public void addAll(double[][] points) {
+		double[] x = points[0], y = points[1], z = points[2];
+		if (x.length == 0)
+			return;
+		if (count == 0) {
+			anchor[0] = x[0];
+			anchor[1] = y[0];
+			anchor[2] = z[0];
+		}
+		double[] m = new double[NB_MOMENTS];
+		double[] sums = new double[NB_MOMENTS];
+		for (int j = 0; j < x.length; j++) {
+			moments(x[j] - anchor[0], y[j] - anchor[1], z[j] - anchor[2], m);
+			for (int k = 0; k < NB_MOMENTS; k++)
+				sums[k] += m[k];
+		}
+		int k = 0;
+		for (int i = 0; i < 10; i++)
+			for (int l = i; l < 10; l++)
+				K[i][l] += sums[PACKED_MOMENTS[k++]];
+		count += x.length;
+		version++;
+	}
+
+	/**
+	 * Number of moments of order at most 4 of a point
+	 */
+	private static final int NB_MOMENTS = 35;
+	/**
+	 * Exponents of x, y and z of each moment, in the order of moments
+	 */
+	private static final int[][] MOMENT_EXPONENTS = { { 0, 0, 0 }, { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 },
+			{ 2, 0, 0 }, { 0, 2, 0 }, { 0, 0, 2 }, { 1, 1, 0 }, { 1, 0, 1 }, { 0, 1, 1 }, { 3, 0, 0 }, { 2, 1, 0 },
+			{ 2, 0, 1 }, { 1, 2, 0 }, { 1, 1, 1 }, { 1, 0, 2 }, { 0, 3, 0 }, { 0, 2, 1 }, { 0, 1, 2 }, { 0, 0, 3 },
+			{ 4, 0, 0 }, { 3, 1, 0 }, { 3, 0, 1 }, { 2, 2, 0 }, { 2, 1, 1 }, { 2, 0, 2 }, { 1, 3, 0 }, { 1, 2, 1 },
+			{ 1, 1, 2 }, { 1, 0, 3 }, { 0, 4, 0 }, { 0, 3, 1 }, { 0, 2, 2 }, { 0, 1, 3 }, { 0, 0, 4 } };
+	/**
+	 * Exponents of x, y and z of each monomial, in the order of monomials
+	 */
+	private static final int[][] MONOMIAL_EXPONENTS = { { 2, 0, 0 }, { 0, 2, 0 }, { 0, 0, 2 }, { 1, 1, 0 },
+			{ 1, 0, 1 }, { 0, 1, 1 }, { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 }, { 0, 0, 0 } };
+	/**
+	 * Index of the moment of each coefficient of the upper triangle of K, row
+	 * by row
+	 */
+	private static final int[] PACKED_MOMENTS = new int[55];
+
+	static {
+		int k = 0;
+		for (int i = 0; i < 10; i++) {
+			for (int j = i; j < 10; j++) {
+				for (int m = 0; m < NB_MOMENTS; m++) {
+					boolean same = true;
+					for (int c = 0; c < 3; c++)
+						same &= MOMENT_EXPONENTS[m][c] == MONOMIAL_EXPONENTS[i][c] + MONOMIAL_EXPONENTS[j][c];
+					if (same)
+						PACKED_MOMENTS[k] = m;
+				}
+				k++;
+			}
+		}
+	}
+
+	/**
+	 * Writes the moments of a point, in the order of MOMENT_EXPONENTS
+	 */
+	private static void moments(double x, double y, double z, double[] m) {
+		double xx = x * x, yy = y * y, zz = z * z, xy = x * y, xz = x * z, yz = y * z;
+		m[0] = 1;
+		m[1] = x;
+		m[2] = y;
+		m[3] = z;
+		m[4] = xx;
+		m[5] = yy;
+		m[6] = zz;
+		m[7] = xy;
+		m[8] = xz;
+		m[9] = yz;
+		m[10] = xx * x;
+		m[11] = xx * y;
+		m[12] = xx * z;
+		m[13] = yy * x;
+		m[14] = xy * z;
+		m[15] = zz * x;
+		m[16] = yy * y;
+		m[17] = yy * z;
+		m[18] = zz * y;
+		m[19] = zz * z;
+		m[20] = xx * xx;
+		m[21] = xx * xy;
+		m[22] = xx * xz;
+		m[23] = xx * yy;
+		m[24] = xx * yz;
+		m[25] = xx * zz;
+		m[26] = yy * xy;
+		m[27] = yy * xz;
+		m[28] = zz * xy;
+		m[29] = zz * xz;
+		m[30] = yy * yy;
+		m[31] = yy * yz;
+		m[32] = yy * zz;
+		m[33] = zz * yz;
+		m[34] = zz * zz;
+	}
+
+	/**
+	 * Removes a point previously added to the set
+	 *
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param z
+	 *            Z coordinate
+	 */
+	public void remove(double x, double y, double z) {
+		remove(x, y, z, 1);
+	}
+
+	/**
+	 * Removes a weighted point previously added to the set
+	 *
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param z
+	 *            Z coordinate
+	 * @param weight
+	 *            The weight the point was added with
+	 */
+	public void remove(double x, double y, double z, double weight) {
+		if (count == 0)
+			throw new IllegalStateException("No point to remove");
+		accumulate(x, y, z, -weight);
+		count--;
+		version++;
+		if (count == 0)
+			clear();
+	}
+
+	/**
+	 * Removes every point from the set
+	 */
+	public void clear() {
+		for (int i = 0; i < 10; i++)
+			for (int j = 0; j < 10; j++)
+				K[i][j] = 0;
+		count = 0;
+		version++;
+	}
+
+	/**
+	 * Changes the weight of a point of the set
+	 *
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param z
+	 *            Z coordinate
+	 * @param oldWeight
+	 *            The current weight of the point
+	 * @param newWeight
+	 *            The new weight of the point, positive
+	 */
+	public void reweight(double x, double y, double z, double oldWeight, double newWeight) {
+		if (!(newWeight >= 0))
+			throw new IllegalArgumentException("A weight can't be negative");
+		if (count == 0)
+			throw new IllegalStateException("No point to reweight");
+		if (newWeight == oldWeight)
+			return;
+		accumulate(x, y, z, newWeight - oldWeight);
+		version++;
+	}
+
+	/**
+	 * @return The sum of the weights of the points
+	 */
+	public double getTotalWeight() {
+		return K[9][9];
+	}
+
+	/**
+	 * @return The number of points in the set
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return A number changing every time the set is modified
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	private void accumulate(double x, double y, double z, double weight) {
+		monomials(x - anchor[0], y - anchor[1], z - anchor[2], d);
+		for (int i = 0; i < 10; i++) {
+			double di = weight * d[i];
+			for (int j = i; j < 10; j++)
+				K[i][j] += di * d[j];
+		}
+	}
+
+	/**
+	 * Number of coefficients of the upper triangle of K
+	 */
+	static final int PACKED_SIZE = 55;
+
+	/**
+	 * Writes the upper triangle of the outer product of the monomials of a
+	 * point, row by row, so that the K matrix of a set of points is the sum
+	 * of the products of its points
+	 *
+	 * @param x
+	 *            X coordinate, relative to the anchor the products are summed
+	 *            for
+	 * @param y
+	 *            Y coordinate, relative to the anchor
+	 * @param z
+	 *            Z coordinate, relative to the anchor
+	 * @param packed
+	 *            Receives the 55 coefficients
+	 * @param offset
+	 *            Index of the first coefficient in packed
+	 * @param m
+	 *            A buffer of 10 values receiving the monomials of the point,
+	 *            so that a loop over the points allocates nothing
+	 */
+	static void outerProduct(double x, double y, double z, double[] packed, int offset, double[] m) {
+		monomials(x, y, z, m);
+		int k = offset;
+		for (int i = 0; i < 10; i++)
+			for (int j = i; j < 10; j++)
+				packed[k++] = m[i] * m[j];
+	}
+
+	/**
+	 * Replaces the set by points whose outer products, relative to the given
+	 * anchor, are already summed
+	 *
+	 * @param anchor
+	 *            The reference point of the coordinates of the products
+	 * @param packed
+	 *            The sum of the upper triangles of the products, as written by
+	 *            outerProduct
+	 * @param count
+	 *            The number of points, counted with their multiplicity
+	 */
+	void load(double[] anchor, double[] packed, int count) {
+		int k = 0;
+		for (int i = 0; i < 10; i++)
+			for (int j = i; j < 10; j++)
+				K[i][j] = packed[k++];
+		System.arraycopy(anchor, 0, this.anchor, 0, 3);
+		this.count = count;
+		version++;
+	}
+
+	/**
+	 * Writes the monomials [x^2, y^2, z^2, xy, xz, yz, x, y, z, 1] of a point
+	 * in the given array
+	 */
+	static void monomials(double x, double y, double z, double[] d) {
+		d[0] = x * x;
+		d[1] = y * y;
+		d[2] = z * z;
+		d[3] = x * y;
+		d[4] = x * z;
+		d[5] = y * z;
+		d[6] = x;
+		d[7] = y;
+		d[8] = z;
+		d[9] = 1;
+	}
+
+	/**
+	 * Computes the center of mass of the points
+	 *
+	 * @param center
+	 *            An array of length 3 receiving the center of mass
+	 */
+	public void getCenterOfMass(double[] center) {
+		for (int i = 0; i < 3; i++)
+			center[i] = anchor[i] + K[6 + i][9] / K[9][9];
+	}
+
+	/**
+	 * @return The sum of the (weighted) variances of the coordinates (with a
+	 *         normalization factor of N-1, like MathUtils.getVariance)
+	 */
+	public double getAverageRadius() {
+		double res = 0;
+		double total = K[9][9];
+		for (int i = 0; i < 3; i++) {
+			double sum = K[6 + i][9];
+			res += (K[i][9] - sum * sum / total) / total;
+		}
+		return res * count / (count - 1);
+	}
+
+	/**
+	 * Computes the K matrix of the points translated so that the given point
+	 * becomes the origin, with T.K.T' where T is the action of the translation
+	 * on the monomials
+	 *
+	 * @param origin
+	 *            The new origin
+	 * @param out
+	 *            A 10x10 array receiving the K matrix
+	 */
+	public void getK(double[] origin, double[][] out) {
+		double tx = origin[0] - anchor[0], ty = origin[1] - anchor[1], tz = origin[2] - anchor[2];
+		for (int i = 0; i < 10; i++)
+			for (int j = 0; j < 10; j++)
+				T[i][j] = 0;
+		for (int i = 0; i < 10; i++)
+			T[i][i] = 1;
+		// (x - tx)^2 = x^2 - 2tx.x + tx^2
+		T[0][6] = -2 * tx;
+		T[0][9] = tx * tx;
+		T[1][7] = -2 * ty;
+		T[1][9] = ty * ty;
+		T[2][8] = -2 * tz;
+		T[2][9] = tz * tz;
+		// (x - tx)(y - ty) = xy - ty.x - tx.y + tx.ty
+		T[3][6] = -ty;
+		T[3][7] = -tx;
+		T[3][9] = tx * ty;
+		T[4][6] = -tz;
+		T[4][8] = -tx;
+		T[4][9] = tx * tz;
+		T[5][7] = -tz;
+		T[5][8] = -ty;
+		T[5][9] = ty * tz;
+		T[6][9] = -tx;
+		T[7][9] = -ty;
+		T[8][9] = -tz;
+
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j < 10; j++) {
+				double sum = 0;
+				for (int k = 0; k < 10; k++)
+					sum += T[i][k] * (k <= j ? K[k][j] : K[j][k]);
+				TK[i][j] = sum;
+			}
+		}
+		for (int i = 0; i < 10; i++) {
+			for (int j = i; j < 10; j++) {
+				double sum = 0;
+				for (int k = 0; k < 10; k++)
+					sum += TK[i][k] * T[j][k];
+				out[i][j] = sum;
+				out[j][i] = sum;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+package kovac.maths;
+
+/**
+ * Algebraic least squares fit of a sphere x^2 + y^2 + z^2 + g.x + h.y + i.z +
+ * d = 0 : the quadratic part being fixed, the problem is linear in the 4
+ * remaining coefficients and is solved directly. Four points not on a same
+ * plane determine the sphere.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class SphereFitter extends AbstractDirectFitter {
+
+	/**
+	 * The quadrics of the scaled points the solution is looked for in
+	 */
+	private static final double[][] BASIS = { { 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 }, { 0, 0, 0, 0, 0, 0, 1, 0, 0, 0 },
+			{ 0, 0, 0, 0, 0, 0, 0, 1, 0, 0 }, { 0, 0, 0, 0, 0, 0, 0, 0, 1, 0 }, { 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 } };
+	/**
+	 * Unit trace of the quadratic part
+	 */
+	private static final double[] TRACE = { 3, 0, 0, 0, 0 };
+
+	private final double[] w = new double[10];
+	private final CholeskyProx prox = new CholeskyProx(5);
+	private final double[][] G = new double[5][5];
+	private final double[] x = new double[5];
+
+	/**
+	 * Builds a fitter expressing the quadrics relatively to the origin of the
+	 * given options
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public SphereFitter(FitOptions options) {
+		super(options);
+	}
+
+	@Override
+	protected boolean solve(double[][] K, int n, double weight, double[] result) {
+		if (n < 4 || !monomialScales(K, weight, w))
+			return false;
+		if (Double.isNaN(solveInSubspace(K, w, BASIS, TRACE, prox, G, x, result)))
+			return false;
+		return EllipsoidParameters.fromQuadric(result) != null;
+	}
+
+}
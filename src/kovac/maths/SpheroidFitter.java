@@ -0,0 +1,145 @@
+package kovac.maths;
+
+/**
+ * Algebraic least squares fit of a spheroid, an ellipsoid of revolution :
+ * its quadratic part is alpha.I + beta.u.u' for a unit axis u. For a given u
+ * the problem is linear in alpha, beta and the 4 remaining coefficients, and
+ * is solved directly; the axis itself is searched for on the sphere, starting
+ * from the best of the principal directions of the points and refined by a
+ * pattern search on the algebraic cost. Seven points in general position
+ * determine the spheroid.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class SpheroidFitter extends AbstractDirectFitter {
+
+	/**
+	 * Unit trace of the quadratic part, 3.alpha + beta
+	 */
+	private static final double[] TRACE = { 3, 1, 0, 0, 0, 0 };
+	/**
+	 * Initial and final angular steps of the search of the axis, in radians
+	 */
+	private static final double FIRST_STEP = 0.2;
+	private static final double LAST_STEP = 1e-6;
+
+	private final double[] w = new double[10];
+	private final double[][] basis = new double[6][10];
+	private final CholeskyProx prox = new CholeskyProx(6);
+	private final double[][] G = new double[6][6];
+	private final double[] x = new double[6];
+	private final double[] u = new double[3];
+	private final double[] candidate = new double[3];
+	private final double[] coeffs = new double[10];
+
+	/**
+	 * Builds a fitter expressing the quadrics relatively to the origin of the
+	 * given options
+	 *
+	 * @param options
+	 *            The parameters of the fits
+	 */
+	public SpheroidFitter(FitOptions options) {
+		super(options);
+		basis[0][0] = basis[0][1] = basis[0][2] = 1;
+		for (int a = 2; a < 6; a++)
+			basis[a][4 + a] = 1;
+	}
+
+	@Override
+	protected boolean solve(double[][] K, int n, double weight, double[] result) {
+		if (n < 7 || !monomialScales(K, weight, w))
+			return false;
+
+		// The axis of revolution is one of the principal directions of the
+		// points when they cover the whole surface
+		double[][] S = new double[3][3];
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				S[i][j] = K[6 + i][6 + j];
+		double[][] V = new double[3][3];
+		SymmetricEigen3.decompose(S, new double[3], V);
+		double best = Double.POSITIVE_INFINITY;
+		for (int k = 0; k < 3; k++) {
+			for (int i = 0; i < 3; i++)
+				candidate[i] = V[i][k];
+			double cost = cost(K, candidate);
+			if (cost < best) {
+				best = cost;
+				System.arraycopy(candidate, 0, u, 0, 3);
+			}
+		}
+		if (Double.isInfinite(best))
+			return false;
+
+		// Pattern search : tilts the axis around two directions orthogonal to
+		// it, halving the step when no tilt lowers the cost
+		double step = FIRST_STEP;
+		double[] e1 = new double[3], e2 = new double[3];
+		while (step >= LAST_STEP) {
+			orthogonal(u, e1, e2);
+			boolean improved = false;
+			for (int k = 0; k < 4 && !improved; k++) {
+				double[] e = k < 2 ? e1 : e2;
+				double sign = k % 2 == 0 ? 1 : -1;
+				double c = Math.cos(step), s = sign * Math.sin(step);
+				for (int i = 0; i < 3; i++)
+					candidate[i] = c * u[i] + s * e[i];
+				double cost = cost(K, candidate);
+				if (cost < best) {
+					best = cost;
+					System.arraycopy(candidate, 0, u, 0, 3);
+					improved = true;
+				}
+			}
+			if (!improved)
+				step /= 2;
+		}
+		if (Double.isNaN(cost(K, u)))
+			return false;
+		System.arraycopy(coeffs, 0, result, 0, 10);
+		return EllipsoidParameters.fromQuadric(result) != null;
+	}
+
+	/**
+	 * Fits the spheroid of the given axis, writing it in coeffs
+	 *
+	 * @return The algebraic cost of the spheroid, infinite if the points do
+	 *         not determine it
+	 */
+	private double cost(double[][] K, double[] axis) {
+		double[] b = basis[1];
+		b[0] = axis[0] * axis[0];
+		b[1] = axis[1] * axis[1];
+		b[2] = axis[2] * axis[2];
+		b[3] = 2 * axis[0] * axis[1];
+		b[4] = 2 * axis[0] * axis[2];
+		b[5] = 2 * axis[1] * axis[2];
+		double cost = solveInSubspace(K, w, basis, TRACE, prox, G, x, coeffs);
+		return Double.isNaN(cost) ? Double.POSITIVE_INFINITY : cost;
+	}
+
+	/**
+	 * Computes two unit vectors orthogonal to u and to each other
+	 */
+	private static void orthogonal(double[] u, double[] e1, double[] e2) {
+		// Crosses u with the canonical axis the least aligned with it
+		int k = Math.abs(u[0]) < Math.abs(u[1]) ? (Math.abs(u[0]) < Math.abs(u[2]) ? 0 : 2)
+				: (Math.abs(u[1]) < Math.abs(u[2]) ? 1 : 2);
+		double[] a = new double[3];
+		a[k] = 1;
+		cross(u, a, e1);
+		double norm = Math.sqrt(e1[0] * e1[0] + e1[1] * e1[1] + e1[2] * e1[2]);
+		for (int i = 0; i < 3; i++)
+			e1[i] /= norm;
+		cross(u, e1, e2);
+	}
+
+	private static void cross(double[] a, double[] b, double[] out) {
+		out[0] = a[1] * b[2] - a[2] * b[1];
+		out[1] = a[2] * b[0] - a[0] * b[2];
+		out[2] = a[0] * b[1] - a[1] * b[0];
+	}
+
+}
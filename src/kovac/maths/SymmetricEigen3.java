@@ -0,0 +1,358 @@
+package kovac.maths;
+
+/**
+ * Closed-form eigen-decomposition of a real symmetric 3x3 matrix. The
+ * eigenvalues are the roots of the characteristic polynomial, given by the
+ * trigonometric formula of Smith; the eigenvector of the eigenvalue the most
+ * separated from the two others is the largest cross product of two rows of
+ * A - lambda.I, and the two other eigenpairs are the ones of the restriction
+ * of A to the plane orthogonal to it, which keeps them accurate when two
+ * eigenvalues are close. When the three eigenvalues are nearly equal, the
+ * cyclic Jacobi algorithm is used instead.
+ * <p>
+ * No object is allocated when the caller provides the working buffer of the
+ * Jacobi fallback, so the decomposition can run in the iterations of the
+ * solvers, whose near-spherical fits often hit the fallback, or over many
+ * quadrics, for instance on every refresh of the statistics of the saved
+ * ellipsoids.
+ *
+ * @author bastien.kovac
+ *
+ */
+public final class SymmetricEigen3 {
+
+	/**
+	 * Spread of the eigenvalues, relatively to the largest coefficient, under
+	 * which the decomposition falls back to the Jacobi algorithm
+	 */
+	private static final double DEGENERATE_SPREAD = 1e-6;
+	/**
+	 * Maximum number of sweeps of the Jacobi algorithm
+	 */
+	private static final int MAX_SWEEPS = 50;
+
+	private SymmetricEigen3() {
+	}
+
+	/**
+	 * Decomposes a symmetric matrix as A = V.diag(values).V'
+	 *
+	 * @param A
+	 *            The symmetric matrix, only its upper triangle is read
+	 * @param values
+	 *            Receives the eigenvalues, in ascending order
+	 * @param vectors
+	 *            Receives the eigenvectors as its columns, orthonormal and
+	 *            forming a direct frame. May be null if only the eigenvalues
+	 *            are needed
+	 */
+	public static void decompose(double[][] A, double[] values, double[][] vectors) {
+		decompose(A, values, vectors, null);
+	}
+
+	/**
+	 * Decomposes a symmetric matrix as A = V.diag(values).V', the Jacobi
+	 * fallback working in the given buffer
+	 *
+	 * @param A
+	 *            The symmetric matrix, only its upper triangle is read
+	 * @param values
+	 *            Receives the eigenvalues, in ascending order
+	 * @param vectors
+	 *            Receives the eigenvectors as its columns, orthonormal and
+	 *            forming a direct frame. May be null if only the eigenvalues
+	 *            are needed
+	 * @param work
+	 *            A 3x3 buffer, overwritten, or null to allocate one when the
+	 *            eigenvalues are nearly equal
+	 */
+	public static void decompose(double[][] A, double[] values, double[][] vectors, double[][] work) {
+		// Scales the matrix to avoid overflows and underflows
+		double max = 0;
+		for (int i = 0; i < 3; i++)
+			for (int j = i; j < 3; j++)
+				max = Math.max(max, Math.abs(A[i][j]));
+		if (max == 0 || Double.isInfinite(max) || Double.isNaN(max)) {
+			values[0] = values[1] = values[2] = max == 0 ? 0 : Double.NaN;
+			if (vectors != null)
+				identity(vectors);
+			return;
+		}
+		double a00 = A[0][0] / max, a01 = A[0][1] / max, a02 = A[0][2] / max;
+		double a11 = A[1][1] / max, a12 = A[1][2] / max, a22 = A[2][2] / max;
+
+		// Eigenvalues of B = (A - q.I) / p, whose characteristic polynomial
+		// is x^3 - 3x - det(B)
+		double q = (a00 + a11 + a22) / 3;
+		double b00 = a00 - q, b11 = a11 - q, b22 = a22 - q;
+		double offDiagonal = a01 * a01 + a02 * a02 + a12 * a12;
+		double p = Math.sqrt((b00 * b00 + b11 * b11 + b22 * b22 + 2 * offDiagonal) / 6);
+		if (p == 0) {
+			values[0] = values[1] = values[2] = q * max;
+			if (vectors != null)
+				identity(vectors);
+			return;
+		}
+		if (p < DEGENERATE_SPREAD) {
+			// The directions are ill-defined and b00, b11, b22 lost most of
+			// their digits
+			double[][] a = work != null ? work : new double[3][3];
+			a[0][0] = a00;
+			a[0][1] = a[1][0] = a01;
+			a[0][2] = a[2][0] = a02;
+			a[1][1] = a11;
+			a[1][2] = a[2][1] = a12;
+			a[2][2] = a22;
+			double[][] v = vectors == null ? new double[3][3] : vectors;
+			jacobi(a, v, values);
+			sort(values, v);
+			for (int i = 0; i < 3; i++)
+				values[i] *= max;
+			return;
+		}
+		double detB = (b00 * (b11 * b22 - a12 * a12) - a01 * (a01 * b22 - a12 * a02)
+				+ a02 * (a01 * a12 - b11 * a02)) / (p * p * p);
+		double phi = Math.acos(Math.max(-1, Math.min(1, detB / 2))) / 3;
+		double largest = q + 2 * p * Math.cos(phi);
+		double smallest = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+		double middle = 3 * q - largest - smallest;
+		if (vectors == null)
+			vectors = new double[3][3];
+
+		// Starts with the eigenvalue the most separated from the others, which
+		// the formula gives accurately
+		boolean fromLargest = largest - middle >= middle - smallest;
+		double first = fromLargest ? largest : smallest;
+		int c0 = fromLargest ? 2 : 0;
+		separatedVector(a00 - first, a01, a02, a11 - first, a12, a22 - first, vectors, c0);
+		double x0 = vectors[0][c0], y0 = vectors[1][c0], z0 = vectors[2][c0];
+
+		// The two close eigenvalues lose half of their digits in the formula :
+		// they are recomputed from the restriction of the matrix to the plane
+		// orthogonal to v0, spanned by u and w = v0 x u
+		double ux, uy, uz;
+		if (Math.abs(x0) > Math.abs(y0)) {
+			double norm = Math.sqrt(x0 * x0 + z0 * z0);
+			ux = -z0 / norm;
+			uy = 0;
+			uz = x0 / norm;
+		} else {
+			double norm = Math.sqrt(y0 * y0 + z0 * z0);
+			ux = 0;
+			uy = z0 / norm;
+			uz = -y0 / norm;
+		}
+		double wx = y0 * uz - z0 * uy, wy = z0 * ux - x0 * uz, wz = x0 * uy - y0 * ux;
+		double uAu = quadratic(a00, a01, a02, a11, a12, a22, ux, uy, uz, ux, uy, uz);
+		double uAw = quadratic(a00, a01, a02, a11, a12, a22, ux, uy, uz, wx, wy, wz);
+		double wAw = quadratic(a00, a01, a02, a11, a12, a22, wx, wy, wz, wx, wy, wz);
+		double half = (uAu - wAw) / 2;
+		double radius = Math.sqrt(half * half + uAw * uAw);
+		double mean = (uAu + wAw) / 2;
+		first = quadratic(a00, a01, a02, a11, a12, a22, x0, y0, z0, x0, y0, z0);
+		middle = fromLargest ? mean + radius : mean - radius;
+		if (fromLargest) {
+			values[0] = (mean - radius) * max;
+			values[1] = middle * max;
+			values[2] = first * max;
+		} else {
+			values[0] = first * max;
+			values[1] = middle * max;
+			values[2] = (mean + radius) * max;
+		}
+
+		// Eigenvector of the middle eigenvalue in the plane
+		uAu -= middle;
+		wAw -= middle;
+		double cu, cw;
+		if (Math.abs(uAu) >= Math.abs(wAw)) {
+			cu = -uAw;
+			cw = uAu;
+		} else {
+			cu = wAw;
+			cw = -uAw;
+		}
+		double norm = Math.sqrt(cu * cu + cw * cw);
+		if (norm > 0) {
+			cu /= norm;
+			cw /= norm;
+		} else {
+			// The restricted matrix is scalar : both eigenvalues are equal
+			cu = 1;
+			cw = 0;
+		}
+		double x1 = cu * ux + cw * wx, y1 = cu * uy + cw * wy, z1 = cu * uz + cw * wz;
+		vectors[0][1] = x1;
+		vectors[1][1] = y1;
+		vectors[2][1] = z1;
+
+		// The last eigenvector completes a direct frame
+		int c2 = 2 - c0;
+		double sign = c0 == 0 ? 1 : -1;
+		vectors[0][c2] = sign * (y0 * z1 - z0 * y1);
+		vectors[1][c2] = sign * (z0 * x1 - x0 * z1);
+		vectors[2][c2] = sign * (x0 * y1 - y0 * x1);
+	}
+
+	/**
+	 * Writes the quadratic part of the quadric of matrix V.diag(values).V' in
+	 * the first 6 coefficients of q, without building the matrix
+	 *
+	 * @param vectors
+	 *            The eigenvectors, as columns
+	 * @param values
+	 *            The eigenvalues
+	 * @param q
+	 *            Receives the coefficients of x^2, y^2, z^2, xy, xz and yz, the
+	 *            others are left untouched
+	 */
+	public static void reconstruct(double[][] vectors, double[] values, double[] q) {
+		double[] v0 = vectors[0], v1 = vectors[1], v2 = vectors[2];
+		double s0 = values[0], s1 = values[1], s2 = values[2];
+		// Rows of V.diag(values)
+		double w00 = v0[0] * s0, w01 = v0[1] * s1, w02 = v0[2] * s2;
+		double w10 = v1[0] * s0, w11 = v1[1] * s1, w12 = v1[2] * s2;
+		q[0] = w00 * v0[0] + w01 * v0[1] + w02 * v0[2];
+		q[1] = w10 * v1[0] + w11 * v1[1] + w12 * v1[2];
+		q[2] = v2[0] * v2[0] * s0 + v2[1] * v2[1] * s1 + v2[2] * v2[2] * s2;
+		q[3] = 2 * (w00 * v1[0] + w01 * v1[1] + w02 * v1[2]);
+		q[4] = 2 * (w00 * v2[0] + w01 * v2[1] + w02 * v2[2]);
+		q[5] = 2 * (w10 * v2[0] + w11 * v2[1] + w12 * v2[2]);
+	}
+
+	/**
+	 * Cyclic Jacobi eigenvalue algorithm for a symmetric 3x3 matrix. Slower
+	 * than the closed form but accurate whatever the spectrum
+	 *
+	 * @param a
+	 *            The symmetric input matrix, destroyed during the process
+	 * @param v
+	 *            Receives the eigenvectors as columns
+	 * @param eig
+	 *            Receives the eigenvalues, in no particular order
+	 */
+	public static void jacobi(double[][] a, double[][] v, double[] eig) {
+		identity(v);
+		for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+			double off = Math.abs(a[0][1]) + Math.abs(a[0][2]) + Math.abs(a[1][2]);
+			double scale = Math.abs(a[0][0]) + Math.abs(a[1][1]) + Math.abs(a[2][2]);
+			if (off == 0 || off <= 1e-15 * scale)
+				break;
+			for (int pp = 0; pp < 2; pp++) {
+				for (int qq = pp + 1; qq < 3; qq++) {
+					double apq = a[pp][qq];
+					if (apq == 0)
+						continue;
+					double theta = (a[qq][qq] - a[pp][pp]) / (2 * apq);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0)
+						t = 1;
+					double cos = 1 / Math.sqrt(t * t + 1);
+					double sin = t * cos;
+					for (int k = 0; k < 3; k++) {
+						double akp = a[k][pp], akq = a[k][qq];
+						a[k][pp] = cos * akp - sin * akq;
+						a[k][qq] = sin * akp + cos * akq;
+					}
+					for (int k = 0; k < 3; k++) {
+						double apk = a[pp][k], aqk = a[qq][k];
+						a[pp][k] = cos * apk - sin * aqk;
+						a[qq][k] = sin * apk + cos * aqk;
+					}
+					for (int k = 0; k < 3; k++) {
+						double vkp = v[k][pp], vkq = v[k][qq];
+						v[k][pp] = cos * vkp - sin * vkq;
+						v[k][qq] = sin * vkp + cos * vkq;
+					}
+				}
+			}
+		}
+		eig[0] = a[0][0];
+		eig[1] = a[1][1];
+		eig[2] = a[2][2];
+	}
+
+	/**
+	 * Sorts the eigenvalues in ascending order along with their eigenvectors,
+	 * and makes the eigenvectors a direct frame
+	 */
+	private static void sort(double[] values, double[][] vectors) {
+		for (int i = 1; i < 3; i++) {
+			for (int j = i; j > 0 && values[j] < values[j - 1]; j--) {
+				double tmp = values[j];
+				values[j] = values[j - 1];
+				values[j - 1] = tmp;
+				for (int k = 0; k < 3; k++) {
+					tmp = vectors[k][j];
+					vectors[k][j] = vectors[k][j - 1];
+					vectors[k][j - 1] = tmp;
+				}
+			}
+		}
+		double det = vectors[0][0] * (vectors[1][1] * vectors[2][2] - vectors[2][1] * vectors[1][2])
+				- vectors[0][1] * (vectors[1][0] * vectors[2][2] - vectors[2][0] * vectors[1][2])
+				+ vectors[0][2] * (vectors[1][0] * vectors[2][1] - vectors[2][0] * vectors[1][1]);
+		if (det < 0) {
+			for (int k = 0; k < 3; k++)
+				vectors[k][2] = -vectors[k][2];
+		}
+	}
+
+	/**
+	 * Computes the unit vector orthogonal to the rows of the symmetric matrix
+	 * M, singular of rank 2, as the largest cross product of two of its rows
+	 */
+	private static void separatedVector(double m00, double m01, double m02, double m11, double m12, double m22,
+			double[][] vectors, int column) {
+		double x01 = m01 * m12 - m02 * m11, y01 = m02 * m01 - m00 * m12, z01 = m00 * m11 - m01 * m01;
+		double x02 = m01 * m22 - m02 * m12, y02 = m02 * m02 - m00 * m22, z02 = m00 * m12 - m01 * m02;
+		double x12 = m11 * m22 - m12 * m12, y12 = m12 * m02 - m01 * m22, z12 = m01 * m12 - m11 * m02;
+		double d01 = x01 * x01 + y01 * y01 + z01 * z01;
+		double d02 = x02 * x02 + y02 * y02 + z02 * z02;
+		double d12 = x12 * x12 + y12 * y12 + z12 * z12;
+		double x, y, z, d;
+		if (d01 >= d02 && d01 >= d12) {
+			x = x01;
+			y = y01;
+			z = z01;
+			d = d01;
+		} else if (d02 >= d12) {
+			x = x02;
+			y = y02;
+			z = z02;
+			d = d02;
+		} else {
+			x = x12;
+			y = y12;
+			z = z12;
+			d = d12;
+		}
+		if (d > 0) {
+			d = Math.sqrt(d);
+			vectors[0][column] = x / d;
+			vectors[1][column] = y / d;
+			vectors[2][column] = z / d;
+		} else {
+			// The three eigenvalues are numerically equal
+			vectors[0][column] = 1;
+			vectors[1][column] = 0;
+			vectors[2][column] = 0;
+		}
+	}
+
+	/**
+	 * @return x'.A.y for the symmetric matrix A
+	 */
+	private static double quadratic(double a00, double a01, double a02, double a11, double a12, double a22,
+			double x0, double x1, double x2, double y0, double y1, double y2) {
+		return x0 * (a00 * y0 + a01 * y1 + a02 * y2) + x1 * (a01 * y0 + a11 * y1 + a12 * y2)
+				+ x2 * (a02 * y0 + a12 * y1 + a22 * y2);
+	}
+
+	private static void identity(double[][] vectors) {
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				vectors[i][j] = i == j ? 1 : 0;
+	}
+
+}
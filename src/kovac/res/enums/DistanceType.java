@@ -0,0 +1,22 @@
+package kovac.res.enums;
+
+/**
+ * This enumeration handles the distances of a point to a quadric used to
+ * reject outliers
+ * 
+ * @author bastien.kovac
+ *
+ */
+public enum DistanceType {
+
+	/**
+	 * The value of the quadric at the point, cheap but not in voxels
+	 */
+	Algebraic,
+	/**
+	 * The value of the quadric divided by the norm of its gradient, a first
+	 * order approximation of the euclidean distance
+	 */
+	Sampson
+
+}
@@ -0,0 +1,13 @@
+package kovac.res.enums;
+
+/**
+ * This enumeration handles the reason why an iterative fit stopped
+ * 
+ * @author bastien.kovac
+ *
+ */
+public enum ExitReason {
+
+	Converged, MaxIterations, NotFinite, Degenerate
+
+}
@@ -0,0 +1,54 @@
+package kovac.res.enums;
+
+/**
+ * This enumeration handles the algorithms available to fit an ellipsoid
+ *
+ * @author bastien.kovac
+ *
+ */
+public enum FittingEngine {
+
+	/**
+	 * Iterative Douglas-Rachford fit, the quadratic part is constrained to be
+	 * positive semi-definite
+	 */
+	DouglasRachford(9),
+	/**
+	 * Direct least squares fit of Li and Griffiths, solved as a single
+	 * generalized eigenproblem
+	 */
+	LiGriffiths(9),
+	/**
+	 * Ellipsoid given by the second order moments of the points
+	 */
+	Moments(4),
+	/**
+	 * Sphere, 4 degrees of freedom
+	 */
+	Sphere(4),
+	/**
+	 * Ellipsoid of revolution around any axis, 7 degrees of freedom
+	 */
+	Spheroid(7),
+	/**
+	 * Ellipsoid whose axes are the axes of the stack, 6 degrees of freedom
+	 */
+	AxisAligned(6);
+
+	/**
+	 * Number of points determining the shape
+	 */
+	private final int minimumPoints;
+
+	private FittingEngine(int minimumPoints) {
+		this.minimumPoints = minimumPoints;
+	}
+
+	/**
+	 * @return The number of points needed to determine the shape
+	 */
+	public int getMinimumPoints() {
+		return minimumPoints;
+	}
+
+}
@@ -0,0 +1,22 @@
+package kovac.res.enums;
+
+/**
+ * This enumeration handles the loss functions of the iteratively reweighted
+ * fits
+ * 
+ * @author bastien.kovac
+ *
+ */
+public enum RobustLoss {
+
+	/**
+	 * Quadratic near the ellipsoid and linear far from it : distant points
+	 * are down-weighted but never ignored
+	 */
+	Huber,
+	/**
+	 * Tukey's biweight : points further than the cut-off get a null weight
+	 */
+	Tukey
+
+}
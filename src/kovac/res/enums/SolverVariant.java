@@ -0,0 +1,30 @@
+package kovac.res.enums;
+
+/**
+ * This enumeration handles the variants of the Douglas-Rachford iteration
+ * 
+ * @author bastien.kovac
+ *
+ */
+public enum SolverVariant {
+
+	/**
+	 * The original iteration, with a fixed gamma
+	 */
+	Plain,
+	/**
+	 * Over-relaxed iteration, each step is scaled by the relaxation parameter
+	 */
+	Relaxed,
+	/**
+	 * Anderson acceleration of the iteration, extrapolating from the last
+	 * iterates
+	 */
+	Anderson,
+	/**
+	 * Gamma is adjusted during the iterations to balance the primal residual
+	 * and the change of the iterates
+	 */
+	AdaptiveGamma
+
+}
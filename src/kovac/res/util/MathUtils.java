@@ -1,6 +1,9 @@
 package kovac.res.util;
 
+import java.util.Arrays;
+
 import Jama.Matrix;
+import kovac.res.enums.DistanceType;
 
 public class MathUtils {
 
@@ -68,4 +71,43 @@ public class MathUtils {
 		return sum(t) / t.length;
 	}
 
+	/**
+	 * Computes the distance of a point to a quadric
+	 *
+	 * @param q
+	 *            The 10 coefficients of the quadric
+	 * @param x
+	 *            X coordinate of the point
+	 * @param y
+	 *            Y coordinate of the point
+	 * @param z
+	 *            Z coordinate of the point
+	 * @param type
+	 *            The distance to compute
+	 * @return The (positive) distance
+	 */
+	public static double distanceToQuadric(double[] q, double x, double y, double z, DistanceType type) {
+		double f = q[0] * x * x + q[1] * y * y + q[2] * z * z + q[3] * x * y + q[4] * x * z + q[5] * y * z + q[6] * x
+				+ q[7] * y + q[8] * z + q[9];
+		if (type == DistanceType.Algebraic)
+			return Math.abs(f);
+		double gx = 2 * q[0] * x + q[3] * y + q[4] * z + q[6];
+		double gy = 2 * q[1] * y + q[3] * x + q[5] * z + q[7];
+		double gz = 2 * q[2] * z + q[4] * x + q[5] * y + q[8];
+		double norm = Math.sqrt(gx * gx + gy * gy + gz * gz);
+		return norm > 0 ? Math.abs(f) / norm : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @param d
+	 *            The values, not modified
+	 * @return The median of the values
+	 */
+	public static double median(double[] d) {
+		double[] sorted = d.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+		return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
 }
@@ -8,11 +8,14 @@ import icy.gui.viewer.Viewer;
 import icy.painter.Overlay;
 import icy.sequence.DimensionId;
 import icy.sequence.Sequence;
+import kovac.maths.ReferenceFrame;
 import kovac.res.gui.CustomOrthoViewer;
 import kovac.res.gui.LinkListener;
 import kovac.res.gui.LockedOrthoViewer;
 import kovac.res.gui.CustomOrthoViewer.CustomOrthoCanvas;
 import kovac.shapes.AxisOverlay;
+import kovac.shapes.EllipsoidOverlay;
+import kovac.shapes.EllipsoidScene;
 import plugins.adufour.viewers.OrthoViewer.OrthoCanvas;
 import plugins.adufour.viewers.OrthoViewer.OrthoCanvas.OrthoView;
 import plugins.kernel.canvas.VtkCanvas;
@@ -35,6 +38,10 @@ public class ViewerUtil {
 	 * The base sequence that was used to launch the plugin
 	 */
 	private static Sequence baseSeq;
+	/**
+	 * Displays the ellipsoids of the VTK view through a single actor
+	 */
+	private static EllipsoidScene scene;
 
 	/**
 	 * Set a Viewer as the OrthoViewer
@@ -218,6 +225,12 @@ public class ViewerUtil {
 	 */
 	public static void removeOverlayFromVTK(Overlay o) {
 		getVTKSequence().removeOverlay(o);
+		if (scene == null)
+			return;
+		if (o == scene)
+			scene.clear();
+		else if (o instanceof EllipsoidOverlay)
+			scene.remove((EllipsoidOverlay) o);
 	}
 
 	/**
@@ -244,9 +257,25 @@ public class ViewerUtil {
 	 *            The Overlay to add
 	 */
 	public static void addOverlayToVTK(Overlay o) {
+		// The ellipsoids are drawn by the scene, before their overlay asks
+		// for its actors
+		if (o instanceof EllipsoidOverlay)
+			getEllipsoidScene().add((EllipsoidOverlay) o);
 		getVTKSequence().addOverlay(o);
 	}
 
+	/**
+	 * @return The scene displaying the ellipsoids of the VTK view, added to
+	 *         its sequence if it is not yet
+	 */
+	public static EllipsoidScene getEllipsoidScene() {
+		if (scene == null || !getVTKOverlays().contains(scene)) {
+			scene = new EllipsoidScene("Ellipsoids");
+			getVTKSequence().addOverlay(scene);
+		}
+		return scene;
+	}
+
 	/**
 	 * @return The scale of the base sequence as an array of pixel sizes [x, y,
 	 *         z]
@@ -263,6 +292,14 @@ public class ViewerUtil {
 		return new double[] { baseSeq.getSizeX(), baseSeq.getSizeY(), baseSeq.getSizeZ() };
 	}
 
+	/**
+	 * @return The reference frame of the base sequence, whose origin is the
+	 *         center of the image
+	 */
+	public static ReferenceFrame getReferenceFrame() {
+		return ReferenceFrame.centered(getSizes(), getScale());
+	}
+
 	/**
 	 * @return The current position of the orthogonal viewer
 	 */
@@ -320,6 +357,7 @@ public class ViewerUtil {
 		vVTK = null;
 		vOrth = null;
 		baseSeq = null;
+		scene = null;
 	}
 
 }
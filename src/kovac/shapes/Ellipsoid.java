@@ -1,5 +1,7 @@
 package kovac.shapes;
 
+import kovac.maths.EllipsoidParameters;
+
 /**
  * This class is here to represent an ellipsoid
  * 
@@ -12,6 +14,12 @@ public class Ellipsoid {
 	 * The three semi-length of the ellipsoid (Usually noted as a, b and c)
 	 */
 	private double xSemiAxis, ySemiAxis, zSemiAxis;
+	/**
+	 * The center of the ellipsoid, and the rotation whose columns are the
+	 * directions of its semi-axes
+	 */
+	private double[] center;
+	private double[][] rotation;
 
 	/**
 	 * The name of the ellipsoid
@@ -23,7 +31,48 @@ public class Ellipsoid {
 		this.xSemiAxis = xSemiAxis;
 		this.ySemiAxis = ySemiAxis;
 		this.zSemiAxis = zSemiAxis;
-		
+		this.center = new double[3];
+		this.rotation = new double[][] { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+	}
+
+	/**
+	 * Builds an ellipsoid from the parameters decomposed from its quadric
+	 * 
+	 * @param parameters
+	 *            The center, semi-axes and rotation of the ellipsoid
+	 */
+	public Ellipsoid(EllipsoidParameters parameters) {
+		double[] axes = parameters.getAxes();
+		this.xSemiAxis = axes[0];
+		this.ySemiAxis = axes[1];
+		this.zSemiAxis = axes[2];
+		this.center = parameters.getCenter();
+		this.rotation = parameters.getRotation();
+	}
+
+	/**
+	 * @return A copy of the three semi-axes
+	 */
+	public double[] getSemiAxes() {
+		return new double[] { xSemiAxis, ySemiAxis, zSemiAxis };
+	}
+
+	/**
+	 * @return A copy of the center of the ellipsoid
+	 */
+	public double[] getCenter() {
+		return center.clone();
+	}
+
+	/**
+	 * @return A copy of the rotation, whose columns are the directions of the
+	 *         semi-axes
+	 */
+	public double[][] getRotation() {
+		double[][] copy = new double[3][];
+		for (int i = 0; i < 3; i++)
+			copy[i] = rotation[i].clone();
+		return copy;
 	}
 
 	/**
@@ -45,8 +94,6 @@ public class Ellipsoid {
 				+ Math.pow(ySemiAxis, p) * Math.pow(zSemiAxis, p)) / 3;
 		return (4 * Math.PI) * Math.pow(tmp, 1 / p);
 	}
-	
-	
 
 	/**
 	 * Sets the name of the ellipsoid
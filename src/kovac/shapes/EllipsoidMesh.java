@@ -0,0 +1,246 @@
+package kovac.shapes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import kovac.maths.EllipsoidParameters;
+
+/**
+ * A triangle mesh of the surface of an ellipsoid, built from its center,
+ * semi-axes and rotation rather than by contouring its quadric over the whole
+ * image. The mesh is an icosphere, an icosahedron whose triangles are split in
+ * four level times and projected back on the unit sphere, mapped on the
+ * ellipsoid by x = c + R.diag(axes).u : its triangles stay close to
+ * equilateral, without the thin triangles of the poles of a UV sphere.
+ * <p>
+ * The unit icospheres are built once per level and shared, so building the
+ * mesh of an ellipsoid is a single pass over the vertices.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class EllipsoidMesh {
+
+	/**
+	 * Levels the resolution of a mesh is chosen between : 320 triangles at
+	 * MIN_LEVEL, 20480 at MAX_LEVEL
+	 */
+	public static final int MIN_LEVEL = 2;
+	public static final int MAX_LEVEL = 5;
+	/**
+	 * Angle between two neighbouring vertices of the icosahedron, in radians
+	 */
+	private static final double ICOSAHEDRON_EDGE = Math.atan(2);
+
+	/**
+	 * Vertices and triangles of the unit icosphere of each level, built on
+	 * demand
+	 */
+	private static final double[][] UNIT_VERTICES = new double[MAX_LEVEL + 1][];
+	private static final int[][] UNIT_TRIANGLES = new int[MAX_LEVEL + 1][];
+
+	private final int level;
+	/**
+	 * Coordinates of the vertices, as [x0, y0, z0, x1, y1, z1...]
+	 */
+	private final double[] points;
+	/**
+	 * Unit outward normal of the ellipsoid at each vertex
+	 */
+	private final double[] normals;
+	/**
+	 * Indices of the vertices of each triangle, counter-clockwise seen from
+	 * outside, shared with the unit icosphere
+	 */
+	private final int[] triangles;
+
+	private EllipsoidMesh(int level, double[] points, double[] normals, int[] triangles) {
+		this.level = level;
+		this.points = points;
+		this.normals = normals;
+		this.triangles = triangles;
+	}
+
+	/**
+	 * Builds the mesh of an ellipsoid, with the resolution of the given level
+	 *
+	 * @param parameters
+	 *            The center, semi-axes and rotation of the ellipsoid
+	 * @param level
+	 *            The number of subdivisions of the icosahedron, between
+	 *            MIN_LEVEL and MAX_LEVEL
+	 * @return The mesh, in the units of the parameters
+	 */
+	public static EllipsoidMesh build(EllipsoidParameters parameters, int level) {
+		if (level < MIN_LEVEL || level > MAX_LEVEL)
+			throw new IllegalArgumentException("The level must be between " + MIN_LEVEL + " and " + MAX_LEVEL);
+		double[] unit = getUnitVertices(level);
+		double[] c = parameters.getCenter(), axes = parameters.getAxes();
+		double[][] r = parameters.getRotation();
+		// Columns of R.diag(axes), mapping the sphere on the ellipsoid, and of
+		// R.diag(1 / axes), mapping its normals
+		double[][] m = new double[3][3], n = new double[3][3];
+		for (int i = 0; i < 3; i++) {
+			for (int k = 0; k < 3; k++) {
+				m[i][k] = r[i][k] * axes[k];
+				n[i][k] = r[i][k] / axes[k];
+			}
+		}
+		int nbVertices = unit.length / 3;
+		double[] points = new double[unit.length], normals = new double[unit.length];
+		for (int v = 0; v < nbVertices; v++) {
+			double ux = unit[3 * v], uy = unit[3 * v + 1], uz = unit[3 * v + 2];
+			double nx = n[0][0] * ux + n[0][1] * uy + n[0][2] * uz;
+			double ny = n[1][0] * ux + n[1][1] * uy + n[1][2] * uz;
+			double nz = n[2][0] * ux + n[2][1] * uy + n[2][2] * uz;
+			double norm = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			for (int i = 0; i < 3; i++)
+				points[3 * v + i] = c[i] + m[i][0] * ux + m[i][1] * uy + m[i][2] * uz;
+			normals[3 * v] = nx / norm;
+			normals[3 * v + 1] = ny / norm;
+			normals[3 * v + 2] = nz / norm;
+		}
+		return new EllipsoidMesh(level, points, normals, UNIT_TRIANGLES[level]);
+	}
+
+	/**
+	 * Chooses the resolution of the mesh of an ellipsoid : the lowest level
+	 * whose chords, of length about axis.edge for an edge of edge radians on
+	 * the unit sphere, deviate from the surface by at most the tolerance
+	 *
+	 * @param largestAxis
+	 *            The largest semi-axis of the ellipsoid
+	 * @param tolerance
+	 *            The largest distance allowed between the mesh and the
+	 *            surface, in the units of the semi-axis
+	 * @return The level, between MIN_LEVEL and MAX_LEVEL
+	 */
+	public static int levelFor(double largestAxis, double tolerance) {
+		int level = MIN_LEVEL;
+		double edge = ICOSAHEDRON_EDGE / (1 << level);
+		while (level < MAX_LEVEL && largestAxis * edge * edge / 8 > tolerance) {
+			level++;
+			edge /= 2;
+		}
+		return level;
+	}
+
+	/**
+	 * @return The number of subdivisions of the icosahedron
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The coordinates of the vertices, as [x0, y0, z0, x1, y1, z1...]
+	 */
+	public double[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return The unit outward normal at each vertex, as [x0, y0, z0, x1...]
+	 */
+	public double[] getNormals() {
+		return normals;
+	}
+
+	/**
+	 * @return The indices of the 3 vertices of each triangle, shared by every
+	 *         mesh of the same level and not to be modified
+	 */
+	public int[] getTriangles() {
+		return triangles;
+	}
+
+	/**
+	 * @return The number of vertices
+	 */
+	public int getNumberOfPoints() {
+		return points.length / 3;
+	}
+
+	/**
+	 * @return The number of triangles
+	 */
+	public int getNumberOfTriangles() {
+		return triangles.length / 3;
+	}
+
+	/**
+	 * @return The vertices of the unit icosphere of the given level, built
+	 *         with the previous levels if needed
+	 */
+	private static synchronized double[] getUnitVertices(int level) {
+		if (UNIT_VERTICES[0] == null)
+			icosahedron();
+		for (int l = 1; l <= level; l++) {
+			if (UNIT_VERTICES[l] == null)
+				subdivide(l - 1);
+		}
+		return UNIT_VERTICES[level];
+	}
+
+	/**
+	 * Builds the level 0, the icosahedron
+	 */
+	private static void icosahedron() {
+		double t = (1 + Math.sqrt(5)) / 2;
+		double[] vertices = { -1, t, 0, 1, t, 0, -1, -t, 0, 1, -t, 0, 0, -1, t, 0, 1, t, 0, -1, -t, 0, 1, -t, t, 0,
+				-1, t, 0, 1, -t, 0, -1, -t, 0, 1 };
+		double norm = Math.sqrt(1 + t * t);
+		for (int i = 0; i < vertices.length; i++)
+			vertices[i] /= norm;
+		UNIT_VERTICES[0] = vertices;
+		UNIT_TRIANGLES[0] = new int[] { 0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0, 10, 11, 1, 5, 9, 5, 11, 4, 11, 10,
+				2, 10, 7, 6, 7, 1, 8, 3, 9, 4, 3, 4, 2, 3, 2, 6, 3, 6, 8, 3, 8, 9, 4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7,
+				9, 8, 1 };
+	}
+
+	/**
+	 * Builds the next level of a unit icosphere, splitting each triangle in
+	 * four at the middles of its edges, projected on the sphere
+	 */
+	private static void subdivide(int level) {
+		double[] vertices = UNIT_VERTICES[level];
+		int[] triangles = UNIT_TRIANGLES[level];
+		int nbVertices = vertices.length / 3, nbTriangles = triangles.length / 3;
+		// Each edge is shared by two triangles : V - E + F = 2 with 2E = 3F
+		double[] next = new double[3 * (nbVertices + 3 * nbTriangles / 2)];
+		System.arraycopy(vertices, 0, next, 0, vertices.length);
+		int[] split = new int[4 * triangles.length];
+		Map<Long, Integer> middles = new HashMap<Long, Integer>();
+		int[] count = { nbVertices };
+		for (int f = 0; f < nbTriangles; f++) {
+			int a = triangles[3 * f], b = triangles[3 * f + 1], c = triangles[3 * f + 2];
+			int ab = middle(a, b, next, middles, count), bc = middle(b, c, next, middles, count),
+					ca = middle(c, a, next, middles, count);
+			int[] children = { a, ab, ca, b, bc, ab, c, ca, bc, ab, bc, ca };
+			System.arraycopy(children, 0, split, 12 * f, 12);
+		}
+		UNIT_VERTICES[level + 1] = next;
+		UNIT_TRIANGLES[level + 1] = split;
+	}
+
+	/**
+	 * @return The index of the middle of the edge between two vertices,
+	 *         added to the vertices the first time it is needed
+	 */
+	private static int middle(int a, int b, double[] vertices, Map<Long, Integer> middles, int[] count) {
+		long key = Math.min(a, b) * (long) Integer.MAX_VALUE + Math.max(a, b);
+		Integer index = middles.get(key);
+		if (index != null)
+			return index;
+		int m = count[0]++;
+		double x = vertices[3 * a] + vertices[3 * b], y = vertices[3 * a + 1] + vertices[3 * b + 1],
+				z = vertices[3 * a + 2] + vertices[3 * b + 2];
+		double norm = Math.sqrt(x * x + y * y + z * z);
+		vertices[3 * m] = x / norm;
+		vertices[3 * m + 1] = y / norm;
+		vertices[3 * m + 2] = z / norm;
+		middles.put(key, m);
+		return m;
+	}
+
+}
@@ -2,20 +2,29 @@ package kovac.shapes;
 
 import javax.swing.JPanel;
 
-import Jama.Matrix;
 import icy.painter.Overlay;
 import icy.painter.VtkPainter;
+import icy.system.thread.ThreadUtil;
 import kovac.groups.Saving;
 import kovac.gui.panels.EllipsoidPanel;
+import kovac.maths.BootstrapResult;
+import kovac.maths.EllipsoidParameters;
+import kovac.maths.QuadricBounds;
+import kovac.maths.ReferenceFrame;
 import kovac.res.quadric.QuadricExpression;
 import kovac.res.util.ViewerUtil;
 import vtk.vtkActor;
+import vtk.vtkCellArray;
 import vtk.vtkContourFilter;
+import vtk.vtkDoubleArray;
+import vtk.vtkIdTypeArray;
+import vtk.vtkOutlineSource;
+import vtk.vtkPoints;
+import vtk.vtkPolyData;
 import vtk.vtkPolyDataMapper;
 import vtk.vtkProp;
 import vtk.vtkQuadric;
 import vtk.vtkSampleFunction;
-import vtk.vtkTransform;
 
 /**
  * This class is here to display an Ellipsoid as a three dimensional VTK Object,
@@ -27,17 +36,75 @@ import vtk.vtkTransform;
 public class EllipsoidOverlay extends Overlay implements VtkPainter {
 
 	/**
-	 * The vtkActor corresponding to the displayed ellipsoid
+	 * Largest distance between the displayed mesh and the ellipsoid, in
+	 * voxels
+	 */
+	private static final double MESH_TOLERANCE = 0.1;
+	/**
+	 * Number of samples of the quadrics which are not ellipsoids, whatever the
+	 * size of their bounding box
+	 */
+	private static final int SAMPLE_BUDGET = 64 * 64 * 64;
+	/**
+	 * Smallest spacing between two samples of a quadric, in voxels
+	 */
+	private static final double MIN_SAMPLE_SPACING = 0.5;
+	/**
+	 * Resolution of the key of the contours of the quadrics which are not
+	 * ellipsoids, the levels of the meshes being positive
+	 */
+	private static final int IMPLICIT_RESOLUTION = -1;
+	/**
+	 * Default memory budget of each cache of meshes, in bytes
+	 */
+	private static final long MESH_CACHE_BUDGET = 256L * 1024 * 1024;
+	/**
+	 * The meshes of the ellipsoids displayed, shared by all the overlays and
+	 * by the EllipsoidScene
+	 */
+	private static final MeshCache<EllipsoidMesh> MESHES = new MeshCache<EllipsoidMesh>(MESH_CACHE_BUDGET);
+	/**
+	 * The contours of the quadrics which are not ellipsoids
+	 */
+	private static final MeshCache<vtkPolyData> CONTOURS = new MeshCache<vtkPolyData>(MESH_CACHE_BUDGET);
+
+	/**
+	 * The vtkActor corresponding to the displayed ellipsoid, built when the
+	 * ellipsoid is first displayed by itself
 	 */
 	private vtkActor ellipsoidActor;
+	/**
+	 * The color and opacity of the ellipsoid
+	 */
+	private double[] color = { 255, 0, 0 };
+	private double opacity = 0.5;
 	/**
 	 * The ellipsoid to display
 	 */
 	private Ellipsoid ellipsoid;
+	/**
+	 * The confidence intervals of the parameters of the ellipsoid, null if
+	 * they were not estimated
+	 */
+	private BootstrapResult uncertainty;
 	/**
 	 * This is the quadratic expression of the ellipsoid, used to display it
 	 */
 	private QuadricExpression quadric;
+	/**
+	 * The frame the quadric is expressed in
+	 */
+	private ReferenceFrame frame;
+	/**
+	 * Level of the mesh of the ellipsoid, and the mesh once it was built
+	 */
+	private int meshLevel;
+	private EllipsoidMesh mesh;
+	/**
+	 * True if the ellipsoid is displayed by an EllipsoidScene rather than by
+	 * its own actor
+	 */
+	private boolean merged;
 	/**
 	 * The name of the Overlay
 	 */
@@ -54,57 +121,246 @@ public class EllipsoidOverlay extends Overlay implements VtkPainter {
 	 *            The quadric expression
 	 */
 	public EllipsoidOverlay(QuadricExpression q) {
+		this(q, ViewerUtil.getReferenceFrame());
+	}
+
+	/**
+	 * Builds an EllipsoidOverlay from a QuadricExpression expressed in the
+	 * given frame
+	 * 
+	 * @param q
+	 *            The quadric expression
+	 * @param frame
+	 *            The frame the quadric is expressed in
+	 */
+	public EllipsoidOverlay(QuadricExpression q, ReferenceFrame frame) {
 		super("Ellipsoid");
 		this.isSaved = false;
 		this.quadric = q;
-		initQuadric();
+		this.frame = frame;
+		initEllipsoid();
+		if (ellipsoid != null)
+			initMesh();
+		else
+			initQuadric();
+	}
+
+	/**
+	 * Decomposes the quadric into the parameters of the ellipsoid, in the
+	 * units of the voxel scale of the frame. The ellipsoid stays null if the
+	 * quadric is not a real ellipsoid
+	 */
+	private void initEllipsoid() {
+		EllipsoidParameters parameters = EllipsoidParameters.fromQuadric(quadric.getSimpleArray(),
+				frame.getOrigin(), frame.getScale());
+		if (parameters != null)
+			this.ellipsoid = new Ellipsoid(parameters);
+	}
+
+	/**
+	 * Chooses the resolution of the mesh of the ellipsoid, which follows its
+	 * size. The mesh and the actor are only built once displayed
+	 */
+	private void initMesh() {
+		double[] scale = frame.getScale();
+		double minScale = Math.min(scale[0], Math.min(scale[1], scale[2]));
+		double[] axes = ellipsoid.getSemiAxes();
+		meshLevel = EllipsoidMesh.levelFor(Math.max(axes[0], Math.max(axes[1], axes[2])),
+				MESH_TOLERANCE * minScale);
+	}
+
+	/**
+	 * @return The vtkActor of the ellipsoid, built from its mesh the first
+	 *         time it is displayed by itself
+	 */
+	private vtkActor getActor() {
+		if (ellipsoidActor == null) {
+			vtkPolyDataMapper mapper = new vtkPolyDataMapper();
+			mapper.SetInputData(toPolyData(getMesh()));
+			ellipsoidActor = new vtkActor();
+			ellipsoidActor.SetMapper(mapper);
+			ellipsoidActor.GetProperty().SetColor(color);
+			ellipsoidActor.GetProperty().SetOpacity(opacity);
+		}
+		return ellipsoidActor;
+	}
+
+	/**
+	 * @return The vtkPolyData of the mesh of an ellipsoid, with its normals
+	 */
+	private static vtkPolyData toPolyData(EllipsoidMesh mesh) {
+		vtkDoubleArray coordinates = new vtkDoubleArray();
+		coordinates.SetNumberOfComponents(3);
+		coordinates.SetJavaArray(mesh.getPoints());
+		vtkPoints points = new vtkPoints();
+		points.SetData(coordinates);
+
+		vtkDoubleArray normals = new vtkDoubleArray();
+		normals.SetNumberOfComponents(3);
+		normals.SetJavaArray(mesh.getNormals());
+
+		int[] triangles = mesh.getTriangles();
+		long[] cells = new long[4 * mesh.getNumberOfTriangles()];
+		for (int f = 0; f < mesh.getNumberOfTriangles(); f++) {
+			cells[4 * f] = 3;
+			for (int i = 0; i < 3; i++)
+				cells[4 * f + 1 + i] = triangles[3 * f + i];
+		}
+		vtkIdTypeArray ids = new vtkIdTypeArray();
+		ids.SetJavaArray(cells);
+		vtkCellArray polys = new vtkCellArray();
+		polys.SetCells(mesh.getNumberOfTriangles(), ids);
+
+		vtkPolyData polyData = new vtkPolyData();
+		polyData.SetPoints(points);
+		polyData.SetPolys(polys);
+		polyData.GetPointData().SetNormals(normals);
+		return polyData;
 	}
 
 	/**
-	 * Initialize the vtkActor from 10 quadratic coefficients
+	 * Initialize the vtkActor by contouring the 10 quadratic coefficients, for
+	 * the quadrics which are not ellipsoids. The quadric is only sampled over
+	 * the bounding box of its surface in the image, with a number of samples
+	 * which does not depend on the size of the box. The contour is computed in
+	 * the background, the box being outlined meanwhile
 	 */
 	private void initQuadric() {
+		ellipsoidActor = new vtkActor();
+		ellipsoidActor.GetProperty().SetColor(color);
+		ellipsoidActor.GetProperty().SetOpacity(opacity);
+
+		double[] sizes = frame.getSize();
+		double[] origin = frame.getOrigin();
+		double[] scale = frame.getScale();
+		// The quadric is sampled in voxels relative to the origin : the actor
+		// scales them to the units of the view and translates them back to
+		// the center of the image
+		ellipsoidActor.SetScale(scale);
+		ellipsoidActor.SetPosition(origin[0] * scale[0], origin[1] * scale[1], origin[2] * scale[2]);
+
+		final double[] coeffs = quadric.getSimpleArray();
+		final MeshCache.Key key = MeshCache.key(coeffs, origin, scale, IMPLICIT_RESOLUTION);
+		vtkPolyData cached = CONTOURS.get(key);
+		if (cached != null) {
+			vtkPolyDataMapper mapper = new vtkPolyDataMapper();
+			mapper.SetInputData(cached);
+			ellipsoidActor.SetMapper(mapper);
+			return;
+		}
+
+		double[] min = new double[3], max = new double[3];
+		for (int i = 0; i < 3; i++) {
+			min[i] = -origin[i];
+			max[i] = sizes[i] - origin[i];
+		}
+		final double[] bounds = QuadricBounds.boundingBox(coeffs, min, max);
+		if (bounds == null) {
+			// The surface does not cross the image, there is nothing to show
+			ellipsoidActor.SetMapper(new vtkPolyDataMapper());
+			return;
+		}
+
+		final int[] dimensions = QuadricBounds.sampleDimensions(bounds, SAMPLE_BUDGET, MIN_SAMPLE_SPACING);
+		// One more sample on each side, so that the contour is closed where
+		// the surface touches the box
+		for (int i = 0; i < 3; i++) {
+			double spacing = (bounds[2 * i + 1] - bounds[2 * i]) / (dimensions[i] - 1);
+			bounds[2 * i] -= spacing;
+			bounds[2 * i + 1] += spacing;
+			dimensions[i] += 2;
+		}
+
+		vtkOutlineSource outline = new vtkOutlineSource();
+		outline.SetBounds(bounds);
+		vtkPolyDataMapper outlineMapper = new vtkPolyDataMapper();
+		outlineMapper.SetInputConnection(outline.GetOutputPort());
+		ellipsoidActor.SetMapper(outlineMapper);
+
+		ThreadUtil.bgRun(new Runnable() {
+
+			@Override
+			public void run() {
+				final vtkPolyData contour = contour(coeffs, bounds, dimensions);
+				CONTOURS.put(key, contour, 1024L * contour.GetActualMemorySize());
+				ThreadUtil.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						vtkPolyDataMapper mapper = new vtkPolyDataMapper();
+						mapper.SetInputData(contour);
+						ellipsoidActor.SetMapper(mapper);
+						painterChanged();
+					}
+				});
+			}
+		});
+	}
 
-		Matrix q = quadric.getCoefficients();
-		q.print(3, 4);
+	/**
+	 * Contours a quadric sampled over a box
+	 * 
+	 * @param coeffs
+	 *            The 10 coefficients of the quadric, in the order of
+	 *            QuadricExpression
+	 * @param bounds
+	 *            The box, as [xMin, xMax, yMin, yMax, zMin, zMax]
+	 * @param dimensions
+	 *            The number of samples along each axis
+	 * @return The surface of the quadric
+	 */
+	private static vtkPolyData contour(double[] coeffs, double[] bounds, int[] dimensions) {
+		// vtkQuadric expects the yz term before the xz one
 		vtkQuadric quadricVTK = new vtkQuadric();
-		double[] coeffs = q.getColumnPackedCopy();
-		quadricVTK.SetCoefficients(coeffs[0], coeffs[1], coeffs[2], coeffs[3], coeffs[4], coeffs[5], coeffs[6],
+		quadricVTK.SetCoefficients(coeffs[0], coeffs[1], coeffs[2], coeffs[3], coeffs[5], coeffs[4], coeffs[6],
 				coeffs[7], coeffs[8], coeffs[9]);
 
 		vtkSampleFunction sample = new vtkSampleFunction();
 		sample.SetImplicitFunction(quadricVTK);
-
-		double[] sizes = ViewerUtil.getSizes();
-		double xMin = -sizes[0] / 2, yMin = -sizes[1] / 2, zMin = -sizes[2] / 2;
-		double xMax = sizes[0] / 2, yMax = sizes[1] / 2, zMax = sizes[2] / 2;
-
-		sample.SetSampleDimensions(50, 50, 50);
-		sample.SetModelBounds(xMin, xMax, yMin, yMax, zMin, zMax);
+		sample.SetSampleDimensions(dimensions[0], dimensions[1], dimensions[2]);
+		sample.SetModelBounds(bounds);
 		sample.ComputeNormalsOn();
 
 		vtkContourFilter contourFilter = new vtkContourFilter();
 		contourFilter.SetInputConnection(sample.GetOutputPort());
 		contourFilter.GenerateValues(1, 0.0, 0.0);
 		contourFilter.Update();
+		return contourFilter.GetOutput();
+	}
 
-		vtkPolyDataMapper mapper = new vtkPolyDataMapper();
-		mapper.SetInputConnection(contourFilter.GetOutputPort());
-
-		ellipsoidActor = new vtkActor();
-		ellipsoidActor.SetMapper(mapper);
-		setColor(255, 0, 0);
-		ellipsoidActor.GetProperty().SetOpacity(0.5);
-		// Translate back to center of image
-		vtkTransform translation = new vtkTransform();
-		ellipsoidActor.SetUserTransform(translation);
-		translation.Translate(sizes[0] / 2, sizes[1] / 2, sizes[2] / 2);
+	/**
+	 * @return The mesh of the ellipsoid, taken from the cache or built on
+	 *         demand, or null if the quadric is not a real ellipsoid
+	 */
+	public EllipsoidMesh getMesh() {
+		if (mesh != null || ellipsoid == null)
+			return mesh;
+		MeshCache.Key key = MeshCache.key(quadric.getSimpleArray(), frame.getOrigin(), frame.getScale(), meshLevel);
+		mesh = MESHES.get(key);
+		if (mesh == null) {
+			mesh = EllipsoidMesh.build(
+					new EllipsoidParameters(ellipsoid.getCenter(), ellipsoid.getSemiAxes(), ellipsoid.getRotation()),
+					meshLevel);
+			// Coordinates and normals, then 3 indices per triangle
+			MESHES.put(key, mesh, 48L * mesh.getNumberOfPoints() + 12L * mesh.getNumberOfTriangles());
+		}
+		return mesh;
+	}
 
+	/**
+	 * @param merged
+	 *            True if the ellipsoid is displayed by an EllipsoidScene, its
+	 *            own actor being hidden
+	 */
+	void setMerged(boolean merged) {
+		this.merged = merged;
 	}
 
 	@Override
 	public vtkProp[] getProps() {
-		return new vtkProp[] { this.ellipsoidActor };
+		if (merged)
+			return new vtkProp[0];
+		return new vtkProp[] { ellipsoid != null ? getActor() : ellipsoidActor };
 	}
 
 	@Override
@@ -156,7 +412,7 @@ public class EllipsoidOverlay extends Overlay implements VtkPainter {
 	}
 
 	/**
-	 * Change the color of the vtkActor
+	 * Change the color of the ellipsoid
 	 * 
 	 * @param rgb
 	 *            The RGB values of the color, throw an exception if different
@@ -166,7 +422,11 @@ public class EllipsoidOverlay extends Overlay implements VtkPainter {
 		if (rgb.length != 3) {
 			throw new IllegalArgumentException("Needs 3 arguments to create color");
 		}
-		this.ellipsoidActor.GetProperty().SetColor(rgb);
+		this.color = rgb.clone();
+		if (ellipsoidActor != null)
+			ellipsoidActor.GetProperty().SetColor(rgb);
+		if (merged)
+			ViewerUtil.getEllipsoidScene().colorChanged(this);
 	}
 
 	/**
@@ -193,10 +453,58 @@ public class EllipsoidOverlay extends Overlay implements VtkPainter {
 	}
 
 	/**
-	 * @return The current color of the vtkActor
+	 * @return The current color of the ellipsoid
 	 */
 	public double[] getColor() {
-		return this.ellipsoidActor.GetProperty().GetColor();
+		return color.clone();
+	}
+
+	/**
+	 * @return The current opacity of the ellipsoid
+	 */
+	public double getOpacity() {
+		return opacity;
+	}
+
+	/**
+	 * @return The center, semi-axes and rotation of the ellipsoid in the units
+	 *         of the voxel scale, or null if the quadric is not a real
+	 *         ellipsoid
+	 */
+	public Ellipsoid getEllipsoid() {
+		return ellipsoid;
+	}
+
+	/**
+	 * @param uncertainty
+	 *            The confidence intervals of the parameters of the ellipsoid
+	 */
+	public void setUncertainty(BootstrapResult uncertainty) {
+		this.uncertainty = uncertainty;
+	}
+
+	/**
+	 * @return The confidence intervals of the parameters of the ellipsoid, or
+	 *         null if they were not estimated
+	 */
+	public BootstrapResult getUncertainty() {
+		return uncertainty;
+	}
+
+	/**
+	 * @return The cache of the meshes of the ellipsoids, whose budget can be
+	 *         changed and whose counters tell how often a mesh was reused
+	 */
+	public static MeshCache<EllipsoidMesh> getMeshCache() {
+		return MESHES;
+	}
+
+	/**
+	 * @return The cache of the contours of the quadrics which are not
+	 *         ellipsoids
+	 */
+	public static MeshCache<vtkPolyData> getContourCache() {
+		return CONTOURS;
 	}
 
 	public QuadricExpression getQuadricExpression() {
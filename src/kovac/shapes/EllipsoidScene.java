@@ -0,0 +1,347 @@
+package kovac.shapes;
+
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+
+import icy.canvas.IcyCanvas;
+import icy.painter.Overlay;
+import icy.painter.VtkPainter;
+import icy.system.thread.ThreadUtil;
+import icy.type.point.Point5D.Double;
+import plugins.kernel.canvas.VtkCanvas;
+import vtk.vtkActor;
+import vtk.vtkCellArray;
+import vtk.vtkCellPicker;
+import vtk.vtkDoubleArray;
+import vtk.vtkIdTypeArray;
+import vtk.vtkPoints;
+import vtk.vtkPolyData;
+import vtk.vtkPolyDataMapper;
+import vtk.vtkProp;
+import vtk.vtkUnsignedCharArray;
+
+/**
+ * This class is here to display all the ellipsoids of the VTK view through a
+ * single actor, the meshes of the ellipsoids being merged in one vtkPolyData
+ * whose triangles carry the color and opacity of their ellipsoid. The
+ * EllipsoidOverlays it displays stay in the sequence, without actor of their
+ * own.
+ * <p>
+ * Changes are gathered and applied once per event of the interface : an added
+ * ellipsoid is appended to the arrays of VTK, a new color is written over the
+ * range of its ellipsoid, and removed ellipsoids are compacted in a single
+ * pass. A click on the scene picks the triangle under the mouse, and selects
+ * its ellipsoid.
+ *
+ * @author bastien.kovac
+ *
+ */
+public class EllipsoidScene extends Overlay implements VtkPainter {
+
+	/**
+	 * Color of the selected ellipsoid
+	 */
+	private static final double[] SELECTION_COLOR = { 1, 1, 0 };
+
+	/**
+	 * The merged meshes of the displayed ellipsoids
+	 */
+	private final MergedMesh<EllipsoidOverlay> mesh = new MergedMesh<EllipsoidOverlay>();
+	/**
+	 * The arrays drawn by VTK
+	 */
+	private vtkPoints pointsVTK;
+	private vtkDoubleArray normalsVTK;
+	private vtkCellArray cellsVTK;
+	private vtkUnsignedCharArray colorsVTK;
+	private vtkPolyData polyData;
+	/**
+	 * The vtkActor of all the ellipsoids
+	 */
+	private vtkActor sceneActor;
+	/**
+	 * Number of vertices and of triangles in the arrays of VTK
+	 */
+	private int syncedPoints;
+	private int syncedCells;
+	/**
+	 * True if the changes are already going to be applied
+	 */
+	private boolean syncScheduled;
+	/**
+	 * The ellipsoid last picked, null if there is none
+	 */
+	private EllipsoidOverlay selected;
+
+	/**
+	 * Builds an empty scene
+	 *
+	 * @param name
+	 *            The name of the Overlay
+	 */
+	public EllipsoidScene(String name) {
+		super(name);
+		init();
+	}
+
+	/**
+	 * Initialize the vtkActor, its colors being the ones of the triangles
+	 */
+	private void init() {
+		polyData = new vtkPolyData();
+		rebuild();
+
+		vtkPolyDataMapper mapper = new vtkPolyDataMapper();
+		mapper.SetInputData(polyData);
+		mapper.SetScalarModeToUseCellData();
+		mapper.SetColorModeToDirectScalars();
+		mapper.ScalarVisibilityOn();
+
+		sceneActor = new vtkActor();
+		sceneActor.SetMapper(mapper);
+	}
+
+	/**
+	 * Adds an ellipsoid to the scene, which takes over its display
+	 *
+	 * @param ellipsoid
+	 *            The ellipsoid
+	 * @return True if the ellipsoid is displayed by the scene, false if its
+	 *         quadric is not an ellipsoid and it keeps its own actor
+	 */
+	public boolean add(EllipsoidOverlay ellipsoid) {
+		EllipsoidMesh ellipsoidMesh = ellipsoid.getMesh();
+		if (ellipsoidMesh == null)
+			return false;
+		mesh.add(ellipsoid, ellipsoidMesh.getPoints(), ellipsoidMesh.getNormals(), ellipsoidMesh.getTriangles(),
+				rgba(ellipsoid));
+		ellipsoid.setMerged(true);
+		scheduleSync();
+		return true;
+	}
+
+	/**
+	 * Removes an ellipsoid from the scene
+	 *
+	 * @param ellipsoid
+	 *            The ellipsoid
+	 */
+	public void remove(EllipsoidOverlay ellipsoid) {
+		if (!mesh.remove(ellipsoid))
+			return;
+		ellipsoid.setMerged(false);
+		if (ellipsoid == selected)
+			selected = null;
+		scheduleSync();
+	}
+
+	/**
+	 * Removes all the ellipsoids, which display themselves again
+	 */
+	public void clear() {
+		for (EllipsoidOverlay ellipsoid : mesh.getKeys())
+			remove(ellipsoid);
+	}
+
+	/**
+	 * Writes the color of an ellipsoid over its triangles
+	 *
+	 * @param ellipsoid
+	 *            The ellipsoid whose color changed
+	 */
+	public void colorChanged(EllipsoidOverlay ellipsoid) {
+		if (mesh.setColor(ellipsoid, rgba(ellipsoid)))
+			scheduleSync();
+	}
+
+	/**
+	 * @return The ellipsoid last picked, null if there is none
+	 */
+	public EllipsoidOverlay getSelected() {
+		return selected;
+	}
+
+	/**
+	 * Selects an ellipsoid, drawn in the color of the selection
+	 *
+	 * @param ellipsoid
+	 *            The ellipsoid, null to clear the selection
+	 */
+	public void setSelected(EllipsoidOverlay ellipsoid) {
+		EllipsoidOverlay previous = selected;
+		selected = ellipsoid != null && mesh.contains(ellipsoid) ? ellipsoid : null;
+		if (previous != null)
+			colorChanged(previous);
+		if (selected != null)
+			colorChanged(selected);
+	}
+
+	/**
+	 * @param cell
+	 *            The index of a triangle of the scene
+	 * @return The ellipsoid the triangle belongs to, null if there is none
+	 */
+	public EllipsoidOverlay getEllipsoid(int cell) {
+		return mesh.getKey(cell);
+	}
+
+	/**
+	 * Picks the ellipsoid displayed under a point of the VTK view
+	 *
+	 * @param canvas
+	 *            The VTK canvas
+	 * @param x
+	 *            The abscissa of the point, in the pixels of the canvas
+	 * @param y
+	 *            The ordinate of the point, from the top of the canvas
+	 * @return The ellipsoid, or null if there is none under the point
+	 */
+	public EllipsoidOverlay pick(VtkCanvas canvas, int x, int y) {
+		sync();
+		vtkCellPicker picker = new vtkCellPicker();
+		picker.SetTolerance(0.0005);
+		// VTK counts the ordinates from the bottom
+		picker.Pick(x, canvas.getHeight() - 1 - y, 0, canvas.getRenderer());
+		if (picker.GetActor() != sceneActor)
+			return null;
+		return getEllipsoid(picker.GetCellId());
+	}
+
+	@Override
+	public void mouseClick(MouseEvent e, Double imagePoint, IcyCanvas canvas) {
+		super.mouseClick(e, imagePoint, canvas);
+		if (e.isConsumed() || !(canvas instanceof VtkCanvas))
+			return;
+		EllipsoidOverlay picked = pick((VtkCanvas) canvas, e.getX(), e.getY());
+		if (picked != null || selected != null) {
+			setSelected(picked);
+			e.consume();
+		}
+	}
+
+	@Override
+	public vtkProp[] getProps() {
+		return new vtkProp[] { sceneActor };
+	}
+
+	/**
+	 * Applies the changes once the current event of the interface is over,
+	 * so that the changes made together are applied once
+	 */
+	private void scheduleSync() {
+		if (syncScheduled)
+			return;
+		syncScheduled = true;
+		ThreadUtil.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				sync();
+			}
+		});
+	}
+
+	/**
+	 * Brings the arrays of VTK up to date with the merged meshes : they are
+	 * rebuilt after a compaction, otherwise the ranges written are updated in
+	 * place and the new ones appended
+	 */
+	private void sync() {
+		syncScheduled = false;
+		mesh.compact();
+		if (mesh.isMoved()) {
+			rebuild();
+		} else {
+			int[] dirty = mesh.getDirtyPoints();
+			double[] points = mesh.getPoints(), normals = mesh.getNormals();
+			if (dirty != null) {
+				for (int v = dirty[0]; v < Math.min(dirty[1], syncedPoints); v++) {
+					pointsVTK.SetPoint(v, points[3 * v], points[3 * v + 1], points[3 * v + 2]);
+					normalsVTK.SetTuple3(v, normals[3 * v], normals[3 * v + 1], normals[3 * v + 2]);
+				}
+			}
+			for (int v = syncedPoints; v < mesh.getNumberOfPoints(); v++) {
+				pointsVTK.InsertNextPoint(points[3 * v], points[3 * v + 1], points[3 * v + 2]);
+				normalsVTK.InsertNextTuple3(normals[3 * v], normals[3 * v + 1], normals[3 * v + 2]);
+			}
+
+			dirty = mesh.getDirtyCells();
+			long[] cells = mesh.getCells();
+			byte[] colors = mesh.getColors();
+			if (dirty != null) {
+				for (int f = dirty[0]; f < Math.min(dirty[1], syncedCells); f++)
+					colorsVTK.SetTuple4(f, colors[4 * f] & 0xff, colors[4 * f + 1] & 0xff, colors[4 * f + 2] & 0xff,
+							colors[4 * f + 3] & 0xff);
+			}
+			for (int f = syncedCells; f < mesh.getNumberOfCells(); f++) {
+				cellsVTK.InsertNextCell(3);
+				for (int i = 1; i <= 3; i++)
+					cellsVTK.InsertCellPoint(cells[4 * f + i]);
+				colorsVTK.InsertNextTuple4(colors[4 * f] & 0xff, colors[4 * f + 1] & 0xff, colors[4 * f + 2] & 0xff,
+						colors[4 * f + 3] & 0xff);
+			}
+			pointsVTK.Modified();
+			normalsVTK.Modified();
+			cellsVTK.Modified();
+			colorsVTK.Modified();
+		}
+		syncedPoints = mesh.getNumberOfPoints();
+		syncedCells = mesh.getNumberOfCells();
+		mesh.clearDirty();
+		polyData.Modified();
+		painterChanged();
+	}
+
+	/**
+	 * Copies the whole merged meshes into new arrays of VTK
+	 */
+	private void rebuild() {
+		int nbPoints = mesh.getNumberOfPoints(), nbCells = mesh.getNumberOfCells();
+
+		vtkDoubleArray coordinates = new vtkDoubleArray();
+		coordinates.SetNumberOfComponents(3);
+		coordinates.SetJavaArray(Arrays.copyOf(mesh.getPoints(), 3 * nbPoints));
+		pointsVTK = new vtkPoints();
+		pointsVTK.SetData(coordinates);
+
+		normalsVTK = new vtkDoubleArray();
+		normalsVTK.SetNumberOfComponents(3);
+		normalsVTK.SetJavaArray(Arrays.copyOf(mesh.getNormals(), 3 * nbPoints));
+
+		vtkIdTypeArray ids = new vtkIdTypeArray();
+		ids.SetJavaArray(Arrays.copyOf(mesh.getCells(), 4 * nbCells));
+		cellsVTK = new vtkCellArray();
+		cellsVTK.SetCells(nbCells, ids);
+
+		colorsVTK = new vtkUnsignedCharArray();
+		colorsVTK.SetNumberOfComponents(4);
+		colorsVTK.SetJavaArray(Arrays.copyOf(mesh.getColors(), 4 * nbCells));
+
+		polyData.SetPoints(pointsVTK);
+		polyData.SetPolys(cellsVTK);
+		polyData.GetPointData().SetNormals(normalsVTK);
+		polyData.GetCellData().SetScalars(colorsVTK);
+	}
+
+	/**
+	 * @return The RGBA color of the triangles of an ellipsoid, from its color
+	 *         and opacity, or the color of the selection
+	 */
+	private byte[] rgba(EllipsoidOverlay ellipsoid) {
+		double[] rgb = ellipsoid == selected ? SELECTION_COLOR : ellipsoid.getColor();
+		byte[] rgba = new byte[4];
+		for (int i = 0; i < 3; i++)
+			rgba[i] = toByte(rgb[i]);
+		rgba[3] = toByte(ellipsoid.getOpacity());
+		return rgba;
+	}
+
+	/**
+	 * @return The byte of a component of a color between 0 and 1, clamped
+	 *         like VTK does
+	 */
+	private static byte toByte(double component) {
+		return (byte) Math.round(255 * Math.max(0, Math.min(1, component)));
+	}
+
+}
@@ -27,10 +27,19 @@ public class GroupPointsOverlay extends Overlay implements VtkPainter {
 	 */
 	private List<Point3D> points;
 
+	/**
+	 * True for the points kept in the fit, null if every point was kept
+	 */
+	private boolean[] inliers;
+
 	/**
 	 * The vtkActor
 	 */
 	private vtkActor groupActor;
+	/**
+	 * The vtkActor of the points rejected by a robust fit
+	 */
+	private vtkActor rejectedActor;
 
 	/**
 	 * Builds a new Overlay from a list of points
@@ -41,22 +50,54 @@ public class GroupPointsOverlay extends Overlay implements VtkPainter {
 	 *            The list of points used to build the overlay
 	 */
 	public GroupPointsOverlay(String name, List<Point3D> points) {
+		this(name, points, null);
+	}
+
+	/**
+	 * Builds a new Overlay from a list of points, the points rejected by a
+	 * robust fit being displayed in red
+	 * 
+	 * @param name
+	 *            The name of the overlay
+	 * @param points
+	 *            The list of points used to build the overlay
+	 * @param inliers
+	 *            True for the points kept in the fit, null if every point was
+	 *            kept
+	 */
+	public GroupPointsOverlay(String name, List<Point3D> points, boolean[] inliers) {
 		super(name);
 		this.points = points;
+		this.inliers = inliers;
 		init();
 	}
 
 	/**
-	 * Initialize the vtkActor
+	 * Initialize the vtkActors
 	 */
 	private void init() {
+		groupActor = createActor(true);
+		groupActor.GetProperty().SetColor(0, 1, 0);
+		if (inliers != null) {
+			rejectedActor = createActor(false);
+			rejectedActor.GetProperty().SetColor(1, 0, 0);
+		}
+	}
+
+	/**
+	 * Builds the actor displaying the inliers or the rejected points
+	 */
+	private vtkActor createActor(boolean inlier) {
 
 		vtkPoints pointsVTK = new vtkPoints();
 		vtkCellArray cellArray = new vtkCellArray();
-		for (Point3D pt : points) {
-			id = pointsVTK.InsertNextPoint(pt.getX(), pt.getY(), pt.getZ());
+		for (int i = 0; i < points.size(); i++) {
+			if (inliers != null && inliers[i] != inlier)
+				continue;
+			Point3D pt = points.get(i);
+			int id = pointsVTK.InsertNextPoint(pt.getX(), pt.getY(), pt.getZ());
 			cellArray.InsertNextCell(1);
-			cellArray.InsertNextCell(id);
+			cellArray.InsertCellPoint(id);
 		}
 		
 		vtkPolyData polyData = new vtkPolyData();
@@ -67,18 +108,19 @@ public class GroupPointsOverlay extends Overlay implements VtkPainter {
 		vtkPolyDataMapper mapper = new vtkPolyDataMapper();
 		mapper.SetInputData(polyData);
 
-		groupActor = new vtkActor();
-		groupActor.SetMapper(mapper);
-		groupActor.SetScale(ViewerUtil.getScale());
-		groupActor.GetProperty().SetColor(0, 1, 0);
-		groupActor.GetProperty().SetPointSize(5);
-		groupActor.SetPickable(0);
-
+		vtkActor actor = new vtkActor();
+		actor.SetMapper(mapper);
+		actor.SetScale(ViewerUtil.getScale());
+		actor.GetProperty().SetPointSize(5);
+		actor.SetPickable(0);
+		return actor;
 	}
 
 	@Override
 	public vtkProp[] getProps() {
-		return new vtkProp[] { groupActor };
+		if (rejectedActor == null)
+			return new vtkProp[] { groupActor };
+		return new vtkProp[] { groupActor, rejectedActor };
 	}
 
 }
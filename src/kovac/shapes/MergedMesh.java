@@ -0,0 +1,352 @@
+package kovac.shapes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The triangle meshes of several objects merged in the same buffers, so that
+ * they can be drawn by a single VTK actor. Each object owns a range of
+ * vertices and a range of triangles, its triangles carrying its RGBA color.
+ * <p>
+ * An object is appended at the end of the buffers, and changing its color
+ * only rewrites its own range. A removed object leaves a hole until
+ * compact() shifts the ranges after it, so that removing many objects in a
+ * row costs a single pass. The ranges written since the last call to
+ * clearDirty() are kept, for the buffers drawn to be updated in place.
+ *
+ * @author bastien.kovac
+ *
+ * @param <K>
+ *            The type of the objects
+ */
+public class MergedMesh<K> {
+
+	/**
+	 * Number of vertices and of triangles the buffers are first allocated for
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The ranges of the objects, in the order of the buffers, the removed
+	 * ones included until the next compaction
+	 */
+	private final List<Range<K>> ranges = new ArrayList<Range<K>>();
+	private final Map<K, Range<K>> byKey = new HashMap<K, Range<K>>();
+
+	/**
+	 * Coordinates and normals of the vertices, as [x0, y0, z0, x1...]
+	 */
+	private double[] points = new double[3 * INITIAL_CAPACITY];
+	private double[] normals = new double[3 * INITIAL_CAPACITY];
+	/**
+	 * Triangles in the layout of a vtkCellArray, [3, a, b, c] for each one
+	 */
+	private long[] cells = new long[4 * INITIAL_CAPACITY];
+	/**
+	 * RGBA color of each triangle
+	 */
+	private byte[] colors = new byte[4 * INITIAL_CAPACITY];
+	private int nbPoints;
+	private int nbCells;
+	private int nbRemoved;
+
+	/**
+	 * Vertices and triangles written since the last call to clearDirty(), as
+	 * [from, to[
+	 */
+	private int dirtyPointsFrom = Integer.MAX_VALUE, dirtyPointsTo;
+	private int dirtyCellsFrom = Integer.MAX_VALUE, dirtyCellsTo;
+	/**
+	 * True if the ranges were shifted since the last call to clearDirty()
+	 */
+	private boolean moved;
+
+	/**
+	 * Appends the mesh of an object, replacing its previous one
+	 *
+	 * @param key
+	 *            The object
+	 * @param meshPoints
+	 *            The coordinates of its vertices, as [x0, y0, z0, x1...]
+	 * @param meshNormals
+	 *            The normals of its vertices, as [x0, y0, z0, x1...]
+	 * @param triangles
+	 *            The indices of the 3 vertices of each triangle, in its own
+	 *            vertices
+	 * @param rgba
+	 *            The color of the object
+	 */
+	public void add(K key, double[] meshPoints, double[] meshNormals, int[] triangles, byte[] rgba) {
+		if (meshPoints.length != meshNormals.length || meshPoints.length % 3 != 0 || triangles.length % 3 != 0)
+			throw new IllegalArgumentException("Each vertex needs 3 coordinates and a normal, each triangle 3 vertices");
+		remove(key);
+		int addedPoints = meshPoints.length / 3, addedCells = triangles.length / 3;
+		ensureCapacity(nbPoints + addedPoints, nbCells + addedCells);
+		Range<K> range = new Range<K>(key, nbPoints, addedPoints, nbCells, addedCells);
+		System.arraycopy(meshPoints, 0, points, 3 * nbPoints, meshPoints.length);
+		System.arraycopy(meshNormals, 0, normals, 3 * nbPoints, meshNormals.length);
+		for (int f = 0; f < addedCells; f++) {
+			int c = 4 * (nbCells + f);
+			cells[c] = 3;
+			for (int i = 0; i < 3; i++)
+				cells[c + 1 + i] = nbPoints + triangles[3 * f + i];
+		}
+		nbPoints += addedPoints;
+		nbCells += addedCells;
+		ranges.add(range);
+		byKey.put(key, range);
+		fillColor(range, rgba);
+		markPoints(range.pointStart, nbPoints);
+	}
+
+	/**
+	 * Removes the mesh of an object, its ranges staying in the buffers until
+	 * the next compaction
+	 *
+	 * @param key
+	 *            The object
+	 * @return True if the object was in the mesh
+	 */
+	public boolean remove(K key) {
+		Range<K> range = byKey.remove(key);
+		if (range == null)
+			return false;
+		range.removed = true;
+		nbRemoved++;
+		return true;
+	}
+
+	/**
+	 * Changes the color of the triangles of an object
+	 *
+	 * @param key
+	 *            The object
+	 * @param rgba
+	 *            Its new color
+	 * @return True if the object was in the mesh
+	 */
+	public boolean setColor(K key, byte[] rgba) {
+		Range<K> range = byKey.get(key);
+		if (range == null)
+			return false;
+		fillColor(range, rgba);
+		return true;
+	}
+
+	/**
+	 * Shifts the ranges of the objects over the holes of the removed ones
+	 *
+	 * @return True if some ranges were removed
+	 */
+	public boolean compact() {
+		if (nbRemoved == 0)
+			return false;
+		int pointEnd = 0, cellEnd = 0, kept = 0;
+		for (Range<K> range : ranges) {
+			if (range.removed)
+				continue;
+			if (range.pointStart != pointEnd || range.cellStart != cellEnd) {
+				int shift = range.pointStart - pointEnd;
+				System.arraycopy(points, 3 * range.pointStart, points, 3 * pointEnd, 3 * range.nbPoints);
+				System.arraycopy(normals, 3 * range.pointStart, normals, 3 * pointEnd, 3 * range.nbPoints);
+				System.arraycopy(colors, 4 * range.cellStart, colors, 4 * cellEnd, 4 * range.nbCells);
+				for (int f = 0; f < range.nbCells; f++) {
+					int from = 4 * (range.cellStart + f), to = 4 * (cellEnd + f);
+					cells[to] = 3;
+					for (int i = 1; i <= 3; i++)
+						cells[to + i] = cells[from + i] - shift;
+				}
+				range.pointStart = pointEnd;
+				range.cellStart = cellEnd;
+			}
+			pointEnd += range.nbPoints;
+			cellEnd += range.nbCells;
+			ranges.set(kept++, range);
+		}
+		ranges.subList(kept, ranges.size()).clear();
+		nbPoints = pointEnd;
+		nbCells = cellEnd;
+		nbRemoved = 0;
+		moved = true;
+		return true;
+	}
+
+	/**
+	 * @param cell
+	 *            The index of a triangle
+	 * @return The object the triangle belongs to, or null if it was removed
+	 */
+	public K getKey(int cell) {
+		int low = 0, high = ranges.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			Range<K> range = ranges.get(middle);
+			if (cell < range.cellStart)
+				high = middle - 1;
+			else if (cell >= range.cellStart + range.nbCells)
+				low = middle + 1;
+			else
+				return range.removed ? null : range.key;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 *            The object
+	 * @return True if the object is in the mesh
+	 */
+	public boolean contains(K key) {
+		return byKey.containsKey(key);
+	}
+
+	/**
+	 * @return The objects in the mesh
+	 */
+	public List<K> getKeys() {
+		return new ArrayList<K>(byKey.keySet());
+	}
+
+	/**
+	 * @return The number of objects in the mesh
+	 */
+	public int size() {
+		return byKey.size();
+	}
+
+	/**
+	 * @return The number of vertices in the buffers, the removed objects
+	 *         included until the next compaction
+	 */
+	public int getNumberOfPoints() {
+		return nbPoints;
+	}
+
+	/**
+	 * @return The number of triangles in the buffers, the removed objects
+	 *         included until the next compaction
+	 */
+	public int getNumberOfCells() {
+		return nbCells;
+	}
+
+	/**
+	 * @return The coordinates of the vertices, valid up to
+	 *         getNumberOfPoints()
+	 */
+	public double[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return The normals of the vertices, valid up to getNumberOfPoints()
+	 */
+	public double[] getNormals() {
+		return normals;
+	}
+
+	/**
+	 * @return The triangles as [3, a, b, c] each, valid up to
+	 *         getNumberOfCells()
+	 */
+	public long[] getCells() {
+		return cells;
+	}
+
+	/**
+	 * @return The RGBA color of each triangle, valid up to getNumberOfCells()
+	 */
+	public byte[] getColors() {
+		return colors;
+	}
+
+	/**
+	 * @return The vertices written since the last call to clearDirty(), as
+	 *         [from, to[, or null if there are none
+	 */
+	public int[] getDirtyPoints() {
+		return dirtyPointsFrom < dirtyPointsTo ? new int[] { dirtyPointsFrom, dirtyPointsTo } : null;
+	}
+
+	/**
+	 * @return The triangles written since the last call to clearDirty(), as
+	 *         [from, to[, or null if there are none
+	 */
+	public int[] getDirtyCells() {
+		return dirtyCellsFrom < dirtyCellsTo ? new int[] { dirtyCellsFrom, dirtyCellsTo } : null;
+	}
+
+	/**
+	 * @return True if a compaction shifted the ranges since the last call to
+	 *         clearDirty(), the whole buffers having to be drawn again
+	 */
+	public boolean isMoved() {
+		return moved;
+	}
+
+	/**
+	 * Forgets the ranges written, once the buffers drawn are up to date
+	 */
+	public void clearDirty() {
+		dirtyPointsFrom = dirtyCellsFrom = Integer.MAX_VALUE;
+		dirtyPointsTo = dirtyCellsTo = 0;
+		moved = false;
+	}
+
+	private void fillColor(Range<K> range, byte[] rgba) {
+		if (rgba.length != 4)
+			throw new IllegalArgumentException("A color needs 4 components");
+		for (int f = range.cellStart; f < range.cellStart + range.nbCells; f++)
+			System.arraycopy(rgba, 0, colors, 4 * f, 4);
+		dirtyCellsFrom = Math.min(dirtyCellsFrom, range.cellStart);
+		dirtyCellsTo = Math.max(dirtyCellsTo, range.cellStart + range.nbCells);
+	}
+
+	private void markPoints(int from, int to) {
+		dirtyPointsFrom = Math.min(dirtyPointsFrom, from);
+		dirtyPointsTo = Math.max(dirtyPointsTo, to);
+	}
+
+	/**
+	 * Grows the buffers, doubling them, to hold the given numbers of vertices
+	 * and triangles
+	 */
+	private void ensureCapacity(int pointCapacity, int cellCapacity) {
+		if (3 * pointCapacity > points.length) {
+			int capacity = Math.max(pointCapacity, 2 * points.length / 3);
+			points = Arrays.copyOf(points, 3 * capacity);
+			normals = Arrays.copyOf(normals, 3 * capacity);
+		}
+		if (4 * cellCapacity > cells.length) {
+			int capacity = Math.max(cellCapacity, cells.length / 2);
+			cells = Arrays.copyOf(cells, 4 * capacity);
+			colors = Arrays.copyOf(colors, 4 * capacity);
+		}
+	}
+
+	/**
+	 * The vertices and triangles of an object
+	 */
+	private static class Range<K> {
+
+		private final K key;
+		private int pointStart;
+		private final int nbPoints;
+		private int cellStart;
+		private final int nbCells;
+		private boolean removed;
+
+		private Range(K key, int pointStart, int nbPoints, int cellStart, int nbCells) {
+			this.key = key;
+			this.pointStart = pointStart;
+			this.nbPoints = nbPoints;
+			this.cellStart = cellStart;
+			this.nbCells = nbCells;
+		}
+
+	}
+
+}
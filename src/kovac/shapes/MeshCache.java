@@ -0,0 +1,255 @@
+package kovac.shapes;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the meshes of quadrics, so that recreating
+ * the overlay of a quadric already displayed, when a file is loaded again or a
+ * group toggled, reuses its mesh instead of building it again. A mesh is
+ * found from the coefficients of its quadric, rounded so that the same
+ * surface read back from a file gives the same key, the frame it is
+ * expressed in and its resolution.
+ * <p>
+ * The cache holds meshes up to a budget of memory, the least recently used
+ * ones being evicted first. It is thread safe, the meshes of some quadrics
+ * being built in the background.
+ *
+ * @author bastien.kovac
+ *
+ * @param <V>
+ *            The type of the meshes
+ */
+public class MeshCache<V> {
+
+	/**
+	 * Number of steps the coefficients are rounded to, relative to the
+	 * largest one
+	 */
+	private static final double QUANTIZATION = 1e9;
+
+	private final LinkedHashMap<Key, Entry<V>> entries = new LinkedHashMap<Key, Entry<V>>(16, 0.75f, true);
+	private long budget;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Builds an empty cache
+	 *
+	 * @param budget
+	 *            The largest memory taken by the meshes, in bytes
+	 */
+	public MeshCache(long budget) {
+		setBudget(budget);
+	}
+
+	/**
+	 * Builds the key of the mesh of a quadric
+	 *
+	 * @param q
+	 *            The 10 coefficients of the quadric
+	 * @param origin
+	 *            The origin of the frame the quadric is expressed in
+	 * @param scale
+	 *            The voxel scale of the frame
+	 * @param resolution
+	 *            The resolution of the mesh, such as the level of an
+	 *            EllipsoidMesh
+	 * @return The key, equal for two quadrics proportional up to the rounding
+	 */
+	public static Key key(double[] q, double[] origin, double[] scale, int resolution) {
+		double largest = 0;
+		int sign = 1;
+		for (double c : q) {
+			if (Math.abs(c) > largest) {
+				largest = Math.abs(c);
+				sign = c > 0 ? 1 : -1;
+			}
+		}
+		long[] coefficients = new long[q.length];
+		for (int i = 0; i < q.length; i++)
+			coefficients[i] = largest > 0 ? Math.round(sign * q[i] / largest * QUANTIZATION) : 0;
+		return new Key(coefficients, origin.clone(), scale.clone(), resolution);
+	}
+
+	/**
+	 * @param key
+	 *            The key of the mesh
+	 * @return The mesh, now the most recently used, or null if it is not in
+	 *         the cache
+	 */
+	public synchronized V get(Key key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.mesh;
+	}
+
+	/**
+	 * Adds a mesh to the cache, evicting the least recently used ones beyond
+	 * the budget. A mesh larger than the budget is not kept
+	 *
+	 * @param key
+	 *            The key of the mesh
+	 * @param mesh
+	 *            The mesh
+	 * @param bytes
+	 *            The memory taken by the mesh
+	 */
+	public synchronized void put(Key key, V mesh, long bytes) {
+		Entry<V> previous = entries.remove(key);
+		if (previous != null)
+			size -= previous.bytes;
+		if (bytes > budget)
+			return;
+		entries.put(key, new Entry<V>(mesh, bytes));
+		size += bytes;
+		evict();
+	}
+
+	/**
+	 * Removes all the meshes, the counters are kept
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * @param budget
+	 *            The largest memory taken by the meshes, in bytes. The least
+	 *            recently used meshes beyond it are evicted
+	 */
+	public synchronized void setBudget(long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException("The budget must be positive");
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * @return The largest memory taken by the meshes, in bytes
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return The memory taken by the meshes in the cache, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of meshes in the cache
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of meshes found in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of meshes looked for and not found
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of meshes evicted to stay within the budget
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d meshes, %.1f / %.1f MB, %d hits, %d misses, %d evictions", entries.size(),
+				size / 1048576.0, budget / 1048576.0, hits, misses, evictions);
+	}
+
+	/**
+	 * Evicts the least recently used meshes until the cache is within its
+	 * budget
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry<V>>> iterator = entries.entrySet().iterator();
+		while (size > budget && iterator.hasNext()) {
+			size -= iterator.next().getValue().bytes;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * A mesh and the memory it takes
+	 */
+	private static class Entry<V> {
+
+		private final V mesh;
+		private final long bytes;
+
+		private Entry(V mesh, long bytes) {
+			this.mesh = mesh;
+			this.bytes = bytes;
+		}
+
+	}
+
+	/**
+	 * The rounded coefficients of a quadric, its frame and the resolution of
+	 * its mesh
+	 */
+	public static final class Key {
+
+		private final long[] coefficients;
+		private final double[] origin;
+		private final double[] scale;
+		private final int resolution;
+
+		private Key(long[] coefficients, double[] origin, double[] scale, int resolution) {
+			this.coefficients = coefficients;
+			this.origin = origin;
+			this.scale = scale;
+			this.resolution = resolution;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + Arrays.hashCode(coefficients);
+			result = prime * result + Arrays.hashCode(origin);
+			result = prime * result + Arrays.hashCode(scale);
+			result = prime * result + resolution;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			return resolution == other.resolution && Arrays.equals(coefficients, other.coefficients)
+					&& Arrays.equals(origin, other.origin) && Arrays.equals(scale, other.scale);
+		}
+
+	}
+
+}
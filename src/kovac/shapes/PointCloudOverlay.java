@@ -0,0 +1,159 @@
+package kovac.shapes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import icy.painter.Overlay;
+import icy.painter.VtkPainter;
+import icy.type.point.Point3D;
+import kovac.res.util.ViewerUtil;
+import vtk.vtkActor;
+import vtk.vtkGlyph3D;
+import vtk.vtkPoints;
+import vtk.vtkPolyData;
+import vtk.vtkPolyDataMapper;
+import vtk.vtkProp;
+import vtk.vtkSphereSource;
+
+/**
+ * This class is here to display the clicked points as a single Overlay, each
+ * point being a sphere glyphed by one vtkGlyph3D from a shared vtkPoints
+ * buffer. Adding, removing or clearing points only changes the buffer, so the
+ * VTK view keeps a single actor whatever the number of points
+ *
+ * @author bastien.kovac
+ *
+ */
+public class PointCloudOverlay extends Overlay implements VtkPainter {
+
+	/**
+	 * Resolution of the sphere drawn at each point
+	 */
+	private static final int SPHERE_RESOLUTION = 18;
+
+	/**
+	 * The displayed points, in the order of the buffer
+	 */
+	private List<Point3D> points = new ArrayList<Point3D>();
+	/**
+	 * The buffer of the coordinates of the points
+	 */
+	private vtkPoints pointsVTK;
+	/**
+	 * The points glyphed by the spheres
+	 */
+	private vtkPolyData polyData;
+	/**
+	 * The vtkActor of all the points
+	 */
+	private vtkActor cloudActor;
+
+	/**
+	 * Builds an empty cloud of points
+	 *
+	 * @param name
+	 *            The name of the created Overlay
+	 */
+	public PointCloudOverlay(String name) {
+		super(name);
+		init();
+	}
+
+	/**
+	 * Initialize the vtkActor
+	 */
+	private void init() {
+
+		pointsVTK = new vtkPoints();
+		polyData = new vtkPolyData();
+		polyData.SetPoints(pointsVTK);
+
+		vtkSphereSource sphere = new vtkSphereSource();
+		sphere.SetPhiResolution(SPHERE_RESOLUTION);
+		sphere.SetThetaResolution(SPHERE_RESOLUTION);
+		sphere.SetRadius(1);
+
+		vtkGlyph3D glyph = new vtkGlyph3D();
+		glyph.SetInputData(polyData);
+		glyph.SetSourceConnection(sphere.GetOutputPort());
+		glyph.ScalingOff();
+		glyph.OrientOff();
+
+		vtkPolyDataMapper map = new vtkPolyDataMapper();
+		map.SetInputConnection(glyph.GetOutputPort());
+
+		cloudActor = new vtkActor();
+		cloudActor.SetMapper(map);
+		cloudActor.GetProperty().SetColor(0, 255, 0);
+		cloudActor.SetScale(ViewerUtil.getScale());
+		cloudActor.SetPickable(0);
+
+	}
+
+	/**
+	 * Appends a point to the cloud
+	 *
+	 * @param p
+	 *            The point to display
+	 */
+	public void addPoint(Point3D p) {
+		points.add(p);
+		pointsVTK.InsertNextPoint(p.getX(), p.getY(), p.getZ());
+		update();
+	}
+
+	/**
+	 * Removes a point from the cloud, the last point taking its place in the
+	 * buffer
+	 *
+	 * @param p
+	 *            The point to remove
+	 * @return True if the point was displayed
+	 */
+	public boolean removePoint(Point3D p) {
+		int index = points.indexOf(p);
+		if (index < 0)
+			return false;
+		int last = points.size() - 1;
+		Point3D moved = points.remove(last);
+		if (index != last) {
+			points.set(index, moved);
+			pointsVTK.SetPoint(index, moved.getX(), moved.getY(), moved.getZ());
+		}
+		pointsVTK.SetNumberOfPoints(last);
+		update();
+		return true;
+	}
+
+	/**
+	 * Removes all the points, keeping the buffer allocated
+	 */
+	public void clear() {
+		points.clear();
+		pointsVTK.SetNumberOfPoints(0);
+		update();
+	}
+
+	/**
+	 * @return The number of displayed points
+	 */
+	public int getNumberOfPoints() {
+		return points.size();
+	}
+
+	/**
+	 * Marks the buffer as modified, so that the glyphs are rebuilt at the
+	 * next render
+	 */
+	private void update() {
+		pointsVTK.Modified();
+		polyData.Modified();
+		painterChanged();
+	}
+
+	@Override
+	public vtkProp[] getProps() {
+		return new vtkProp[] { cloudActor };
+	}
+
+}
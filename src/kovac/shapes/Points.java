@@ -3,10 +3,11 @@ package kovac.shapes;
 import java.util.ArrayList;
 import java.util.List;
 
-import icy.painter.Overlay;
 import icy.type.point.Point3D;
 import kovac.groups.Saving;
 import kovac.maths.EllipsoidAlgorithm;
+import kovac.maths.FitOptions;
+import kovac.maths.ScatterAccumulator;
 import kovac.res.util.ViewerUtil;
 import plugins.BastienKovac.segmentation3d.Segmentation3D;
 
@@ -24,9 +25,14 @@ public class Points {
 	 */
 	private static List<Point3D> points = new ArrayList<Point3D>();
 	/**
-	 * Saves the created overlays
+	 * Accumulates the scatter matrix of the clicked points, so that fitting
+	 * does not depend on their number
 	 */
-	private static List<Overlay> overlays = new ArrayList<Overlay>();
+	private static ScatterAccumulator scatter = new ScatterAccumulator();
+	/**
+	 * Displays the clicked points, created with the first displayed point
+	 */
+	private static PointCloudOverlay cloud;
 	/**
 	 * All group of points created
 	 */
@@ -42,51 +48,107 @@ public class Points {
 		if (Segmentation3D.isDiplayingPoints())
 			displayPoint(p);
 		points.add(p);
+		scatter.add(p.getX(), p.getY(), p.getZ());
 		if (points.size() >= Segmentation3D.getMinNumbPoints()) {
 			Segmentation3D.setRunEnabled(true);
 		}
 	}
 
 	/**
-	 * Clears the point overlays displayed in the VTK view, removing them from
-	 * the sequence
+	 * Clears the points displayed in the VTK view, the overlay displaying
+	 * them being kept for the next points
 	 */
 	public static void clearPointsOverlays() {
-		for (Overlay o : overlays) {
-			if (o instanceof PointOverlay)
-				ViewerUtil.removeOverlayFromVTK(o);
-		}
+		if (cloud != null)
+			cloud.clear();
 	}
 
 	/**
-	 * Displays a point as an Overlay on the VTK view
+	 * Displays a point in the cloud of points of the VTK view, which is added
+	 * to the VTK sequence if it is not yet
 	 * 
 	 * @param p
 	 *            The point to display
 	 */
 	public static void displayPoint(Point3D p) {
-		Overlay o = new PointOverlay("Point " + points.size(), p);
-		ViewerUtil.addOverlayToVTK(o);
-		overlays.add(o);
+		if (cloud == null || !ViewerUtil.getVTKOverlays().contains(cloud)) {
+			// New VTK view, the scale of the sequence may have changed
+			cloud = new PointCloudOverlay("Clicked points");
+			ViewerUtil.addOverlayToVTK(cloud);
+		}
+		cloud.addPoint(p);
 	}
 
 	/**
 	 * Calls the algorithm creating the ellipsoid fitting the saved points
 	 */
 	public static void createEllipsoid() {
-		EllipsoidAlgorithm algo = new EllipsoidAlgorithm(points);
+		EllipsoidAlgorithm algo;
+		FitOptions options = FitOptions.DEFAULT.withEngine(Segmentation3D.getFittingEngine());
+		if (Segmentation3D.getMaxNuclei() > 1) {
+			createEllipsoids(options);
+			return;
+		}
+		if (Segmentation3D.isRejectingOutliers() || Segmentation3D.isRefiningDistances()
+				|| Segmentation3D.getReplicates() > 0) {
+			// Outliers, distances and replicates can only be found from the
+			// points themselves
+			algo = new EllipsoidAlgorithm(points, EllipsoidAlgorithm.getViewerFrame(), options);
+			if (Segmentation3D.isRejectingOutliers())
+				algo.setRobust(Segmentation3D.getOutlierDistance());
+			algo.setGeometricRefinement(Segmentation3D.isRefiningDistances());
+			algo.setBootstrap(Segmentation3D.getReplicates());
+		} else {
+			algo = new EllipsoidAlgorithm(scatter, EllipsoidAlgorithm.getViewerFrame(), options);
+		}
 		EllipsoidOverlay ellipsoid = (EllipsoidOverlay) algo.generateEllipsoid();
 		Segmentation3D.addSavedEllipsoid(ellipsoid);
 		ViewerUtil.addOverlayToVTK(ellipsoid);
 		ellipsoid.setName("Ellipsoid " + Saving.getNumberOfEllipsoids());
 		ellipsoid.validate();
 		if (Segmentation3D.isDiplayingPoints()) {
-			GroupPointsOverlay group = new GroupPointsOverlay("Group number " + groups.size(), points);
+			GroupPointsOverlay group = new GroupPointsOverlay("Group number " + groups.size(), points,
+					algo.getInliers());
 			groups.add(group);
 			ViewerUtil.addOverlayToVTK(group);
 		}
 		clearPointsOverlays();
 		points.clear();
+		scatter.clear();
+	}
+
+	/**
+	 * Calls the algorithm creating the ellipsoids of the touching nuclei the
+	 * saved points were clicked on
+	 * 
+	 * @param options
+	 *            The parameters of the fit of each ellipsoid
+	 */
+	private static void createEllipsoids(FitOptions options) {
+		EllipsoidAlgorithm algo = new EllipsoidAlgorithm(points, EllipsoidAlgorithm.getViewerFrame(), options);
+		algo.setGeometricRefinement(Segmentation3D.isRefiningDistances());
+		List<EllipsoidOverlay> ellipsoids = algo.generateEllipsoids(Segmentation3D.getMaxNuclei());
+		for (int k = 0; k < ellipsoids.size(); k++) {
+			EllipsoidOverlay ellipsoid = ellipsoids.get(k);
+			Segmentation3D.addSavedEllipsoid(ellipsoid);
+			ViewerUtil.addOverlayToVTK(ellipsoid);
+			ellipsoid.setName("Ellipsoid " + Saving.getNumberOfEllipsoids());
+			ellipsoid.validate();
+			if (Segmentation3D.isDiplayingPoints()) {
+				boolean[] members = algo.getMultiFit().getMembers(k);
+				List<Point3D> memberPoints = new ArrayList<Point3D>();
+				for (int j = 0; j < members.length; j++) {
+					if (members[j])
+						memberPoints.add(points.get(j));
+				}
+				GroupPointsOverlay group = new GroupPointsOverlay("Group number " + groups.size(), memberPoints);
+				groups.add(group);
+				ViewerUtil.addOverlayToVTK(group);
+			}
+		}
+		clearPointsOverlays();
+		points.clear();
+		scatter.clear();
 	}
 
 }
@@ -0,0 +1,169 @@
+package kovac.tests;
+
+import java.util.Random;
+
+import kovac.maths.EllipsoidParameters;
+import kovac.shapes.EllipsoidMesh;
+import vtk.vtkContourFilter;
+import vtk.vtkPolyData;
+import vtk.vtkQuadric;
+import vtk.vtkSampleFunction;
+
+/**
+ * Compares the meshes of ellipsoids built by EllipsoidMesh with the ones
+ * contoured from their quadric sampled on a 50^3 grid over the image, as the
+ * overlays did before : the build time, the number of triangles, the smallest
+ * angle and the mean radius ratio of the triangles (1 for an equilateral
+ * one), and the largest distance from the centroid of a triangle to the
+ * surface. The contour needs the VTK libraries, so it is only run when they
+ * can be loaded
+ *
+ * @author bastien.kovac
+ *
+ */
+public class MeshBenchmark {
+
+	private static final int NB_RUNS = 50;
+	private static final int WARMUP = 10;
+	/**
+	 * Size of the image the quadric is sampled over, in voxels
+	 */
+	private static final double[] IMAGE_SIZE = { 1024, 1024, 64 };
+	private static final int SAMPLES = 50;
+
+	public static void main(String[] args) {
+		double[][] shapes = { { 5, 4, 3 }, { 12, 9, 7 }, { 30, 6, 4 }, { 80, 60, 40 } };
+		boolean vtk = loadVtk();
+		System.out.println(String.format("%-12s %-12s %10s %10s %10s %10s %12s", "Axes", "Mesh", "Time (us)",
+				"Triangles", "Min angle", "Ratio", "Deviation"));
+		Random random = new Random(42);
+		for (double[] axes : shapes) {
+			EllipsoidParameters parameters = new EllipsoidParameters(
+					new double[] { IMAGE_SIZE[0] / 2 + 100, IMAGE_SIZE[1] / 2 - 50, IMAGE_SIZE[2] / 2 }, axes,
+					randomRotation(random));
+			String name = String.format("%.0f/%.0f/%.0f", axes[0], axes[1], axes[2]);
+
+			int level = EllipsoidMesh.levelFor(axes[0], 0.1);
+			EllipsoidMesh mesh = null;
+			long time = 0;
+			for (int run = 0; run < WARMUP + NB_RUNS; run++) {
+				long start = System.nanoTime();
+				mesh = EllipsoidMesh.build(parameters, level);
+				if (run >= WARMUP)
+					time += System.nanoTime() - start;
+			}
+			print(name, "Level " + level, time / NB_RUNS, parameters, mesh.getPoints(), mesh.getTriangles());
+
+			if (!vtk)
+				continue;
+			vtkPolyData contour = null;
+			time = 0;
+			for (int run = 0; run < WARMUP + NB_RUNS; run++) {
+				long start = System.nanoTime();
+				contour = contour(parameters);
+				if (run >= WARMUP)
+					time += System.nanoTime() - start;
+			}
+			double[] points = new double[3 * contour.GetNumberOfPoints()];
+			for (int v = 0; v < contour.GetNumberOfPoints(); v++)
+				System.arraycopy(contour.GetPoint(v), 0, points, 3 * v, 3);
+			long[] cells = contour.GetPolys().GetData().GetJavaArray();
+			int[] triangles = new int[3 * contour.GetNumberOfPolys()];
+			for (int f = 0, k = 0; k < cells.length; k += (int) cells[k] + 1)
+				for (int i = 1; i <= 3; i++)
+					triangles[f++] = (int) cells[k + i];
+			print(name, "Contour", time / NB_RUNS, parameters, points, triangles);
+		}
+		if (!vtk)
+			System.out.println("The VTK libraries could not be loaded, the contour was not run");
+	}
+
+	/**
+	 * Contours the quadric of the ellipsoid the way the overlays did, then
+	 * translates the points back to the image
+	 */
+	private static vtkPolyData contour(EllipsoidParameters parameters) {
+		double[] origin = { IMAGE_SIZE[0] / 2, IMAGE_SIZE[1] / 2, IMAGE_SIZE[2] / 2 };
+		double[] center = parameters.getCenter();
+		for (int i = 0; i < 3; i++)
+			center[i] -= origin[i];
+		double[] q = new EllipsoidParameters(center, parameters.getAxes(), parameters.getRotation()).toQuadric();
+		vtkQuadric quadric = new vtkQuadric();
+		quadric.SetCoefficients(q[0], q[1], q[2], q[3], q[5], q[4], q[6], q[7], q[8], q[9]);
+		vtkSampleFunction sample = new vtkSampleFunction();
+		sample.SetImplicitFunction(quadric);
+		sample.SetSampleDimensions(SAMPLES, SAMPLES, SAMPLES);
+		sample.SetModelBounds(-origin[0], origin[0], -origin[1], origin[1], -origin[2], origin[2]);
+		sample.ComputeNormalsOn();
+		vtkContourFilter filter = new vtkContourFilter();
+		filter.SetInputConnection(sample.GetOutputPort());
+		filter.GenerateValues(1, 0.0, 0.0);
+		filter.Update();
+		vtkPolyData polyData = filter.GetOutput();
+		for (int v = 0; v < polyData.GetNumberOfPoints(); v++) {
+			double[] p = polyData.GetPoint(v);
+			polyData.GetPoints().SetPoint(v, p[0] + origin[0], p[1] + origin[1], p[2] + origin[2]);
+		}
+		return polyData;
+	}
+
+	/**
+	 * Prints the quality of a mesh
+	 */
+	private static void print(String name, String mesh, long time, EllipsoidParameters parameters, double[] points,
+			int[] triangles) {
+		double minAngle = Double.POSITIVE_INFINITY, ratio = 0, deviation = 0;
+		int nbTriangles = triangles.length / 3;
+		for (int f = 0; f < nbTriangles; f++) {
+			double[][] v = new double[3][];
+			for (int i = 0; i < 3; i++) {
+				int index = triangles[3 * f + i];
+				v[i] = new double[] { points[3 * index], points[3 * index + 1], points[3 * index + 2] };
+			}
+			double[] lengths = new double[3];
+			for (int i = 0; i < 3; i++)
+				lengths[i] = distance(v[(i + 1) % 3], v[(i + 2) % 3]);
+			for (int i = 0; i < 3; i++) {
+				// Angle opposite to the edge i, by the law of cosines
+				double a = lengths[i], b = lengths[(i + 1) % 3], c = lengths[(i + 2) % 3];
+				double cos = (b * b + c * c - a * a) / (2 * b * c);
+				minAngle = Math.min(minAngle, Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, cos)))));
+			}
+			// Radius ratio 2r / R = (b + c - a)(c + a - b)(a + b - c) / abc
+			double a = lengths[0], b = lengths[1], c = lengths[2];
+			ratio += (b + c - a) * (c + a - b) * (a + b - c) / (a * b * c);
+			deviation = Math.max(deviation, Math.abs(parameters.signedDistance((v[0][0] + v[1][0] + v[2][0]) / 3,
+					(v[0][1] + v[1][1] + v[2][1]) / 3, (v[0][2] + v[1][2] + v[2][2]) / 3)));
+		}
+		System.out.println(String.format("%-12s %-12s %10d %10d %10.1f %10.3f %12.3f", name, mesh, time / 1000,
+				nbTriangles, minAngle, ratio / nbTriangles, deviation));
+	}
+
+	private static double distance(double[] a, double[] b) {
+		double dx = a[0] - b[0], dy = a[1] - b[1], dz = a[2] - b[2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * @return A rotation matrix of random angles around z then x
+	 */
+	private static double[][] randomRotation(Random random) {
+		double a = random.nextDouble() * Math.PI, b = random.nextDouble() * Math.PI;
+		double ca = Math.cos(a), sa = Math.sin(a), cb = Math.cos(b), sb = Math.sin(b);
+		return new double[][] { { ca, -sa, 0 }, { cb * sa, cb * ca, -sb }, { sb * sa, sb * ca, cb } };
+	}
+
+	/**
+	 * @return True if the VTK libraries are available, they are when the
+	 *         benchmark is run from Icy
+	 */
+	private static boolean loadVtk() {
+		try {
+			new vtkQuadric();
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+}
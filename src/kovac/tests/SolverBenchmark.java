@@ -0,0 +1,305 @@
+package kovac.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import kovac.maths.DouglasRachfordSolver;
+import kovac.maths.EllipsoidAlgorithm;
+import kovac.maths.EllipsoidFitter;
+import kovac.maths.EllipsoidFitting;
+import kovac.maths.EllipsoidParameters;
+import kovac.maths.FitOptions;
+import kovac.maths.FitResult;
+import kovac.maths.SymmetricEigen3;
+import kovac.res.enums.FittingEngine;
+import kovac.res.enums.SolverVariant;
+
+/**
+ * Compares the variants of the Douglas-Rachford iteration and the direct
+ * engines on synthetic nuclei : the number of iterations needed to reach the
+ * tolerance, and the wall time of a fit, for near-spherical and elongated
+ * ellipsoids. Then compares the fits with and without the normalization of
+ * the points, for nuclei of growing sizes near the corner of a 2048^3 stack.
+ * Last, times the projection of the quadratic part on the positive
+ * semi-definite matrices through the Jama, Jacobi and closed-form
+ * eigen-decompositions, and the fit of dense surfaces
+ *
+ * @author bastien.kovac
+ *
+ */
+public class SolverBenchmark {
+
+	private static final int NB_POINTS = 200;
+	private static final int NB_SETS = 20;
+	private static final int WARMUP = 3;
+	private static final double STACK_SIZE = 2048;
+
+	public static void main(String[] args) {
+		compareVariants();
+		System.out.println();
+		compareNormalization();
+		System.out.println();
+		compareEigenSolvers();
+		System.out.println();
+		compareDenseFits();
+	}
+
+	private static void compareVariants() {
+		double[][] shapes = new double[][] { { 10, 10, 9 }, { 12, 9, 7 }, { 20, 6, 4 }, { 30, 5, 3 } };
+		FitOptions base = FitOptions.DEFAULT.withConvergence(100000, 1e-6);
+		FitOptions[] variants = new FitOptions[] { base, base.withVariant(SolverVariant.Relaxed),
+				base.withVariant(SolverVariant.Anderson), base.withVariant(SolverVariant.AdaptiveGamma),
+				base.withVariant(SolverVariant.Anderson).withAndersonDepth(3), base.withConvergence(100, 0),
+				base.withEngine(FittingEngine.LiGriffiths), base.withEngine(FittingEngine.Moments) };
+
+		System.out.println(String.format("%-12s %-16s %10s %10s %12s", "Axes", "Variant", "Iterations", "Converged",
+				"Time (us)"));
+		for (double[] axes : shapes) {
+			double[][][] sets = new double[NB_SETS][][];
+			Random random = new Random(42);
+			for (int i = 0; i < NB_SETS; i++)
+				sets[i] = samplePoints(axes, random);
+			for (FitOptions options : variants) {
+				EllipsoidFitter solver = EllipsoidFitting.newFitter(options);
+				for (int i = 0; i < WARMUP; i++)
+					solver.fit(sets[i]);
+				long iterations = 0, time = 0;
+				int converged = 0;
+				for (double[][] set : sets) {
+					FitResult result = solver.fit(set);
+					iterations += result.getIterations();
+					time += result.getWallTime();
+					if (result.hasConverged())
+						converged++;
+				}
+				String name = options.getVariant().toString();
+				if (options.getEngine() != FittingEngine.DouglasRachford)
+					name = options.getEngine().toString();
+				else if (options.getVariant() == SolverVariant.Anderson)
+					name += " (m=" + options.getAndersonDepth() + ")";
+				else if (options.getTolerance() == 0)
+					name += " (" + options.getMaxIterations() + " it)";
+				System.out.println(String.format("%-12s %-16s %10d %7d/%d %12d",
+						(int) axes[0] + "/" + (int) axes[1] + "/" + (int) axes[2], name, iterations / NB_SETS,
+						converged, NB_SETS, time / NB_SETS / 1000));
+			}
+		}
+	}
+
+	/**
+	 * Fits exact points of nuclei of semi-axes r, 0.7r and 0.5r, the quadric
+	 * being expressed relatively to the center of the stack, and measures the
+	 * error on the center and on the semi-axes relatively to r
+	 */
+	private static void compareNormalization() {
+		double[] sizes = new double[] { 5, 20, 100, 400 };
+		FitOptions base = FitOptions.DEFAULT.withConvergence(100000, 1e-8).withOrigin(STACK_SIZE / 2,
+				STACK_SIZE / 2, STACK_SIZE / 2);
+		FitOptions[] variants = new FitOptions[] { base.withNormalization(false), base,
+				base.withVariant(SolverVariant.Anderson).withNormalization(false),
+				base.withVariant(SolverVariant.Anderson) };
+
+		System.out.println(String.format("%-8s %-22s %10s %10s %12s %10s", "Radius", "Variant", "Iterations",
+				"Converged", "Error", "Time (us)"));
+		for (double r : sizes) {
+			double[] axes = new double[] { r, 0.7 * r, 0.5 * r };
+			double[] center = new double[] { STACK_SIZE - 1.5 * r, 1.5 * r, STACK_SIZE - 1.5 * r };
+			double[][][] sets = new double[NB_SETS][][];
+			Random random = new Random(42);
+			for (int i = 0; i < NB_SETS; i++) {
+				sets[i] = samplePoints(axes, random, 0);
+				for (int j = 0; j < NB_POINTS; j++) {
+					sets[i][0][j] += center[0] - 50;
+					sets[i][1][j] += center[1] - 40;
+					sets[i][2][j] += center[2] - 30;
+				}
+			}
+			for (FitOptions options : variants) {
+				EllipsoidFitter solver = EllipsoidFitting.newFitter(options);
+				for (int i = 0; i < WARMUP; i++)
+					solver.fit(sets[i]);
+				long iterations = 0, time = 0;
+				int converged = 0;
+				double error = 0;
+				for (double[][] set : sets) {
+					FitResult result = solver.fit(set);
+					iterations += result.getIterations();
+					time += result.getWallTime();
+					if (result.hasConverged())
+						converged++;
+					EllipsoidParameters parameters = EllipsoidParameters
+							.fromQuadric(result.getQuadric().getSimpleArray());
+					if (parameters == null) {
+						error = Double.POSITIVE_INFINITY;
+						continue;
+					}
+					for (int i = 0; i < 3; i++) {
+						error = Math.max(error,
+								Math.abs(parameters.getCenter()[i] + options.getOrigin(i) - center[i]) / r);
+						error = Math.max(error, Math.abs(parameters.getAxes()[i] - axes[i]) / r);
+					}
+				}
+				String name = options.getVariant() + (options.isNormalized() ? ", normalized" : "");
+				System.out.println(String.format("%-8d %-22s %10d %7d/%d %12.1e %10d", (int) r, name,
+						iterations / NB_SETS, converged, NB_SETS, error, time / NB_SETS / 1000));
+			}
+		}
+	}
+
+	/**
+	 * Times the eigen-decomposition and the reconstruction of the quadratic
+	 * part of random quadrics, and measures the largest deviation from the
+	 * Jama projection
+	 */
+	private static void compareEigenSolvers() {
+		int n = 100000;
+		Random random = new Random(42);
+		double[][] quadrics = new double[n][10];
+		for (int k = 0; k < n; k++) {
+			for (int i = 0; i < 10; i++)
+				quadrics[k][i] = random.nextGaussian();
+			if (k % 4 == 0)
+				quadrics[k][1] = quadrics[k][0];
+		}
+		double[][] reference = new double[n][];
+		String[] names = { "Jama", "Jacobi", "Closed form" };
+		System.out.println(String.format("%-12s %12s %12s", "Solver", "Time (ns)", "Deviation"));
+		for (int solver = 0; solver < names.length; solver++) {
+			double[] q = new double[10];
+			long time = 0;
+			double deviation = 0;
+			for (int run = 0; run <= WARMUP; run++) {
+				long start = System.nanoTime();
+				for (int k = 0; k < n; k++) {
+					System.arraycopy(quadrics[k], 0, q, 0, 10);
+					project(solver, q);
+					if (run == WARMUP && solver == 0)
+						reference[k] = q.clone();
+					else if (run == WARMUP)
+						for (int i = 0; i < 6; i++)
+							deviation = Math.max(deviation, Math.abs(q[i] - reference[k][i]));
+				}
+				time = System.nanoTime() - start;
+			}
+			System.out.println(String.format("%-12s %12d %12.1e", names[solver], time / n, deviation));
+		}
+	}
+
+	/**
+	 * Times the fit of dense surfaces : the K matrix built from the 10 x
+	 * nbPoints Jama matrix of the monomials, and the DouglasRachfordSolver
+	 * summing the moments of the points in a single pass. The memory is the
+	 * one allocated by the fit, when the virtual machine can measure it
+	 */
+	private static void compareDenseFits() {
+		int[] sizes = { 20000, 100000, 400000 };
+		int runs = 50, warmup = 20;
+		FitOptions options = FitOptions.DEFAULT;
+		System.out.println(String.format("%-8s %-16s %12s %14s %12s", "Points", "Fit", "Time (ms)", "Memory (kB)",
+				"Iterations"));
+		for (int n : sizes) {
+			double[][] points = samplePoints(new double[] { 80, 60, 40 }, new Random(42), 0.5, n);
+			String[] names = { "Jama K", "Single pass" };
+			for (int fit = 0; fit < names.length; fit++) {
+				long time = 0, memory = 0;
+				int iterations = 0;
+				for (int run = 0; run < warmup + runs; run++) {
+					long allocated = allocatedBytes(), start = System.nanoTime();
+					if (fit == 0) {
+						EllipsoidAlgorithm.getK(new Matrix(points));
+					} else {
+						iterations = new DouglasRachfordSolver(options).fit(points).getIterations();
+					}
+					if (run >= warmup) {
+						time += System.nanoTime() - start;
+						memory = Math.max(memory, allocatedBytes() - allocated);
+					}
+				}
+				System.out.println(String.format("%-8d %-16s %12.2f %14d %12s", n, names[fit], time / runs / 1e6,
+						memory / 1000, fit == 0 ? "-" : Integer.toString(iterations)));
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes allocated by the current thread, 0 if the
+	 *         virtual machine does not measure it
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Projects the quadratic part of q with the given eigen-solver : 0 for the
+	 * former Jama path, 1 for the Jacobi algorithm, 2 for the closed form
+	 */
+	private static void project(int solver, double[] q) {
+		double[][] Q = { { q[0], q[3] / 2, q[4] / 2 }, { q[3] / 2, q[1], q[5] / 2 }, { q[4] / 2, q[5] / 2, q[2] } };
+		if (solver == 0) {
+			EigenvalueDecomposition eig = new EigenvalueDecomposition(new Matrix(Q));
+			double[] s = DouglasRachfordSolver.projsplx(eig.getRealEigenvalues());
+			Matrix U = eig.getV();
+			Matrix S = new Matrix(new double[][] { { s[0], 0, 0 }, { 0, s[1], 0 }, { 0, 0, s[2] } });
+			Matrix P = U.times(S.times(U.transpose()));
+			q[0] = P.get(0, 0);
+			q[1] = P.get(1, 1);
+			q[2] = P.get(2, 2);
+			q[3] = 2 * P.get(0, 1);
+			q[4] = 2 * P.get(0, 2);
+			q[5] = 2 * P.get(1, 2);
+			return;
+		}
+		double[][] U = new double[3][3];
+		double[] s = new double[3];
+		if (solver == 1)
+			SymmetricEigen3.jacobi(Q, U, s);
+		else
+			SymmetricEigen3.decompose(Q, s, U);
+		DouglasRachfordSolver.projsplx(s);
+		SymmetricEigen3.reconstruct(U, s, q);
+	}
+
+	/**
+	 * Samples noisy points on the surface of a rotated ellipsoid
+	 */
+	private static double[][] samplePoints(double[] axes, Random random) {
+		return samplePoints(axes, random, 0.1);
+	}
+
+	/**
+	 * Samples points on the surface of a rotated ellipsoid centered on (50,
+	 * 40, 30), with a gaussian noise of the given standard deviation
+	 */
+	private static double[][] samplePoints(double[] axes, Random random, double noise) {
+		return samplePoints(axes, random, noise, NB_POINTS);
+	}
+
+	/**
+	 * Samples n points on the surface of a rotated ellipsoid centered on (50,
+	 * 40, 30), with a gaussian noise of the given standard deviation
+	 */
+	private static double[][] samplePoints(double[] axes, Random random, double noise, int n) {
+		double[][] points = new double[3][n];
+		double a = random.nextDouble() * Math.PI, b = random.nextDouble() * Math.PI;
+		double ca = Math.cos(a), sa = Math.sin(a), cb = Math.cos(b), sb = Math.sin(b);
+		for (int j = 0; j < n; j++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(2 * random.nextDouble() - 1);
+			double x = axes[0] * Math.sin(v) * Math.cos(u) + noise * random.nextGaussian();
+			double y = axes[1] * Math.sin(v) * Math.sin(u) + noise * random.nextGaussian();
+			double z = axes[2] * Math.cos(v) + noise * random.nextGaussian();
+			// Rotation around z then around x
+			double x1 = ca * x - sa * y, y1 = sa * x + ca * y;
+			points[0][j] = 50 + x1;
+			points[1][j] = 40 + cb * y1 - sb * z;
+			points[2][j] = 30 + sb * y1 + cb * z;
+		}
+		return points;
+	}
+
+}
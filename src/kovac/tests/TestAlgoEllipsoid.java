@@ -2,21 +2,62 @@ package kovac.tests;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
 import icy.type.point.Point3D;
+import kovac.maths.BatchEllipsoidFitter;
+import kovac.maths.BootstrapEstimator;
+import kovac.maths.BootstrapResult;
+import kovac.maths.CholeskyProx;
+import kovac.maths.DouglasRachfordSolver;
 import kovac.maths.EllipsoidAlgorithm;
+import kovac.maths.EllipsoidFitting;
+import kovac.maths.EllipsoidParameters;
+import kovac.maths.EllipsoidRefitter;
+import kovac.maths.FitOptions;
+import kovac.maths.FitResult;
+import kovac.maths.GeometricRefiner;
+import kovac.maths.IrlsFitResult;
+import kovac.maths.IrlsFitter;
+import kovac.maths.LiGriffithsFitter;
+import kovac.maths.MomentFitter;
+import kovac.maths.MultiEllipsoidFitter;
+import kovac.maths.MultiFitResult;
+import kovac.maths.QuadricBounds;
+import kovac.maths.RansacFitter;
+import kovac.maths.RefinedFitResult;
+import kovac.maths.ReferenceFrame;
+import kovac.maths.RobustFitResult;
+import kovac.maths.ScatterAccumulator;
+import kovac.maths.SymmetricEigen3;
+import kovac.res.enums.ExitReason;
+import kovac.res.enums.FittingEngine;
+import kovac.res.enums.RobustLoss;
+import kovac.res.enums.SolverVariant;
+import kovac.res.quadric.QuadricExpression;
 import kovac.res.util.MathUtils;
+import kovac.shapes.EllipsoidMesh;
+import kovac.shapes.MergedMesh;
+import kovac.shapes.MeshCache;
 
 public class TestAlgoEllipsoid {
 
@@ -172,7 +213,9 @@ public class TestAlgoEllipsoid {
 		for (int j = 0; j < pointsReal[0].length; j++) {
 			basePoints.add(new Point3D.Double(pointsReal[0][j], pointsReal[1][j], pointsReal[2][j]));
 		}
-		EllipsoidAlgorithm algo = new EllipsoidAlgorithm(basePoints);
+		// The reference results of the Matlab code, which does not scale the
+		// points
+		EllipsoidAlgorithm algo = new EllipsoidAlgorithm(basePoints, FitOptions.DEFAULT.withNormalization(false));
 		double[][] expectedResult = new double[][] { { 0.6198 }, { 0.2149 }, { 0.1654 }, { 0.5952 }, { 0.4044 },
 				{ 0.2441 }, { 1.1095 }, { 0.5197 }, { 0.5173 }, { -1.1745 } };
 		double[][] realResult = algo.getFinalQuadric().getCoefficients().getArray();
@@ -180,4 +223,893 @@ public class TestAlgoEllipsoid {
 			assertArrayEquals(expectedResult[i], realResult[i], 0.0001);
 	}
 
+	@Test
+	public void testPrimitiveProjsplx() {
+		double[] input = new double[] { 1, 2, 3, 4, 5, 6 };
+		double[] expected = new double[] { 0, 0, 0, 0, 0, 1 };
+		assertArrayEquals(expected, DouglasRachfordSolver.projsplx(input), 0);
+		double[] input2 = new double[] { 0.5, -0.2, 0.4 };
+		List<Double> listInput2 = new ArrayList<Double>(Arrays.asList(ArrayUtils.toObject(input2)));
+		List<Double> res = EllipsoidAlgorithm.projsplx(listInput2);
+		DouglasRachfordSolver.projsplx(input2);
+		for (int i = 0; i < input2.length; i++)
+			assertEquals(res.get(i), input2[i], 1e-15);
+	}
+
+	@Test
+	public void testSolverMatchesReferenceLoop() {
+		// The iterations of the solver against the Matrix based loop of
+		// EllipsoidAlgorithm, both projecting with SymmetricEigen3
+		DouglasRachfordSolver solver = new DouglasRachfordSolver(
+				FitOptions.DEFAULT.withConvergence(100, 0).withNormalization(false));
+		for (double[][] fixture : new double[][][] { points, pointsReal }) {
+			List<Point3D> basePoints = new ArrayList<Point3D>();
+			for (int j = 0; j < fixture[0].length; j++) {
+				basePoints.add(new Point3D.Double(fixture[0][j], fixture[1][j], fixture[2][j]));
+			}
+			double[] expected = new EllipsoidAlgorithm(basePoints).getReferenceQuadric().getSimpleArray();
+			double[] result = solver.fit(fixture).getQuadric().getSimpleArray();
+			assertArrayEquals(expected, result, 1e-9);
+		}
+	}
+
+	@Test
+	public void testCholeskyProx() {
+		Matrix K = EllipsoidAlgorithm.getK(realMat);
+		Matrix M = EllipsoidAlgorithm.getM(K);
+		CholeskyProx prox = EllipsoidAlgorithm.getFactoredM(K);
+		double[][] rhs = new double[][] { EllipsoidAlgorithm.getQ0(realMat).getColumnPackedCopy(),
+				EllipsoidAlgorithm.getQ0(pointsMat).getColumnPackedCopy() };
+		double[][] expected = new double[rhs.length][];
+		for (int i = 0; i < rhs.length; i++) {
+			expected[i] = EllipsoidAlgorithm.proxf1(M, new Matrix(rhs[i], 10)).getColumnPackedCopy();
+			double[] x = new double[10];
+			prox.solve(rhs[i], x);
+			assertArrayEquals(expected[i], x, 1e-12);
+		}
+		prox.solveAll(rhs);
+		for (int i = 0; i < rhs.length; i++)
+			assertArrayEquals(expected[i], rhs[i], 1e-12);
+
+		// With another gamma
+		double[] q0 = EllipsoidAlgorithm.getQ0(realMat).getColumnPackedCopy(), x = new double[10];
+		EllipsoidAlgorithm.getFactoredM(K, 0.1).solve(q0, x);
+		assertArrayEquals(EllipsoidAlgorithm.proxf1(EllipsoidAlgorithm.getM(K, 0.1), new Matrix(q0, 10))
+				.getColumnPackedCopy(), x, 1e-12);
+	}
+
+	@Test
+	public void testConvergence() {
+		FitResult result = new DouglasRachfordSolver(0.01, 10000, 1e-8).fit(pointsReal);
+		assertEquals(ExitReason.Converged, result.getExitReason());
+		assertTrue(result.getIterations() < 10000);
+		assertTrue(result.getResidual() <= 1e-8);
+		FitResult capped = new DouglasRachfordSolver(0.01, 3, 1e-8).fit(pointsReal);
+		assertEquals(ExitReason.MaxIterations, capped.getExitReason());
+		assertEquals(3, capped.getIterations());
+	}
+
+	@Test
+	public void testScatterAccumulator() {
+		ScatterAccumulator scatter = new ScatterAccumulator();
+		// A point added then removed must not change anything
+		scatter.add(100, -50, 30);
+		for (int j = 0; j < pointsReal[0].length; j++)
+			scatter.add(pointsReal[0][j], pointsReal[1][j], pointsReal[2][j]);
+		scatter.remove(100, -50, 30);
+		assertEquals(pointsReal[0].length, scatter.size());
+		double[] center = new double[3];
+		scatter.getCenterOfMass(center);
+		assertArrayEquals(MathUtils.getCenterOfMass(realMat), center, 1e-12);
+
+		Matrix centered = realMat.copy();
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < centered.getColumnDimension(); j++)
+				centered.set(i, j, centered.get(i, j) - center[i]);
+		double[][] K = new double[10][10];
+		scatter.getK(center, K);
+		double[][] expectedK = EllipsoidAlgorithm.getK(centered).getArray();
+		for (int i = 0; i < 10; i++)
+			assertArrayEquals(expectedK[i], K[i], 1e-6);
+
+		double[] expected = new DouglasRachfordSolver().fit(pointsReal).getQuadric().getSimpleArray();
+		double[] result = new DouglasRachfordSolver().fit(scatter).getQuadric().getSimpleArray();
+		assertArrayEquals(expected, result, 1e-6);
+	}
+
+	@Test
+	public void testBatchFitting() throws InterruptedException {
+		List<double[][]> sets = new ArrayList<double[][]>();
+		for (int i = 0; i < 100; i++) {
+			double[][] set = new double[3][pointsReal[0].length];
+			for (int j = 0; j < set[0].length; j++) {
+				set[0][j] = pointsReal[0][j] + i;
+				set[1][j] = pointsReal[1][j] * (1 + i / 100.0);
+				set[2][j] = pointsReal[2][j];
+			}
+			sets.add(set);
+		}
+		final int[] lastProgress = new int[1];
+		BatchEllipsoidFitter batch = new BatchEllipsoidFitter();
+		List<FitResult> results = batch.fit(sets, FitOptions.DEFAULT,
+				new BatchEllipsoidFitter.ProgressListener() {
+					@Override
+					public synchronized void progress(int done, int total) {
+						lastProgress[0] = Math.max(lastProgress[0], done);
+					}
+				});
+		batch.shutdown();
+		assertEquals(sets.size(), lastProgress[0]);
+		DouglasRachfordSolver solver = new DouglasRachfordSolver();
+		for (int i = 0; i < sets.size(); i++) {
+			assertArrayEquals(solver.fit(sets.get(i)).getQuadric().getSimpleArray(),
+					results.get(i).getQuadric().getSimpleArray(), 1e-6);
+		}
+	}
+
+	@Test
+	public void testOriginShift() {
+		List<Point3D> basePoints = new ArrayList<Point3D>();
+		for (int j = 0; j < pointsReal[0].length; j++) {
+			basePoints.add(new Point3D.Double(pointsReal[0][j] + 10, pointsReal[1][j] + 20, pointsReal[2][j] + 30));
+		}
+		FitOptions options = FitOptions.DEFAULT.withOrigin(10, 20, 30);
+		EllipsoidAlgorithm algo = new EllipsoidAlgorithm(basePoints, options);
+		double[] expected = new DouglasRachfordSolver().fit(pointsReal).getQuadric().getSimpleArray();
+		assertArrayEquals(expected, algo.getFinalQuadric().getSimpleArray(), 1e-9);
+		ReferenceFrame frame = ReferenceFrame.centered(new double[] { 20, 40, 60 }, new double[] { 1, 1, 1 });
+		assertArrayEquals(expected,
+				EllipsoidFitting.fit(basePoints, frame, FitOptions.DEFAULT).getQuadric().getSimpleArray(), 1e-9);
+		EllipsoidAlgorithm fixed = new EllipsoidAlgorithm(basePoints,
+				options.withConvergence(100, 0).withNormalization(false));
+		assertArrayEquals(fixed.getReferenceQuadric().getSimpleArray(), fixed.getFinalQuadric().getSimpleArray(),
+				1e-9);
+	}
+
+	@Test
+	public void testWarmStartRefit() {
+		// Points of an ellipsoid clicked one at a time
+		Random random = new Random(1);
+		FitOptions options = FitOptions.DEFAULT.withConvergence(20000, 1e-6);
+		EllipsoidRefitter refitter = new EllipsoidRefitter(options);
+		DouglasRachfordSolver solver = new DouglasRachfordSolver(options);
+		int warmIterations = 0, coldIterations = 0;
+		for (int k = 0; k < 40; k++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(2 * random.nextDouble() - 1);
+			refitter.addPoint(3 + 6 * Math.sin(v) * Math.cos(u), -2 + 5 * Math.sin(v) * Math.sin(u),
+					1 + 4 * Math.cos(v));
+			if (k < 9)
+				continue;
+			FitResult warm = refitter.refit();
+			FitResult cold = solver.fit(refitter.getScatter());
+			assertEquals(ExitReason.Converged, warm.getExitReason());
+			assertArrayEquals(cold.getQuadric().getSimpleArray(), warm.getQuadric().getSimpleArray(), 1e-3);
+			warmIterations += warm.getIterations();
+			coldIterations += cold.getIterations();
+		}
+		assertTrue(warmIterations * 2 < coldIterations);
+		// Refitting the same points starts from the converged solution
+		assertTrue(refitter.refit().getIterations() <= 2);
+	}
+
+	@Test
+	public void testSolverVariants() {
+		FitOptions options = FitOptions.DEFAULT.withConvergence(100000, 1e-8);
+		FitResult plain = new DouglasRachfordSolver(options).fit(pointsReal);
+		double[] expected = plain.getQuadric().getSimpleArray();
+		for (SolverVariant variant : SolverVariant.values()) {
+			FitResult result = new DouglasRachfordSolver(options.withVariant(variant)).fit(pointsReal);
+			assertEquals(variant.toString(), ExitReason.Converged, result.getExitReason());
+			assertArrayEquals(variant.toString(), expected, result.getQuadric().getSimpleArray(), 1e-4);
+			if (variant != SolverVariant.Plain)
+				assertTrue(variant.toString(), result.getIterations() < plain.getIterations());
+		}
+	}
+
+	@Test
+	public void testDirectFitters() {
+		// Exact points of a rotated ellipsoid, round enough for the constraint
+		// of Li and Griffiths, and of a sphere
+		Random random = new Random(3);
+		double[][] ellipsoid = new double[3][100], sphere = new double[3][100];
+		double ca = Math.cos(0.5), sa = Math.sin(0.5);
+		for (int j = 0; j < 100; j++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(2 * random.nextDouble() - 1);
+			double x = 7 * Math.sin(v) * Math.cos(u), y = 5 * Math.sin(v) * Math.sin(u), z = 4 * Math.cos(v);
+			ellipsoid[0][j] = 4 + ca * x - sa * y;
+			ellipsoid[1][j] = -3 + sa * x + ca * y;
+			ellipsoid[2][j] = 2 + z;
+			// Fibonacci lattice, evenly spread on the sphere
+			double h = 1 - (2 * j + 1) / 100.0, angle = j * Math.PI * (3 - Math.sqrt(5));
+			sphere[0][j] = 6 * Math.sqrt(1 - h * h) * Math.cos(angle);
+			sphere[1][j] = 6 * Math.sqrt(1 - h * h) * Math.sin(angle);
+			sphere[2][j] = 6 * h;
+		}
+		FitOptions options = FitOptions.DEFAULT.withConvergence(100000, 1e-12)
+				.withVariant(SolverVariant.Anderson);
+		double[] expected = new DouglasRachfordSolver(options).fit(ellipsoid).getQuadric().getSimpleArray();
+		FitResult direct = new LiGriffithsFitter(options).fit(ellipsoid);
+		assertEquals(ExitReason.Converged, direct.getExitReason());
+		assertEquals(0, direct.getIterations());
+		assertArrayEquals(expected, direct.getQuadric().getSimpleArray(), 1e-6);
+		assertEquals(0, direct.getResidual(), 1e-9);
+
+		// The moments only match a sphere
+		double[] expectedSphere = new DouglasRachfordSolver(options).fit(sphere).getQuadric().getSimpleArray();
+		double[] moments = new MomentFitter(options).fit(sphere).getQuadric().getSimpleArray();
+		for (int i = 0; i < 10; i++)
+			assertEquals(expectedSphere[i], moments[i], 0.01 * Math.max(1, Math.abs(expectedSphere[i])));
+		// Only the relative weights of the points matter
+		ScatterAccumulator uniform = new ScatterAccumulator(), halved = new ScatterAccumulator();
+		for (int j = 0; j < sphere[0].length; j++) {
+			uniform.add(sphere[0][j], sphere[1][j], sphere[2][j]);
+			halved.add(sphere[0][j], sphere[1][j], sphere[2][j], 0.5);
+		}
+		FitResult uniformFit = new MomentFitter(options).fit(uniform);
+		FitResult halvedFit = new MomentFitter(options).fit(halved);
+		assertArrayEquals(uniformFit.getQuadric().getSimpleArray(), halvedFit.getQuadric().getSimpleArray(), 1e-9);
+		assertEquals(uniformFit.getResidual(), halvedFit.getResidual(), 1e-9);
+
+		// The engines are selected by the options
+		ScatterAccumulator scatter = new ScatterAccumulator();
+		for (int j = 0; j < 100; j++)
+			scatter.add(ellipsoid[0][j], ellipsoid[1][j], ellipsoid[2][j]);
+		assertArrayEquals(expected, EllipsoidFitting.fit(scatter, ReferenceFrame.IDENTITY,
+				options.withEngine(FittingEngine.LiGriffiths)).getQuadric().getSimpleArray(), 1e-6);
+		assertEquals(ExitReason.Degenerate, new LiGriffithsFitter(options)
+				.fit(new double[][] { { 0, 1, 2 }, { 0, 1, 2 }, { 0, 1, 2 } }).getExitReason());
+	}
+
+	@Test
+	public void testRansac() throws InterruptedException {
+		// Noisy points of an ellipsoid, with three mis-clicks
+		Random random = new Random(5);
+		int n = 60;
+		double[][] clean = new double[3][n - 3], points = new double[3][n];
+		for (int j = 0; j < n; j++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(2 * random.nextDouble() - 1);
+			points[0][j] = 20 + 7 * Math.sin(v) * Math.cos(u) + 0.05 * random.nextGaussian();
+			points[1][j] = 30 + 5 * Math.sin(v) * Math.sin(u) + 0.05 * random.nextGaussian();
+			points[2][j] = 10 + 4 * Math.cos(v) + 0.05 * random.nextGaussian();
+			if (j % 20 == 7) {
+				points[0][j] += 12;
+				points[2][j] -= 9;
+			} else {
+				for (int i = 0; i < 3; i++)
+					clean[i][j - (j + 12) / 20] = points[i][j];
+			}
+		}
+		FitOptions options = FitOptions.DEFAULT.withConvergence(100000, 1e-10)
+				.withVariant(SolverVariant.Anderson);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		RansacFitter ransac = new RansacFitter(options, executor);
+		ransac.setThreshold(0.5);
+		RobustFitResult result = ransac.fit(points);
+		executor.shutdown();
+		// The candidates kept do not depend on the number of threads
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		RansacFitter sequential = new RansacFitter(options, single);
+		sequential.setThreshold(0.5);
+		RobustFitResult same = sequential.fit(points);
+		single.shutdown();
+		assertEquals(result.getHypotheses(), same.getHypotheses());
+		assertArrayEquals(result.getQuadric().getSimpleArray(), same.getQuadric().getSimpleArray(), 0);
+		for (int j = 0; j < n; j++)
+			assertEquals("Point " + j, j % 20 != 7, result.isInlier(j));
+		assertEquals(n - 3, result.getInlierCount());
+		assertTrue(result.getHypotheses() < 500);
+		double[] expected = new DouglasRachfordSolver(options).fit(clean).getQuadric().getSimpleArray();
+		assertArrayEquals(expected, result.getQuadric().getSimpleArray(), 1e-6);
+	}
+
+	@Test
+	public void testReweighting() {
+		// Weighted K, directly and through the accumulator
+		double[][] coords = { { 1, -2, 3, 0.5 }, { 4, 0, -1, 2 }, { -3, 1, 2, 1 } };
+		double[] weights = { 0.5, 2, 0, 1 };
+		ScatterAccumulator scatter = new ScatterAccumulator();
+		for (int j = 0; j < 4; j++)
+			scatter.add(coords[0][j], coords[1][j], coords[2][j]);
+		for (int j = 0; j < 4; j++)
+			scatter.reweight(coords[0][j], coords[1][j], coords[2][j], 1, weights[j]);
+		double[][] K = new double[10][10];
+		scatter.getK(new double[3], K);
+		double[][] expectedK = EllipsoidAlgorithm.getK(new Matrix(coords), weights).getArray();
+		for (int i = 0; i < 10; i++)
+			assertArrayEquals(expectedK[i], K[i], 1e-9);
+		assertEquals(3.5, scatter.getTotalWeight(), 1e-12);
+
+		// Noisy points of an ellipsoid, with three points a few voxels off
+		Random random = new Random(11);
+		int n = 60;
+		double[][] clean = new double[3][n - 3], points = new double[3][n];
+		for (int j = 0; j < n; j++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(2 * random.nextDouble() - 1);
+			points[0][j] = 20 + 7 * Math.sin(v) * Math.cos(u) + 0.05 * random.nextGaussian();
+			points[1][j] = 30 + 5 * Math.sin(v) * Math.sin(u) + 0.05 * random.nextGaussian();
+			points[2][j] = 10 + 4 * Math.cos(v) + 0.05 * random.nextGaussian();
+			if (j % 20 == 7) {
+				points[0][j] += 5;
+				points[2][j] -= 4;
+			} else {
+				for (int i = 0; i < 3; i++)
+					clean[i][j - (j + 12) / 20] = points[i][j];
+			}
+		}
+		FitOptions options = FitOptions.DEFAULT.withConvergence(100000, 1e-10)
+				.withVariant(SolverVariant.Anderson);
+		IrlsFitter irls = new IrlsFitter(options);
+		irls.setLoss(RobustLoss.Tukey);
+		IrlsFitResult result = irls.fit(points);
+		double[] w = result.getWeights();
+		for (int j = 0; j < n; j++) {
+			if (j % 20 == 7)
+				assertEquals("Point " + j, 0, w[j], 0);
+			else
+				assertTrue("Point " + j, w[j] > 0);
+		}
+		assertTrue(!result.getSteps().isEmpty());
+		assertEquals(3, result.getSteps().get(result.getSteps().size() - 1).getRejected());
+		double[] expected = new DouglasRachfordSolver(options).fit(clean).getQuadric().getSimpleArray();
+		double[] actual = result.getQuadric().getSimpleArray();
+		for (int i = 0; i < 10; i++)
+			assertEquals("Coefficient " + i, expected[i], actual[i], 1e-2 * Math.max(1, Math.abs(expected[i])));
+	}
+
+	@Test
+	public void testGeometricRefinement() throws InterruptedException {
+		// Decomposition of a rotated ellipsoid
+		double c = Math.cos(0.4), s = Math.sin(0.4);
+		double[][] rotation = { { c, -s, 0 }, { s, c, 0 }, { 0, 0, 1 } };
+		EllipsoidParameters exact = new EllipsoidParameters(new double[] { 10, 5, 2 }, new double[] { 9, 5, 3 },
+				rotation);
+		EllipsoidParameters decomposed = EllipsoidParameters.fromQuadric(exact.toQuadric());
+		assertArrayEquals(exact.getCenter(), decomposed.getCenter(), 1e-9);
+		assertArrayEquals(exact.getAxes(), decomposed.getAxes(), 1e-9);
+		assertArrayEquals(exact.toQuadric(), decomposed.toQuadric(), 1e-12);
+		assertEquals(3, exact.signedDistance(10 + 12 * c, 5 + 12 * s, 2), 1e-9);
+		assertEquals(-3, exact.signedDistance(10, 5, 2), 1e-9);
+		assertEquals(1, exact.signedDistance(10, 5, 6), 1e-9);
+
+		// Upper cap of the ellipsoid, refined from a wrong ellipsoid, with
+		// enough points to be accumulated in parallel
+		Random random = new Random(3);
+		int n = 5000;
+		double[][] points = new double[3][n];
+		for (int j = 0; j < n; j++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(1 - 1.3 * random.nextDouble());
+			double x = 9 * Math.sin(v) * Math.cos(u), y = 5 * Math.sin(v) * Math.sin(u), z = 3 * Math.cos(v);
+			points[0][j] = 30 + c * x - s * y;
+			points[1][j] = 25 + s * x + c * y;
+			points[2][j] = 12 + z;
+		}
+		EllipsoidParameters wrong = new EllipsoidParameters(new double[] { 10.5, 4.5, 1.5 },
+				new double[] { 10, 4.5, 3.3 }, new double[][] { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } });
+		FitOptions options = FitOptions.DEFAULT.withOrigin(20, 20, 10);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		RefinedFitResult result = new GeometricRefiner(options, executor)
+				.refine(new QuadricExpression(wrong.toQuadric()), points);
+		executor.shutdown();
+		assertTrue(result.hasConverged());
+		assertTrue(result.getInitialResidual() > 0.1);
+		assertEquals(0, result.getResidual(), 1e-8);
+		assertArrayEquals(exact.getCenter(), result.getParameters().getCenter(), 1e-6);
+		assertArrayEquals(exact.getAxes(), result.getParameters().getAxes(), 1e-6);
+		assertArrayEquals(exact.toQuadric(), result.getQuadric().getSimpleArray(), 1e-8);
+	}
+
+	@Test
+	public void testConstrainedFitters() {
+		Random random = new Random(5);
+		FitOptions options = FitOptions.DEFAULT;
+		double[][] identity = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+
+		// Sphere from 5 points, one more than needed
+		EllipsoidParameters sphere = new EllipsoidParameters(new double[] { 3, -2, 5 }, new double[] { 4, 4, 4 },
+				identity);
+		FitResult result = EllipsoidFitting.newFitter(options.withEngine(FittingEngine.Sphere))
+				.fit(surfacePoints(sphere, 5, random));
+		assertTrue(result.hasConverged());
+		assertArrayEquals(sphere.toQuadric(), result.getQuadric().getSimpleArray(), 1e-9);
+
+		// Axis-aligned ellipsoid from 8 points
+		EllipsoidParameters aligned = new EllipsoidParameters(new double[] { 10, 5, 2 }, new double[] { 9, 6, 4 },
+				identity);
+		result = EllipsoidFitting.newFitter(options.withEngine(FittingEngine.AxisAligned))
+				.fit(surfacePoints(aligned, 8, random));
+		double[] q = result.getQuadric().getSimpleArray();
+		assertEquals(0, q[3], 0);
+		assertEquals(0, q[4], 0);
+		assertEquals(0, q[5], 0);
+		assertArrayEquals(aligned.toQuadric(), q, 1e-8);
+
+		// Tilted prolate spheroid from 12 points, its axis being searched for
+		double c = Math.cos(0.7), s = Math.sin(0.7), cb = Math.cos(0.3), sb = Math.sin(0.3);
+		double[][] rotation = { { c, -s * cb, s * sb }, { s, c * cb, -c * sb }, { 0, sb, cb } };
+		EllipsoidParameters spheroid = new EllipsoidParameters(new double[] { -4, 6, 8 }, new double[] { 8, 4, 4 },
+				rotation);
+		result = EllipsoidFitting.newFitter(options.withEngine(FittingEngine.Spheroid))
+				.fit(surfacePoints(spheroid, 12, random));
+		EllipsoidParameters fitted = EllipsoidParameters.fromQuadric(result.getQuadric().getSimpleArray());
+		assertArrayEquals(spheroid.getCenter(), fitted.getCenter(), 1e-4);
+		assertArrayEquals(spheroid.getAxes(), fitted.getAxes(), 1e-4);
+
+		// Too few points for the shape
+		assertTrue(!EllipsoidFitting.newFitter(options.withEngine(FittingEngine.Spheroid))
+				.fit(surfacePoints(spheroid, 6, random)).hasConverged());
+		assertEquals(4, new RansacFitter(options.withEngine(FittingEngine.Sphere)).getSampleSize());
+	}
+
+	@Test
+	public void testSymmetricEigen3() {
+		Random random = new Random(11);
+		double[] values = new double[3];
+		double[][] vectors = new double[3][3];
+		for (int t = 0; t < 200; t++) {
+			double[][] A = new double[3][3];
+			for (int i = 0; i < 3; i++)
+				for (int j = i; j < 3; j++)
+					A[i][j] = A[j][i] = random.nextGaussian() * Math.pow(10, t % 5 - 2);
+			if (t % 4 == 1) {
+				// Two equal eigenvalues
+				double[] v = { random.nextGaussian(), random.nextGaussian(), random.nextGaussian() };
+				for (int i = 0; i < 3; i++)
+					for (int j = 0; j < 3; j++)
+						A[i][j] = (i == j ? 2 : 0) + v[i] * v[j];
+			}
+			SymmetricEigen3.decompose(A, values, vectors);
+			double[] expected = new Matrix(A).eig().getRealEigenvalues();
+			Arrays.sort(expected);
+			double norm = new Matrix(A).normF();
+			assertArrayEquals(expected, values, 1e-12 * norm);
+			Matrix V = new Matrix(vectors);
+			assertEquals(1, V.det(), 1e-12);
+			assertArrayEquals(Matrix.identity(3, 3).getColumnPackedCopy(),
+					V.transpose().times(V).getColumnPackedCopy(), 1e-12);
+			double[][] D = new double[3][3];
+			for (int i = 0; i < 3; i++)
+				D[i][i] = values[i];
+			assertArrayEquals(new Matrix(A).getColumnPackedCopy(),
+					V.times(new Matrix(D)).times(V.transpose()).getColumnPackedCopy(), 1e-12 * norm);
+		}
+
+		// A sphere, and an ellipsoid given by a negative definite quadric
+		SymmetricEigen3.decompose(new double[][] { { 2, 0, 0 }, { 0, 2, 0 }, { 0, 0, 2 } }, values, vectors);
+		assertArrayEquals(new double[] { 2, 2, 2 }, values, 0);
+		EllipsoidParameters exact = new EllipsoidParameters(new double[] { 1, -2, 3 }, new double[] { 7, 4, 2 },
+				new double[][] { { 0, -1, 0 }, { 1, 0, 0 }, { 0, 0, 1 } });
+		double[] q = exact.toQuadric();
+		for (int i = 0; i < 10; i++)
+			q[i] = -q[i];
+		EllipsoidParameters decomposed = EllipsoidParameters.fromQuadric(q);
+		assertArrayEquals(exact.getCenter(), decomposed.getCenter(), 1e-12);
+		assertArrayEquals(exact.getAxes(), decomposed.getAxes(), 1e-12);
+		assertEquals(1, new Matrix(decomposed.getRotation()).det(), 1e-12);
+		assertTrue(EllipsoidParameters.fromQuadric(new double[] { 1, 1, -1, 0, 0, 0, 0, 0, 0, -1 }) == null);
+	}
+
+	@Test
+	public void testDegenerateSpectra() {
+		Random random = new Random(13);
+		double[][] spectra = { { 1, 1, 1 }, { 1, 1, 2 }, { 1, 2, 2 }, { 1, 1 + 1e-9, 2 }, { 1 - 1e-8, 1, 1 + 1e-8 },
+				{ 1, 1 + 1e-13, 1 + 2e-13 }, { 0, 0, 1 }, { 0, 1, 1 }, { -1, 0, 1 }, { 1e-150, 1e-150, 2e-150 },
+				{ 1e150, 3e150, 3e150 }, { 0, 0, 0 } };
+		double[] values = new double[3], q = new double[10];
+		double[][] vectors = new double[3][3], work = new double[3][3];
+		for (double[] spectrum : spectra) {
+			for (int t = 0; t < 20; t++) {
+				// Random rotation from the QR decomposition of a gaussian matrix
+				double[][] G = new double[3][3];
+				for (int i = 0; i < 3; i++)
+					for (int j = 0; j < 3; j++)
+						G[i][j] = random.nextGaussian();
+				Matrix R = new Matrix(G).qr().getQ();
+				double[][] D = new double[3][3];
+				for (int i = 0; i < 3; i++)
+					D[i][i] = spectrum[i];
+				Matrix A = R.times(new Matrix(D)).times(R.transpose());
+				double scale = Math.max(Math.abs(spectrum[0]), Math.abs(spectrum[2]));
+
+				// Half of the decompositions work in a buffer of the caller
+				SymmetricEigen3.decompose(A.getArray(), values, vectors, t % 2 == 0 ? null : work);
+				assertArrayEquals(spectrum, values, 1e-13 * scale);
+				Matrix V = new Matrix(vectors);
+				assertEquals(1, V.det(), 1e-12);
+				assertArrayEquals(Matrix.identity(3, 3).getColumnPackedCopy(),
+						V.transpose().times(V).getColumnPackedCopy(), 1e-12);
+
+				// The fused reconstruction gives back the quadratic part
+				SymmetricEigen3.reconstruct(vectors, values, q);
+				double[] expected = { A.get(0, 0), A.get(1, 1), A.get(2, 2), 2 * A.get(0, 1), 2 * A.get(0, 2),
+						2 * A.get(1, 2) };
+				assertArrayEquals(expected, Arrays.copyOf(q, 6), 1e-13 * scale);
+			}
+		}
+
+		// The projection matches the one through the Jama decomposition
+		for (int t = 0; t < 50; t++) {
+			Matrix q0 = new Matrix(10, 1);
+			for (int i = 0; i < 10; i++)
+				q0.set(i, 0, random.nextGaussian());
+			if (t % 2 == 0)
+				q0.set(1, 0, q0.get(0, 0));
+			Matrix Q0 = new Matrix(new double[][] { { q0.get(0, 0), q0.get(3, 0) / 2, q0.get(4, 0) / 2 },
+					{ q0.get(3, 0) / 2, q0.get(1, 0), q0.get(5, 0) / 2 },
+					{ q0.get(4, 0) / 2, q0.get(5, 0) / 2, q0.get(2, 0) } });
+			EigenvalueDecomposition eig = Q0.eig();
+			double[] s = DouglasRachfordSolver.projsplx(eig.getRealEigenvalues());
+			Matrix Q = eig.getV().times(new Matrix(new double[][] { { s[0], 0, 0 }, { 0, s[1], 0 }, { 0, 0, s[2] } }))
+					.times(eig.getV().transpose());
+			Matrix projected = EllipsoidAlgorithm.proxf2(q0);
+			assertArrayEquals(new double[] { Q.get(0, 0), Q.get(1, 1), Q.get(2, 2), 2 * Q.get(0, 1), 2 * Q.get(0, 2),
+					2 * Q.get(1, 2) }, Arrays.copyOf(projected.getColumnPackedCopy(), 6), 1e-12);
+			assertArrayEquals(Arrays.copyOfRange(q0.getColumnPackedCopy(), 6, 10),
+					Arrays.copyOfRange(projected.getColumnPackedCopy(), 6, 10), 0);
+		}
+	}
+
+	@Test
+	public void testBootstrap() throws InterruptedException {
+		EllipsoidParameters exact = new EllipsoidParameters(new double[] { 40, 30, 20 }, new double[] { 9, 6, 4 },
+				new double[][] { { 0, -1, 0 }, { 1, 0, 0 }, { 0, 0, 1 } });
+		Random random = new Random(17);
+		double[][] points = surfacePoints(exact, 200, random);
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < points[0].length; j++)
+				points[i][j] += 0.3 * random.nextGaussian();
+		double[][] few = new double[3][];
+		for (int i = 0; i < 3; i++)
+			few[i] = Arrays.copyOf(points[i], 30);
+
+		// The intervals do not depend on the number of threads
+		FitOptions options = FitOptions.DEFAULT.withOrigin(32, 32, 16);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		BootstrapEstimator parallel = new BootstrapEstimator(options, executor);
+		parallel.setReplicates(100);
+		parallel.setSeed(5);
+		BootstrapResult result = parallel.estimate(points);
+		BootstrapResult fewResult = parallel.estimate(few);
+		executor.shutdown();
+		BootstrapEstimator sequential = new BootstrapEstimator(options, Executors.newSingleThreadExecutor());
+		sequential.setReplicates(100);
+		sequential.setSeed(5);
+		assertArrayEquals(result.getVolumeInterval(), sequential.estimate(points).getVolumeInterval(), 0);
+
+		// The intervals hold the fit on all the points, and shrink with more
+		// points
+		assertEquals(0, result.getFailures());
+		for (int i = 0; i < 3; i++) {
+			double[] center = result.getCenterInterval(i), axis = result.getAxisInterval(i);
+			assertTrue(center[0] < result.getReference().getCenter()[i]);
+			assertTrue(center[1] > result.getReference().getCenter()[i]);
+			assertTrue(axis[0] < result.getReference().getAxes()[i]);
+			assertTrue(axis[1] > result.getReference().getAxes()[i]);
+			assertEquals(exact.getAxes()[i], result.getReference().getAxes()[i], 0.2);
+			assertTrue(result.getAngleInterval(i)[1] < 10);
+		}
+		double[] volume = result.getVolumeInterval(), fewVolume = fewResult.getVolumeInterval();
+		assertTrue(volume[0] < exact.getVolume() && exact.getVolume() < volume[1]);
+		assertTrue(fewVolume[1] - fewVolume[0] > volume[1] - volume[0]);
+
+		// The scale gives the parameters in physical units
+		sequential.setScale(new double[] { 0.5, 0.5, 2 });
+		BootstrapResult scaled = sequential.estimate(points);
+		assertEquals(result.getReference().getVolume() * 0.5, scaled.getReference().getVolume(), 1e-9);
+		assertEquals(40, scaled.getReference().getCenter()[2], 0.1);
+	}
+
+	@Test
+	public void testMultiEllipsoid() throws InterruptedException {
+		double[][] identity = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		EllipsoidParameters left = new EllipsoidParameters(new double[] { 20, 30, 20 }, new double[] { 8, 6, 5 },
+				identity);
+		EllipsoidParameters right = new EllipsoidParameters(new double[] { 35, 30, 20 }, new double[] { 7, 5, 4 },
+				identity);
+		Random random = new Random(3);
+		double[][] a = surfacePoints(left, 150, random), b = surfacePoints(right, 120, random);
+		// Touching nuclei hide the part of each surface inside the other
+		double[][] points = new double[3][];
+		List<Integer> origins = new ArrayList<Integer>();
+		List<double[]> kept = new ArrayList<double[]>();
+		for (int j = 0; j < a[0].length; j++) {
+			if (right.signedDistance(a[0][j], a[1][j], a[2][j]) > 0) {
+				kept.add(new double[] { a[0][j], a[1][j], a[2][j] });
+				origins.add(0);
+			}
+		}
+		for (int j = 0; j < b[0].length; j++) {
+			if (left.signedDistance(b[0][j], b[1][j], b[2][j]) > 0) {
+				kept.add(new double[] { b[0][j], b[1][j], b[2][j] });
+				origins.add(1);
+			}
+		}
+		for (int i = 0; i < 3; i++) {
+			points[i] = new double[kept.size()];
+			for (int j = 0; j < kept.size(); j++)
+				points[i][j] = kept.get(j)[i] + 0.05 * random.nextGaussian();
+		}
+
+		MultiEllipsoidFitter fitter = new MultiEllipsoidFitter(FitOptions.DEFAULT.withOrigin(32, 32, 16));
+		fitter.setSeed(11);
+		MultiFitResult result = fitter.fit(points);
+		assertEquals(2, result.getCount());
+		assertTrue(result.getCriterion(2) < result.getCriterion(1));
+		// The labels are arbitrary, the fitted ellipsoids being matched by
+		// their centers
+		int leftLabel = result.getParameters().get(0).getCenter()[0] < result.getParameters().get(1).getCenter()[0]
+				? 0 : 1;
+		int[] labels = result.getLabels();
+		int misassigned = 0;
+		for (int j = 0; j < labels.length; j++) {
+			if ((labels[j] == leftLabel) != (origins.get(j) == 0))
+				misassigned++;
+		}
+		assertTrue(misassigned <= labels.length / 50);
+		EllipsoidParameters[] exact = { left, right };
+		for (int c = 0; c < 2; c++) {
+			EllipsoidParameters fitted = result.getParameters().get(c == 0 ? leftLabel : 1 - leftLabel);
+			assertArrayEquals(exact[c].getCenter(), fitted.getCenter(), 0.2);
+			assertArrayEquals(exact[c].getAxes(), fitted.getAxes(), 0.2);
+		}
+
+		// Stopped before the labels are stable, each ellipsoid is still the
+		// fit of its members
+		fitter.setMaxIterations(1);
+		MultiFitResult stopped = fitter.fit(points);
+		for (int c = 0; c < stopped.getCount(); c++) {
+			boolean[] members = stopped.getMembers(c);
+			List<double[]> memberPoints = new ArrayList<double[]>();
+			for (int j = 0; j < members.length; j++) {
+				if (members[j])
+					memberPoints.add(new double[] { points[0][j], points[1][j], points[2][j] });
+			}
+			double[][] subset = new double[3][memberPoints.size()];
+			for (int j = 0; j < memberPoints.size(); j++)
+				for (int i = 0; i < 3; i++)
+					subset[i][j] = memberPoints.get(j)[i];
+			double[] refitted = EllipsoidFitting.newFitter(fitter.getOptions()).fit(subset).getQuadric()
+					.getSimpleArray();
+			assertArrayEquals(refitted, stopped.getResults().get(c).getQuadric().getSimpleArray(), 1e-12);
+		}
+		fitter.setMaxIterations(20);
+
+		// A single nucleus is not split
+		double[][] single = surfacePoints(left, 200, random);
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < single[0].length; j++)
+				single[i][j] += 0.05 * random.nextGaussian();
+		MultiFitResult alone = fitter.fit(single);
+		assertEquals(1, alone.getCount());
+		assertEquals(single[0].length, alone.getMembers(0).length);
+	}
+
+	@Test
+	public void testDenseFit() {
+		EllipsoidParameters exact = new EllipsoidParameters(new double[] { 200, 300, 100 },
+				new double[] { 80, 60, 40 }, new double[][] { { 0, -1, 0 }, { 1, 0, 0 }, { 0, 0, 1 } });
+		Random random = new Random(23);
+		double[][] points = surfacePoints(exact, 70000, random);
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < points[0].length; j++)
+				points[i][j] += 0.5 * random.nextGaussian();
+
+		// The moments summed by addAll give the K of the points added one by
+		// one
+		ScatterAccumulator single = new ScatterAccumulator(), all = new ScatterAccumulator();
+		for (int j = 0; j < points[0].length; j++)
+			single.add(points[0][j], points[1][j], points[2][j]);
+		all.addAll(points);
+		assertEquals(single.size(), all.size());
+		assertEquals(single.getAverageRadius(), all.getAverageRadius(), 1e-9 * single.getAverageRadius());
+		double[][] expected = new double[10][10], actual = new double[10][10];
+		single.getK(exact.getCenter(), expected);
+		all.getK(exact.getCenter(), actual);
+		for (int i = 0; i < 10; i++)
+			assertArrayEquals(expected[i], actual[i], 1e-9 * Math.abs(expected[i][i]) + 1e-9);
+
+		// Same ellipsoid as the fit of the accumulated points
+		FitOptions options = FitOptions.DEFAULT.withOrigin(256, 256, 64).withConvergence(1000, 1e-9);
+		FitResult result = new DouglasRachfordSolver(options).fit(points);
+		assertEquals(ExitReason.Converged, result.getExitReason());
+		EllipsoidParameters dense = EllipsoidParameters.fromQuadric(result.getQuadric().getSimpleArray(),
+				options.getOrigin(), new double[] { 1, 1, 1 });
+		EllipsoidParameters accumulated = EllipsoidParameters.fromQuadric(
+				new DouglasRachfordSolver(options).fit(single).getQuadric().getSimpleArray(), options.getOrigin(),
+				new double[] { 1, 1, 1 });
+		assertArrayEquals(accumulated.getCenter(), dense.getCenter(), 1e-3);
+		assertArrayEquals(accumulated.getAxes(), dense.getAxes(), 1e-3);
+		assertArrayEquals(exact.getAxes(), dense.getAxes(), 0.5);
+	}
+
+	@Test
+	public void testEllipsoidMesh() {
+		EllipsoidParameters parameters = new EllipsoidParameters(new double[] { 40, 30, 20 },
+				new double[] { 12, 7, 3 }, new double[][] { { 0, -1, 0 }, { 0.6, 0, 0.8 }, { -0.8, 0, 0.6 } });
+		for (int level = EllipsoidMesh.MIN_LEVEL; level <= EllipsoidMesh.MAX_LEVEL; level++) {
+			EllipsoidMesh mesh = EllipsoidMesh.build(parameters, level);
+			assertEquals(10 * (1 << 2 * level) + 2, mesh.getNumberOfPoints());
+			assertEquals(20 * (1 << 2 * level), mesh.getNumberOfTriangles());
+			double[] points = mesh.getPoints(), normals = mesh.getNormals();
+			int[] triangles = mesh.getTriangles();
+			for (int v = 0; v < mesh.getNumberOfPoints(); v++)
+				assertEquals(0, parameters.signedDistance(points[3 * v], points[3 * v + 1], points[3 * v + 2]), 1e-9);
+			// Every triangle faces outward, and every edge is shared by two
+			// triangles walking it in opposite directions
+			Set<Long> edges = new HashSet<Long>();
+			for (int f = 0; f < mesh.getNumberOfTriangles(); f++) {
+				int a = triangles[3 * f], b = triangles[3 * f + 1], c = triangles[3 * f + 2];
+				double[] ab = new double[3], ac = new double[3];
+				for (int i = 0; i < 3; i++) {
+					ab[i] = points[3 * b + i] - points[3 * a + i];
+					ac[i] = points[3 * c + i] - points[3 * a + i];
+				}
+				double[] cross = { ab[1] * ac[2] - ab[2] * ac[1], ab[2] * ac[0] - ab[0] * ac[2],
+						ab[0] * ac[1] - ab[1] * ac[0] };
+				assertTrue(cross[0] * normals[3 * a] + cross[1] * normals[3 * a + 1] + cross[2] * normals[3 * a + 2] > 0);
+				assertTrue(edges.add(a * 100000L + b));
+				assertTrue(edges.add(b * 100000L + c));
+				assertTrue(edges.add(c * 100000L + a));
+			}
+			for (long edge : edges)
+				assertTrue(edges.contains(edge % 100000L * 100000L + edge / 100000L));
+		}
+
+		// The resolution follows the size of the ellipsoid
+		assertEquals(EllipsoidMesh.MIN_LEVEL, EllipsoidMesh.levelFor(3, 0.1));
+		assertTrue(EllipsoidMesh.levelFor(80, 0.1) > EllipsoidMesh.levelFor(20, 0.1));
+		assertEquals(EllipsoidMesh.MAX_LEVEL, EllipsoidMesh.levelFor(10000, 0.1));
+	}
+
+	@Test
+	public void testQuadricBounds() {
+		double[] center = { 3, -2, 1 }, axes = { 7, 4, 2 };
+		// Rotation of 0.5 rad around z then 0.8 rad around x
+		double ca = Math.cos(0.5), sa = Math.sin(0.5), cb = Math.cos(0.8), sb = Math.sin(0.8);
+		double[][] r = { { ca, -sa, 0 }, { cb * sa, cb * ca, -sb }, { sb * sa, sb * ca, cb } };
+		double[] q = new EllipsoidParameters(center, axes, r).toQuadric();
+		double[] bounds = QuadricBounds.boundingBox(q, new double[] { -50, -50, -50 }, new double[] { 50, 50, 50 });
+		for (int i = 0; i < 3; i++) {
+			double extent = 0;
+			for (int k = 0; k < 3; k++)
+				extent += r[i][k] * axes[k] * r[i][k] * axes[k];
+			extent = Math.sqrt(extent);
+			assertEquals(center[i] - extent, bounds[2 * i], 1e-6);
+			assertEquals(center[i] + extent, bounds[2 * i + 1], 1e-6);
+		}
+		assertNull(QuadricBounds.boundingBox(q, new double[] { 20, 20, 20 }, new double[] { 50, 50, 50 }));
+
+		// Cylinder x^2 + y^2 = 4 along z, cut by the box
+		double[] cylinder = { 1, 1, 0, 0, 0, 0, 0, 0, 0, -4 };
+		bounds = QuadricBounds.boundingBox(cylinder, new double[] { -10, -10, -10 }, new double[] { 10, 10, 10 });
+		assertArrayEquals(new double[] { -2, 2, -2, 2, -10, 10 }, bounds, 1e-9);
+
+		// Hyperboloid of two sheets z^2 - x^2 - y^2 = 1, cut at z = +-3
+		double[] hyperboloid = { -1, -1, 1, 0, 0, 0, 0, 0, 0, -1 };
+		bounds = QuadricBounds.boundingBox(hyperboloid, new double[] { -3, -3, -3 }, new double[] { 3, 3, 3 });
+		double cut = Math.sqrt(8);
+		assertArrayEquals(new double[] { -cut, cut, -cut, cut, -3, 3 }, bounds, 1e-9);
+
+		// A flat box gets the fewest samples along its thin axis, and the
+		// budget is spent on the others
+		int[] dimensions = QuadricBounds.sampleDimensions(new double[] { 0, 100, 0, 100, 0, 1 }, 1000, 0.5);
+		assertEquals(2, dimensions[2]);
+		assertEquals(dimensions[0], dimensions[1]);
+		int total = dimensions[0] * dimensions[1] * dimensions[2];
+		assertTrue(total > 800 && total < 1200);
+		// A small box is not sampled finer than the smallest spacing
+		assertArrayEquals(new int[] { 5, 5, 5 },
+				QuadricBounds.sampleDimensions(new double[] { 0, 2, 0, 2, 0, 2 }, 1000, 0.5));
+	}
+
+	@Test
+	public void testMeshCache() {
+		double[] q = new EllipsoidParameters(new double[] { 3, -2, 1 }, new double[] { 7, 4, 2 }, new double[][] {
+				{ 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } }).toQuadric();
+		double[] origin = { 0, 0, 0 }, scale = { 1, 1, 1 };
+		double[] scaled = new double[10];
+		for (int i = 0; i < 10; i++)
+			scaled[i] = -2.5 * q[i] * (1 + 1e-13);
+		MeshCache.Key key = MeshCache.key(q, origin, scale, 3);
+		assertEquals(key, MeshCache.key(scaled, origin, scale, 3));
+		assertEquals(key.hashCode(), MeshCache.key(scaled, origin, scale, 3).hashCode());
+		assertFalse(key.equals(MeshCache.key(q, origin, scale, 4)));
+		assertFalse(key.equals(MeshCache.key(q, new double[] { 1, 0, 0 }, scale, 3)));
+
+		MeshCache<String> cache = new MeshCache<String>(300);
+		MeshCache.Key[] keys = new MeshCache.Key[4];
+		for (int k = 0; k < keys.length; k++)
+			keys[k] = MeshCache.key(q, origin, scale, k);
+		cache.put(keys[0], "a", 100);
+		cache.put(keys[1], "b", 100);
+		cache.put(keys[2], "c", 100);
+		assertEquals("a", cache.get(keys[0]));
+		// b is now the least recently used
+		cache.put(keys[3], "d", 100);
+		assertNull(cache.get(keys[1]));
+		assertEquals("c", cache.get(keys[2]));
+		assertEquals(3, cache.getCount());
+		assertEquals(300, cache.getSize());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+
+		// Replacing a mesh does not count it twice, and a mesh larger than
+		// the budget is not kept
+		cache.put(keys[2], "c", 50);
+		assertEquals(250, cache.getSize());
+		cache.put(keys[1], "b", 1000);
+		assertNull(cache.get(keys[1]));
+		cache.setBudget(100);
+		assertEquals(1, cache.getCount());
+		assertEquals("c", cache.get(keys[2]));
+		assertEquals(3, cache.getEvictions());
+	}
+
+	@Test
+	public void testMergedMesh() {
+		double[][] identity = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		EllipsoidMesh[] meshes = new EllipsoidMesh[3];
+		for (int k = 0; k < 3; k++)
+			meshes[k] = EllipsoidMesh.build(
+					new EllipsoidParameters(new double[] { 20 * k, 0, 0 }, new double[] { 5, 4, 3 }, identity), 2 + k);
+		MergedMesh<String> merged = new MergedMesh<String>();
+		String[] keys = { "a", "b", "c" };
+		for (int k = 0; k < 3; k++)
+			merged.add(keys[k], meshes[k].getPoints(), meshes[k].getNormals(), meshes[k].getTriangles(),
+					new byte[] { (byte) k, 0, 0, (byte) 255 });
+		int cells0 = meshes[0].getNumberOfTriangles(), cells1 = meshes[1].getNumberOfTriangles();
+		int points0 = meshes[0].getNumberOfPoints();
+		assertEquals(cells0 + cells1 + meshes[2].getNumberOfTriangles(), merged.getNumberOfCells());
+		assertEquals("a", merged.getKey(cells0 - 1));
+		assertEquals("b", merged.getKey(cells0));
+		assertEquals("c", merged.getKey(cells0 + cells1));
+		assertNull(merged.getKey(merged.getNumberOfCells()));
+		assertArrayEquals(new int[] { 0, merged.getNumberOfPoints() }, merged.getDirtyPoints());
+
+		merged.clearDirty();
+		assertNull(merged.getDirtyCells());
+		merged.setColor("b", new byte[] { 9, 9, 9, 9 });
+		assertArrayEquals(new int[] { cells0, cells0 + cells1 }, merged.getDirtyCells());
+		assertNull(merged.getDirtyPoints());
+		assertFalse(merged.isMoved());
+
+		// Removing b leaves a hole until the compaction, which shifts c
+		assertTrue(merged.remove("b"));
+		assertNull(merged.getKey(cells0));
+		assertTrue(merged.compact());
+		assertTrue(merged.isMoved());
+		assertFalse(merged.compact());
+		assertEquals(2, merged.size());
+		assertEquals(points0 + meshes[2].getNumberOfPoints(), merged.getNumberOfPoints());
+		assertEquals("c", merged.getKey(cells0));
+		long[] cells = merged.getCells();
+		int[] triangles = meshes[2].getTriangles();
+		for (int f = 0; f < meshes[2].getNumberOfTriangles(); f++) {
+			assertEquals(3, cells[4 * (cells0 + f)]);
+			for (int i = 0; i < 3; i++) {
+				int v = (int) cells[4 * (cells0 + f) + 1 + i];
+				assertEquals(points0 + triangles[3 * f + i], v);
+				assertEquals(meshes[2].getPoints()[3 * triangles[3 * f + i]], merged.getPoints()[3 * v], 0);
+			}
+		}
+		assertEquals(2, merged.getColors()[4 * cells0]);
+	}
+
+	/**
+	 * Samples exact points on the surface of an ellipsoid
+	 */
+	private static double[][] surfacePoints(EllipsoidParameters ellipsoid, int n, Random random) {
+		double[][] points = new double[3][n];
+		double[] axes = ellipsoid.getAxes();
+		double[][] r = ellipsoid.getRotation();
+		for (int j = 0; j < n; j++) {
+			double u = random.nextDouble() * 2 * Math.PI, v = Math.acos(2 * random.nextDouble() - 1);
+			double[] p = { axes[0] * Math.sin(v) * Math.cos(u), axes[1] * Math.sin(v) * Math.sin(u),
+					axes[2] * Math.cos(v) };
+			for (int i = 0; i < 3; i++)
+				points[i][j] = ellipsoid.getCenter()[i] + r[i][0] * p[0] + r[i][1] * p[1] + r[i][2] * p[2];
+		}
+		return points;
+	}
+
 }
@@ -16,6 +16,7 @@ import icy.main.Icy;
 import icy.sequence.Sequence;
 import icy.sequence.SequenceUtil;
 import icy.system.thread.ThreadUtil;
+import kovac.res.enums.FittingEngine;
 import kovac.res.enums.Methods;
 import kovac.res.quadric.PersistentSetQuadric;
 import kovac.res.util.ViewerUtil;
@@ -26,6 +27,7 @@ import plugins.adufour.ezplug.EzGUI;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzVar;
 import plugins.adufour.ezplug.EzVarBoolean;
+import plugins.adufour.ezplug.EzVarDouble;
 import plugins.adufour.ezplug.EzVarEnum;
 import plugins.adufour.ezplug.EzVarFile;
 import plugins.adufour.ezplug.EzVarInteger;
@@ -50,8 +52,15 @@ public class Segmentation3D extends EzPlug {
 	private static EzVarFile xmlLoading;
 	private static EzButton confirmSequence;
 	private static EzVarBoolean lock;
+	private static EzVarEnum<FittingEngine> fittingModel;
 	private static EzVarInteger minimumNumberOfPoints;
 	private static EzVarBoolean displayPoints;
+	private static EzVarBoolean rejectOutliers;
+	private static EzVarDouble outlierDistance;
+	private static EzVarBoolean refineDistances;
+	private static EzVarBoolean estimateUncertainty;
+	private static EzVarInteger replicates;
+	private static EzVarInteger maxNuclei;
 
 	private static ActionListener confirmListener;
 	private static EzVarListener<Methods> methodListener;
@@ -94,7 +103,14 @@ public class Segmentation3D extends EzPlug {
 		addEzComponent(confirmSequence);
 		addComponent(new JSeparator(JSeparator.VERTICAL));
 		addEzComponent(lock);
+		addEzComponent(fittingModel);
 		addEzComponent(minimumNumberOfPoints);
+		addEzComponent(rejectOutliers);
+		addEzComponent(outlierDistance);
+		addEzComponent(refineDistances);
+		addEzComponent(estimateUncertainty);
+		addEzComponent(replicates);
+		addEzComponent(maxNuclei);
 		addComponent(new JSeparator(JSeparator.HORIZONTAL));
 		addEzComponent(xmlSaving);
 		addEzComponent(xmlLoading);
@@ -123,10 +139,31 @@ public class Segmentation3D extends EzPlug {
 		confirmSequence = new EzButton("Confirm sequence", confirmListener);
 		lock = new EzVarBoolean("Lock", false);
 		lock.setToolTipText("Look the OrthoView at the current position");
-		minimumNumberOfPoints = new EzVarInteger("Min. number of points", 10, 10, 300, 5);
-		minimumNumberOfPoints.setToolTipText("Minimum number of points required to calculate an ellipsoid");
+		fittingModel = new EzVarEnum<FittingEngine>("Model", FittingEngine.values(), FittingEngine.DouglasRachford);
+		fittingModel.setToolTipText(
+				"Shape fitted to the points, the constrained ones (Sphere, Spheroid, AxisAligned) need fewer points");
+		minimumNumberOfPoints = new EzVarInteger("Min. number of points", 10, 4, 300, 1);
+		minimumNumberOfPoints.setToolTipText(
+				"Minimum number of points required to calculate an ellipsoid, at least the number determining the model");
 		displayPoints = new EzVarBoolean("Display points", false);
 		displayPoints.setToolTipText("Display the clicked points on the VTK renderer. May slow down the plugin");
+		rejectOutliers = new EzVarBoolean("Reject outliers", false);
+		rejectOutliers.setToolTipText("Ignore the mis-clicked points when fitting the ellipsoid (RANSAC)");
+		outlierDistance = new EzVarDouble("Outlier distance", 2, 0.1, 50, 0.1);
+		outlierDistance.setToolTipText("Distance to the ellipsoid, in voxels, above which a point is rejected");
+		rejectOutliers.addVisibilityTriggerTo(outlierDistance, true);
+		refineDistances = new EzVarBoolean("Refine on distances", false);
+		refineDistances.setToolTipText(
+				"Minimize the true distances of the points to the ellipsoid, slower but unbiased on partial nuclei");
+		estimateUncertainty = new EzVarBoolean("Estimate uncertainty", false);
+		estimateUncertainty.setToolTipText(
+				"Refit resampled sets of the points to give confidence intervals of the volume, axes and orientation");
+		replicates = new EzVarInteger("Replicates", 200, 20, 2000, 20);
+		replicates.setToolTipText("Number of resampled sets of points, more is slower but more accurate");
+		estimateUncertainty.addVisibilityTriggerTo(replicates, true);
+		maxNuclei = new EzVarInteger("Max. nuclei per group", 1, 1, 5, 1);
+		maxNuclei.setToolTipText(
+				"Split the points of touching nuclei between several ellipsoids, without outlier rejection nor uncertainty");
 
 		currentUI = getUI();
 	}
@@ -293,10 +330,18 @@ public class Segmentation3D extends EzPlug {
 	}
 
 	/**
-	 * @return The minimum number of points the user defined
+	 * @return The minimum number of points the user defined, at least the
+	 *         number of points determining the chosen model
 	 */
 	public static int getMinNumbPoints() {
-		return minimumNumberOfPoints.getValue();
+		return Math.max(minimumNumberOfPoints.getValue(), fittingModel.getValue().getMinimumPoints());
+	}
+
+	/**
+	 * @return The algorithm, and the shape, the ellipsoids are fitted with
+	 */
+	public static FittingEngine getFittingEngine() {
+		return fittingModel.getValue();
 	}
 
 	/**
@@ -327,6 +372,46 @@ public class Segmentation3D extends EzPlug {
 	public static Boolean isDiplayingPoints() {
 		return displayPoints.getValue();
 	}
+
+	/**
+	 * @return True if the mis-clicked points must be rejected before fitting
+	 *         the ellipsoid
+	 */
+	public static boolean isRejectingOutliers() {
+		return rejectOutliers.getValue();
+	}
+
+	/**
+	 * @return The distance to the ellipsoid, in voxels, above which a point is
+	 *         rejected
+	 */
+	public static double getOutlierDistance() {
+		return outlierDistance.getValue();
+	}
+
+	/**
+	 * @return True if the ellipsoid must be refined on the euclidean distances
+	 *         of the points
+	 */
+	public static boolean isRefiningDistances() {
+		return refineDistances.getValue();
+	}
+
+	/**
+	 * @return The number of bootstrap replicates estimating the uncertainty
+	 *         of the ellipsoids, 0 if it must not be estimated
+	 */
+	public static int getReplicates() {
+		return estimateUncertainty.getValue() ? replicates.getValue() : 0;
+	}
+
+	/**
+	 * @return The maximum number of ellipsoids fitted to a group of points,
+	 *         the number of touching nuclei clicked together
+	 */
+	public static int getMaxNuclei() {
+		return maxNuclei.getValue();
+	}
 	
 	public static void addSavedEllipsoid(EllipsoidOverlay e) {
 		savedEllipsoids.addQuadric(e.getQuadricExpression());